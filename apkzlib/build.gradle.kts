@@ -8,6 +8,12 @@ plugins {
 java {
     sourceCompatibility = androidSourceCompatibility
     targetCompatibility = androidTargetCompatibility
+    sourceSets {
+        create("jmh") {
+            compileClasspath += main.get().output + main.get().compileClasspath
+            runtimeClasspath += main.get().output + main.get().runtimeClasspath
+        }
+    }
 }
 
 dependencies {
@@ -18,4 +24,15 @@ dependencies {
     api("com.android.tools.build:apksig:7.1.2")
     compileOnlyApi("com.google.auto.value:auto-value-annotations:1.9")
     annotationProcessor("com.google.auto.value:auto-value:1.9")
+    testImplementation("junit:junit:4.13.2")
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.36")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.36")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks, passing -PjmhArgs to the JMH runner"
+    group = "verification"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args((findProperty("jmhArgs") as String?)?.split(' ') ?: emptyList<String>())
 }
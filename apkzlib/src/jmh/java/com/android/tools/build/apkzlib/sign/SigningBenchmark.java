@@ -0,0 +1,194 @@
+package com.android.tools.build.apkzlib.sign;
+
+import com.android.tools.build.apkzlib.zip.ZFile;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to sign outputs the size of patched apks, most of which is the stored original apk, with the
+ * v2 chunk digests computed on {@link #threads} threads.
+ *
+ * <p>{@link #sign()} writes and signs a whole output the way {@code LSPatch} does: the original apk
+ * is nested stored and a {@link SigningExtension} signs the result on close. {@link #digest()} only
+ * computes the SHA-256 digests of the 1 MiB chunks of the same bytes through a {@link
+ * ParallelRunnablesExecutor}, the part of signing that the executor parallelizes.
+ *
+ * <p>Run with {@code ./gradlew :apkzlib:jmh}, or for example {@code ./gradlew :apkzlib:jmh
+ * -PjmhArgs="-p sizeMiB=1024 -p threads=1,8"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class SigningBenchmark {
+
+  /** Chunk size of the v2 digests. */
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  /** Size of the original apk nested in the output. */
+  @Param({"100", "1024"})
+  public int sizeMiB;
+
+  /** Number of threads computing the digests. */
+  @Param({"1", "4"})
+  public int threads;
+
+  private File directory;
+  private File originalApk;
+  private File output;
+  private KeyPair keyPair;
+  private X509Certificate certificate;
+
+  @Setup
+  public void setUp() throws Exception {
+    directory = Files.createTempDirectory("signing").toFile();
+    originalApk = new File(directory, "original.apk");
+    output = new File(directory, "output.apk");
+    writeOriginalApk();
+
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    X500Name name = new X500Name("CN=benchmark");
+    Date now = new Date();
+    certificate =
+        new JcaX509CertificateConverter()
+            .getCertificate(
+                new JcaX509v3CertificateBuilder(
+                        name,
+                        BigInteger.ONE,
+                        now,
+                        new Date(now.getTime() + TimeUnit.DAYS.toMillis(365)),
+                        name,
+                        keyPair.getPublic())
+                    .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+  }
+
+  /** Writes an apk holding one stored entry of {@link #sizeMiB} random, incompressible bytes. */
+  private void writeOriginalApk() throws IOException {
+    Random random = new Random(0);
+    byte[] chunk = new byte[CHUNK_SIZE];
+    CRC32 crc = new CRC32();
+    for (int i = 0; i < sizeMiB; i++) {
+      random.nextBytes(chunk);
+      crc.update(chunk);
+    }
+
+    try (OutputStream out = Files.newOutputStream(originalApk.toPath());
+        ZipOutputStream zip = new ZipOutputStream(out)) {
+      ZipEntry entry = new ZipEntry("classes.dex");
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize((long) sizeMiB * CHUNK_SIZE);
+      entry.setCrc(crc.getValue());
+      zip.putNextEntry(entry);
+      random = new Random(0);
+      for (int i = 0; i < sizeMiB; i++) {
+        random.nextBytes(chunk);
+        zip.write(chunk);
+      }
+      zip.closeEntry();
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void deleteOutput() {
+    output.delete();
+  }
+
+  @TearDown
+  public void tearDown() {
+    output.delete();
+    originalApk.delete();
+    directory.delete();
+  }
+
+  @Benchmark
+  public long sign() throws Exception {
+    try (ZFile zFile = ZFile.openReadWrite(output)) {
+      new SigningExtension(
+              SigningOptions.builder()
+                  .setMinSdkVersion(28)
+                  .setV2SigningEnabled(true)
+                  .setCertificates(certificate)
+                  .setKey(keyPair.getPrivate())
+                  .setExecutor(new ParallelRunnablesExecutor(threads))
+                  .build())
+          .register(zFile);
+      zFile.addNestedZip(ignored -> "assets/lspatch/origin.apk", originalApk, false).close();
+      zFile.add("assets/lspatch/config.json", new ByteArrayInputStream(new byte[100]));
+    }
+
+    return output.length();
+  }
+
+  @Benchmark
+  public int digest() throws Exception {
+    try (FileChannel channel = FileChannel.open(originalApk.toPath(), StandardOpenOption.READ);
+        ParallelRunnablesExecutor executor = new ParallelRunnablesExecutor(threads)) {
+      MappedByteBuffer contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int chunks = (int) ((channel.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+      byte[][] digests = new byte[chunks][];
+      AtomicInteger nextChunk = new AtomicInteger();
+      // every runnable pulls chunks from a shared counter, as the v2 digesters of apksig do
+      executor.execute(
+          () -> {
+            MessageDigest sha256;
+            try {
+              sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+              throw new IllegalStateException(e);
+            }
+            return () -> {
+              int chunk;
+              while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                ByteBuffer data = contents.duplicate();
+                data.position(chunk * CHUNK_SIZE);
+                data.limit((int) Math.min(data.capacity(), (long) (chunk + 1) * CHUNK_SIZE));
+                sha256.update(data);
+                digests[chunk] = sha256.digest();
+              }
+            };
+          });
+      return digests.length;
+    }
+  }
+}
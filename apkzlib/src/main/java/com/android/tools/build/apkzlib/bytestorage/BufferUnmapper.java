@@ -0,0 +1,67 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import javax.annotation.Nullable;
+
+/**
+ * Releases the memory of a {@link MappedByteBuffer} right away instead of when it is garbage
+ * collected. There is no public API for this, so the runtime specific one is looked up once: {@code
+ * sun.misc.Unsafe.invokeCleaner} on the JDK and {@code java.nio.NioUtils.freeDirectBuffer} on
+ * Android. If neither is available, buffers are left to the garbage collector.
+ *
+ * <p>A buffer must not be accessed, through itself or any buffer derived from it, once it was
+ * unmapped: the access would touch unmapped memory and crash the process.
+ */
+final class BufferUnmapper {
+
+  /** The unmapping method, {@code null} if none was found. */
+  @Nullable private static final Method UNMAP;
+
+  /** The receiver of {@link #UNMAP}, {@code null} for a static method. */
+  @Nullable private static final Object RECEIVER;
+
+  static {
+    Method unmap = null;
+    Object receiver = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      receiver = theUnsafe.get(null);
+      unmap = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      receiver = null;
+      try {
+        unmap = Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class);
+      } catch (ReflectiveOperationException | RuntimeException e2) {
+        unmap = null;
+      }
+    }
+
+    UNMAP = unmap;
+    RECEIVER = receiver;
+  }
+
+  private BufferUnmapper() {}
+
+  /**
+   * Unmaps {@code buffer}.
+   *
+   * @return whether the buffer was unmapped; if not, it is released when garbage collected
+   */
+  static boolean unmap(MappedByteBuffer buffer) {
+    if (UNMAP == null) {
+      return false;
+    }
+
+    try {
+      UNMAP.invoke(RECEIVER, buffer);
+      return true;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return false;
+    }
+  }
+}
@@ -21,6 +21,8 @@ import com.google.common.io.ByteSource;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
 
 /**
  * Interface for a storage that will temporarily save bytes. There are several factory methods to
@@ -69,4 +71,12 @@ public interface ByteStorage extends Closeable {
    * @return the number of bytes
    */
   long getMaxBytesUsed();
+
+  /**
+   * Sets a listener notified whenever data kept in memory is moved to disk. Storages that never
+   * move data ignore the listener, which is what the default implementation does.
+   *
+   * @param listener receives the number of bytes moved; {@code null} to remove the listener
+   */
+  default void setSpillListener(@Nullable LongConsumer listener) {}
 }
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.LongConsumer;
 import javax.annotation.Nullable;
 
 /**
@@ -136,6 +137,11 @@ public class ChunkBasedByteStorage implements ByteStorage {
     return delegate.getMaxBytesUsed();
   }
 
+  @Override
+  public void setSpillListener(@Nullable LongConsumer listener) {
+    delegate.setSpillListener(listener);
+  }
+
   @Override
   public void close() throws IOException {
     delegate.close();
@@ -0,0 +1,131 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.android.tools.build.apkzlib.zip.utils.CloseableDelegateByteSource;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Closeable byte source whose contents live in extents of a {@link MappedScratchFile}. Reads are
+ * served directly from the mapped memory. The extents are released when the byte source is closed.
+ */
+class MappedCloseableByteSource extends CloseableDelegateByteSource {
+
+  /** Callback to notify when the byte source is closed. */
+  private final IOExceptionRunnable closeCallback;
+
+  /**
+   * Creates a new byte source over the given buffers, in order. The provided callback is executed
+   * when the source is closed. There is no guarantee about which thread invokes the callback (it is
+   * the thread that closes the source).
+   */
+  MappedCloseableByteSource(
+      List<ByteBuffer> buffers, long size, IOExceptionRunnable closeCallback) {
+    super(concat(buffers), size);
+    this.closeCallback = closeCallback;
+  }
+
+  /** Builds a single byte source reading all buffers in order. */
+  private static ByteSource concat(List<ByteBuffer> buffers) {
+    if (buffers.size() == 1) {
+      return new ByteBufferByteSource(buffers.get(0));
+    }
+
+    ImmutableList.Builder<ByteSource> sources = ImmutableList.builder();
+    for (ByteBuffer buffer : buffers) {
+      sources.add(new ByteBufferByteSource(buffer));
+    }
+
+    return ByteSource.concat(sources.build());
+  }
+
+  @Override
+  protected synchronized void innerClose() throws IOException {
+    super.innerClose();
+    closeCallback.run();
+  }
+
+  /** Byte source reading from a buffer without changing the buffer's position. */
+  private static class ByteBufferByteSource extends ByteSource {
+
+    /** The data; position and limit are never changed. */
+    private final ByteBuffer buffer;
+
+    ByteBufferByteSource(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public InputStream openStream() {
+      ByteBuffer data = buffer.duplicate();
+      return new InputStream() {
+        @Override
+        public int read() {
+          return data.hasRemaining() ? (data.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+
+          if (!data.hasRemaining()) {
+            return -1;
+          }
+
+          int count = Math.min(len, data.remaining());
+          data.get(b, off, count);
+          return count;
+        }
+
+        @Override
+        public long skip(long n) {
+          int count = (int) Math.max(0, Math.min(n, data.remaining()));
+          data.position(data.position() + count);
+          return count;
+        }
+
+        @Override
+        public int available() {
+          return data.remaining();
+        }
+      };
+    }
+
+    @Override
+    public long size() {
+      return buffer.remaining();
+    }
+
+    @Override
+    public Optional<Long> sizeIfKnown() {
+      return Optional.of((long) buffer.remaining());
+    }
+
+    @Override
+    public ByteSource slice(long offset, long length) {
+      Preconditions.checkArgument(offset >= 0, "offset (%s) may not be negative", offset);
+      Preconditions.checkArgument(length >= 0, "length (%s) may not be negative", length);
+      int start = (int) Math.min(offset, buffer.remaining());
+      int end = start + (int) Math.min(length, buffer.remaining() - start);
+      ByteBuffer sliced = buffer.duplicate();
+      sliced.position(buffer.position() + start);
+      sliced.limit(buffer.position() + end);
+      return new ByteBufferByteSource(sliced.slice());
+    }
+
+    @Override
+    public byte[] read() {
+      byte[] data = new byte[buffer.remaining()];
+      buffer.duplicate().get(data);
+      return data;
+    }
+  }
+}
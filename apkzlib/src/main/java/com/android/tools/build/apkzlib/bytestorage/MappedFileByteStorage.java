@@ -0,0 +1,178 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * Byte storage that keeps all byte sources in a single memory-mapped scratch file in a temporary
+ * directory. Data is written once into extents of the scratch file and read back from the mapped
+ * memory; closing a byte source returns its extents to the scratch file for reuse. Unlike {@link
+ * TemporaryDirectoryStorage}, no file is created or deleted per byte source.
+ *
+ * <p>Byte sources remain readable after the storage is closed. The scratch file is unmapped and
+ * deleted, together with the temporary directory, once the storage and all its byte sources are
+ * closed.
+ */
+public class MappedFileByteStorage implements ByteStorage {
+
+  /** Temporary directory holding the scratch file. */
+  @VisibleForTesting // private otherwise.
+  final TemporaryDirectory temporaryDirectory;
+
+  /** The scratch file where all data is stored. */
+  private final MappedScratchFile scratchFile;
+
+  /** Number of bytes currently used. */
+  private long bytesUsed;
+
+  /** Maximum number of bytes used. */
+  private long maxBytesUsed;
+
+  /**
+   * Creates a new storage using the provided temporary directory.
+   *
+   * @param temporaryDirectoryFactory a factory used to create the directory to use for the scratch
+   *     file; this directory will be closed once the {@link MappedFileByteStorage} and all its byte
+   *     sources are closed.
+   * @throws IOException failed to create the temporary directory or the scratch file
+   */
+  public MappedFileByteStorage(TemporaryDirectoryFactory temporaryDirectoryFactory)
+      throws IOException {
+    this.temporaryDirectory = temporaryDirectoryFactory.make();
+    TemporaryFile scratchFileOnDisk = new TemporaryFile(temporaryDirectory.newFile());
+    this.scratchFile =
+        new MappedScratchFile(
+            scratchFileOnDisk.getFile(),
+            () -> {
+              try (Closer closer = Closer.create()) {
+                closer.register(temporaryDirectory);
+                closer.register(scratchFileOnDisk);
+              }
+            });
+  }
+
+  @Override
+  public CloseableByteSource fromStream(InputStream stream) throws IOException {
+    CloseableByteSourceFromOutputStreamBuilder builder = makeBuilder();
+    ByteStreams.copy(stream, builder);
+    return builder.build();
+  }
+
+  @Override
+  public CloseableByteSourceFromOutputStreamBuilder makeBuilder() throws IOException {
+    return new AbstractCloseableByteSourceFromOutputStreamBuilder() {
+      /** Extents written so far, as {first block, block count} pairs. */
+      private final List<int[]> extents = new ArrayList<>();
+
+      /** Buffer over the block being written, {@code null} if no block was allocated yet. */
+      @Nullable private ByteBuffer current = null;
+
+      /** Last block allocated, {@code -1} if none. */
+      private int lastBlock = -1;
+
+      /** Total number of bytes written. */
+      private long written = 0;
+
+      @Override
+      protected void doWrite(byte[] b, int off, int len) throws IOException {
+        int actualOffset = off;
+        int remaining = len;
+
+        while (remaining > 0) {
+          if (current == null || !current.hasRemaining()) {
+            int block = scratchFile.allocateBlock(lastBlock);
+            if (MappedScratchFile.isContiguous(lastBlock, block)) {
+              extents.get(extents.size() - 1)[1]++;
+            } else {
+              extents.add(new int[] {block, 1});
+            }
+
+            lastBlock = block;
+            current = scratchFile.slice(block, MappedScratchFile.BLOCK_SIZE);
+          }
+
+          int count = Math.min(remaining, current.remaining());
+          current.put(b, actualOffset, count);
+          actualOffset += count;
+          remaining -= count;
+        }
+
+        written += len;
+        incrementBytesUsed(len);
+      }
+
+      @Override
+      protected CloseableByteSource doBuild() throws IOException {
+        current = null;
+        long size = written;
+        List<ByteBuffer> buffers = new ArrayList<>(extents.size());
+        long left = size;
+        for (int[] extent : extents) {
+          int length = (int) Math.min(left, (long) extent[1] * MappedScratchFile.BLOCK_SIZE);
+          buffers.add(scratchFile.slice(extent[0], length));
+          left -= length;
+        }
+
+        return new MappedCloseableByteSource(
+            buffers,
+            size,
+            () -> {
+              incrementBytesUsed(-size);
+              for (int[] extent : extents) {
+                scratchFile.free(extent[0], extent[1]);
+              }
+            });
+      }
+    };
+  }
+
+  @Override
+  public CloseableByteSource fromSource(ByteSource source) throws IOException {
+    try (InputStream stream = source.openStream()) {
+      return fromStream(stream);
+    }
+  }
+
+  @Override
+  public synchronized long getBytesUsed() {
+    return bytesUsed;
+  }
+
+  @Override
+  public synchronized long getMaxBytesUsed() {
+    return maxBytesUsed;
+  }
+
+  /** Obtains the number of bytes the scratch file currently spans on disk. */
+  public long getMappedBytes() {
+    return scratchFile.getMappedBytes();
+  }
+
+  /** Checks whether the scratch file was unmapped and deleted. */
+  @VisibleForTesting
+  boolean isReleased() {
+    return scratchFile.isReleased();
+  }
+
+  /** Increments the byte counter by the given amount (decrements if {@code amount} is negative). */
+  private synchronized void incrementBytesUsed(long amount) {
+    bytesUsed += amount;
+    if (bytesUsed > maxBytesUsed) {
+      maxBytesUsed = bytesUsed;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    scratchFile.close();
+  }
+}
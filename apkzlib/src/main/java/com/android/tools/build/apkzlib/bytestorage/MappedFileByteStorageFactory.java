@@ -0,0 +1,28 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import java.io.IOException;
+
+/**
+ * {@link ByteStorageFactory} that creates {@link MappedFileByteStorage} instances, each keeping its
+ * data in a single memory-mapped scratch file.
+ */
+public class MappedFileByteStorageFactory implements ByteStorageFactory {
+
+  /** Factory that creates temporary directories. */
+  private final TemporaryDirectoryFactory temporaryDirectoryFactory;
+
+  /**
+   * Creates a new factory.
+   *
+   * @param temporaryDirectoryFactory a factory that creates the temporary directories where the
+   *     scratch files of the {@link ByteStorage} instances created by this factory are kept
+   */
+  public MappedFileByteStorageFactory(TemporaryDirectoryFactory temporaryDirectoryFactory) {
+    this.temporaryDirectoryFactory = temporaryDirectoryFactory;
+  }
+
+  @Override
+  public ByteStorage create() throws IOException {
+    return new MappedFileByteStorage(temporaryDirectoryFactory);
+  }
+}
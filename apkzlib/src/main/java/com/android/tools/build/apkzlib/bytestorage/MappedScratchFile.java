@@ -0,0 +1,201 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closer;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A single scratch file that grows in fixed-size memory-mapped regions and hands out space in
+ * fixed-size blocks. Blocks are always allocated lowest-first so that data written sequentially
+ * tends to end up in contiguous extents, and freed blocks are reused before the file grows.
+ *
+ * <p>An extent never crosses a region boundary, so every extent can be served as a single slice of
+ * a mapped region.
+ *
+ * <p>The file is released once it is closed and all its blocks are free, that is, when it is closed
+ * or, if byte sources over it are still open then, when the last of them is closed. Releasing it
+ * unmaps the regions and then runs the release action given on creation, so the file is never
+ * deleted while it is still mapped.
+ */
+class MappedScratchFile implements Closeable {
+
+  /** Size of each allocation block. */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  /** Size of each mapped region; must be a multiple of {@link #BLOCK_SIZE}. */
+  private static final int REGION_SIZE = 16 * 1024 * 1024;
+
+  /** Number of blocks in each region. */
+  private static final int BLOCKS_PER_REGION = REGION_SIZE / BLOCK_SIZE;
+
+  /** The scratch file. */
+  private final RandomAccessFile raf;
+
+  /** Channel used to map regions of {@link #raf}. */
+  private final FileChannel channel;
+
+  /** All regions mapped so far; region {@code i} starts at {@code i * REGION_SIZE}. */
+  private final List<MappedByteBuffer> regions;
+
+  /** Blocks that are currently free. */
+  private final BitSet freeBlocks;
+
+  /** Action run once the file is released, after its regions are unmapped. */
+  private final IOExceptionRunnable release;
+
+  /** Has the file been closed? */
+  private boolean closed;
+
+  /** Has the file been released? */
+  private boolean released;
+
+  /**
+   * Creates a new scratch file backed by {@code file}. The file is expected to exist and be empty.
+   *
+   * @param file the file
+   * @param release action run once the scratch file is closed and no byte source over it is open,
+   *     after the file is unmapped and closed; typically deletes {@code file}
+   */
+  MappedScratchFile(File file, IOExceptionRunnable release) throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    regions = new ArrayList<>();
+    freeBlocks = new BitSet();
+    this.release = release;
+    closed = false;
+    released = false;
+  }
+
+  /**
+   * Allocates a block. If {@code after} is not negative and the block following it is free and in
+   * the same region, that block is returned so the caller can grow its extent in place.
+   *
+   * @param after the last block of the caller's current extent, or {@code -1}
+   * @return the index of the allocated block
+   * @throws IOException failed to grow the file
+   */
+  synchronized int allocateBlock(int after) throws IOException {
+    Preconditions.checkState(!closed, "Scratch file closed");
+    int next = after + 1;
+    if (isContiguous(after, next) && freeBlocks.get(next)) {
+      freeBlocks.clear(next);
+      return next;
+    }
+
+    int block = freeBlocks.nextSetBit(0);
+    if (block < 0) {
+      block = mapRegion();
+    }
+
+    freeBlocks.clear(block);
+    return block;
+  }
+
+  /**
+   * Checks whether {@code block} directly follows {@code previous} in the same region, that is,
+   * whether an extent ending at {@code previous} can be grown to include {@code block}.
+   */
+  static boolean isContiguous(int previous, int block) {
+    return previous >= 0 && block == previous + 1 && block % BLOCKS_PER_REGION != 0;
+  }
+
+  /**
+   * Frees {@code count} blocks starting at {@code first}. If the file was closed and these were the
+   * last blocks in use, the file is released.
+   *
+   * @throws IOException failed to release the file
+   */
+  synchronized void free(int first, int count) throws IOException {
+    Preconditions.checkState(!released, "Scratch file released");
+    freeBlocks.set(first, first + count);
+    if (closed) {
+      releaseIfUnused();
+    }
+  }
+
+  /**
+   * Obtains a buffer over {@code length} bytes starting at the beginning of block {@code first}.
+   * The returned buffer is independent of any other buffer previously returned, but shares the
+   * mapped memory.
+   */
+  synchronized ByteBuffer slice(int first, int length) {
+    Preconditions.checkState(!closed, "Scratch file closed");
+    int region = first / BLOCKS_PER_REGION;
+    int offset = (first % BLOCKS_PER_REGION) * BLOCK_SIZE;
+    Preconditions.checkArgument(offset + length <= REGION_SIZE, "Extent crosses region boundary");
+
+    ByteBuffer buffer = regions.get(region).duplicate();
+    buffer.position(offset);
+    buffer.limit(offset + length);
+    return buffer.slice();
+  }
+
+  /** Returns the number of bytes the scratch file currently spans on disk. */
+  synchronized long getMappedBytes() {
+    return (long) regions.size() * REGION_SIZE;
+  }
+
+  /**
+   * Maps a new region at the end of the file, growing it, and marks all its blocks as free.
+   *
+   * @return the first block of the new region
+   */
+  private int mapRegion() throws IOException {
+    long position = (long) regions.size() * REGION_SIZE;
+    regions.add(channel.map(FileChannel.MapMode.READ_WRITE, position, REGION_SIZE));
+    int first = (regions.size() - 1) * BLOCKS_PER_REGION;
+    freeBlocks.set(first, first + BLOCKS_PER_REGION);
+    return first;
+  }
+
+  /** Checks whether the file was released. */
+  synchronized boolean isReleased() {
+    return released;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+    releaseIfUnused();
+  }
+
+  /**
+   * Releases the file if no block is in use. Slices handed out by byte sources that are still open
+   * share the mapped memory, so the regions can only be unmapped, and the file deleted, once every
+   * block was freed.
+   */
+  private void releaseIfUnused() throws IOException {
+    if (released || freeBlocks.cardinality() != regions.size() * BLOCKS_PER_REGION) {
+      return;
+    }
+
+    released = true;
+    for (MappedByteBuffer region : regions) {
+      BufferUnmapper.unmap(region);
+    }
+
+    regions.clear();
+    freeBlocks.clear();
+
+    // Closed in reverse order of registration: the channel, the file, then the release action.
+    try (Closer closer = Closer.create()) {
+      closer.register(release::run);
+      closer.register(raf);
+      closer.register(channel);
+    }
+  }
+}
@@ -5,6 +5,8 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteSource;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
 
 /**
  * Byte storage that keeps data in memory up to a certain size. After that, older sources are moved
@@ -27,7 +29,7 @@ public class OverflowToDiskByteStorage implements ByteStorage {
 
   /** Disk-based storage. */
   @VisibleForTesting // private otherwise.
-  final TemporaryDirectoryStorage diskStorage;
+  final ByteStorage diskStorage;
 
   /** Tracker that keeps all memory sources. */
   private final LruTracker<LruTrackedCloseableByteSource> memorySourcesTracker;
@@ -38,6 +40,9 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   /** Maximum amount of data used. */
   private long maxBytesUsed;
 
+  /** Listener notified when sources are moved to disk, if any. */
+  @Nullable private LongConsumer spillListener;
+
   /**
    * Creates a new byte storage with the default memory cache using the provided temporary directory
    * to write data that overflows the memory size.
@@ -66,8 +71,32 @@ public class OverflowToDiskByteStorage implements ByteStorage {
   public OverflowToDiskByteStorage(
       long memoryCacheSize, TemporaryDirectoryFactory temporaryDirectoryFactory)
       throws IOException {
+    this(memoryCacheSize, new TemporaryDirectoryStorage(temporaryDirectoryFactory));
+  }
+
+  /**
+   * Creates a new byte storage with the default memory cache using the provided storage for data
+   * that overflows the memory size.
+   *
+   * @param diskStorage the storage where to overflow to; it will be closed when the {@link
+   *     OverflowToDiskByteStorage} object is closed
+   */
+  public OverflowToDiskByteStorage(ByteStorage diskStorage) {
+    this(DEFAULT_MEMORY_CACHE_BYTES, diskStorage);
+  }
+
+  /**
+   * Creates a new byte storage with the given memory cache size using the provided storage for data
+   * that overflows the memory size.
+   *
+   * @param memoryCacheSize the in-memory cache; a value of {@link 0} will effectively disable
+   *     in-memory caching
+   * @param diskStorage the storage where to overflow to; it will be closed when the {@link
+   *     OverflowToDiskByteStorage} object is closed
+   */
+  public OverflowToDiskByteStorage(long memoryCacheSize, ByteStorage diskStorage) {
     memoryStorage = new InMemoryByteStorage();
-    diskStorage = new TemporaryDirectoryStorage(temporaryDirectoryFactory);
+    this.diskStorage = diskStorage;
     this.memoryCacheSize = memoryCacheSize;
     this.memorySourcesTracker = new LruTracker<>();
   }
@@ -134,11 +163,20 @@ public class OverflowToDiskByteStorage implements ByteStorage {
       LruTrackedCloseableByteSource last = memorySourcesTracker.last();
       if (last != null) {
         LruTrackedCloseableByteSource lastSource = last;
+        long size = lastSource.size();
         lastSource.move(diskStorage);
+        if (spillListener != null) {
+          spillListener.accept(size);
+        }
       }
     }
   }
 
+  @Override
+  public synchronized void setSpillListener(@Nullable LongConsumer listener) {
+    spillListener = listener;
+  }
+
   /** Obtains the number of bytes stored in memory. */
   public long getMemoryBytesUsed() {
     return memoryStorage.getBytesUsed();
@@ -12,8 +12,8 @@ public class OverflowToDiskByteStorageFactory implements ByteStorageFactory {
   /** How much data we want to keep in cache? If {@code null} then we want the default value. */
   @Nullable private final Long memoryCacheSizeInBytes;
 
-  /** Factory that creates temporary directories. */
-  private final TemporaryDirectoryFactory temporaryDirectoryFactory;
+  /** Factory that creates the storage data overflows to. */
+  private final ByteStorageFactory diskStorageFactory;
 
   /**
    * Creates a new factory with an optional in-memory size and a temporary directory for overflow.
@@ -35,16 +35,29 @@ public class OverflowToDiskByteStorageFactory implements ByteStorageFactory {
    */
   public OverflowToDiskByteStorageFactory(
       Long memoryCacheSizeInBytes, TemporaryDirectoryFactory temporaryDirectoryFactory) {
+    this(memoryCacheSizeInBytes, () -> new TemporaryDirectoryStorage(temporaryDirectoryFactory));
+  }
+
+  /**
+   * Creates a new factory with an optional in-memory size and a storage factory for overflow.
+   *
+   * @param memoryCacheSizeInBytes how many bytes to keep in memory? If {@code null} then a default
+   *     value will be used
+   * @param diskStorageFactory a factory that creates the storages that data overflows to, for
+   *     instance a {@link MappedFileByteStorageFactory}
+   */
+  public OverflowToDiskByteStorageFactory(
+      @Nullable Long memoryCacheSizeInBytes, ByteStorageFactory diskStorageFactory) {
     this.memoryCacheSizeInBytes = memoryCacheSizeInBytes;
-    this.temporaryDirectoryFactory = temporaryDirectoryFactory;
+    this.diskStorageFactory = diskStorageFactory;
   }
 
   @Override
   public ByteStorage create() throws IOException {
     if (memoryCacheSizeInBytes == null) {
-      return new OverflowToDiskByteStorage(temporaryDirectoryFactory);
+      return new OverflowToDiskByteStorage(diskStorageFactory.create());
     } else {
-      return new OverflowToDiskByteStorage(memoryCacheSizeInBytes, temporaryDirectoryFactory);
+      return new OverflowToDiskByteStorage(memoryCacheSizeInBytes, diskStorageFactory.create());
     }
   }
 }
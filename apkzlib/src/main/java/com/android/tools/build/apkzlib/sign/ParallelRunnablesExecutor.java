@@ -0,0 +1,124 @@
+package com.android.tools.build.apkzlib.sign;
+
+import com.android.apksig.util.RunnablesExecutor;
+import com.android.apksig.util.RunnablesProvider;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * {@link RunnablesExecutor} that runs a fixed number of runnables in parallel and waits for all of
+ * them. The signer uses it to compute APK Signature Scheme v2 chunk digests: every runnable pulls
+ * chunks from a shared supplier until the contents are exhausted, so the parallelism is the number
+ * of threads digesting at once.
+ *
+ * <p>Unlike {@link RunnablesExecutor#MULTI_THREADED}, the parallelism is configurable and a failure
+ * in any runnable is rethrown to the caller instead of leaving it waiting.
+ *
+ * <p>The threads are created on the first call to {@link #execute(RunnablesProvider)} and reused by
+ * later calls until the executor is closed. A {@link SigningExtension} closes the executor of its
+ * {@link SigningOptions} when its zip file is closed.
+ */
+public class ParallelRunnablesExecutor implements RunnablesExecutor, Closeable {
+
+  /** Number of runnables executed in parallel. */
+  private final int parallelism;
+
+  /** Threads running the runnables, {@code null} if not yet created or closed. */
+  @Nullable private ExecutorService pool;
+
+  /** Has the executor been closed? */
+  private boolean closed;
+
+  /**
+   * Creates a new executor.
+   *
+   * @param parallelism number of runnables executed in parallel; {@code 1} runs the single
+   *     runnable in the calling thread
+   */
+  public ParallelRunnablesExecutor(int parallelism) {
+    Preconditions.checkArgument(parallelism > 0, "parallelism <= 0");
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Creates a new executor with one runnable per available processor.
+   *
+   * @return the executor
+   */
+  public static ParallelRunnablesExecutor forAvailableProcessors() {
+    return new ParallelRunnablesExecutor(Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Obtains the number of runnables executed in parallel. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  @Override
+  public void execute(RunnablesProvider provider) {
+    if (parallelism == 1) {
+      provider.createRunnable().run();
+      return;
+    }
+
+    CompletionService<Void> completion = new ExecutorCompletionService<>(getPool());
+    List<Future<Void>> futures = new ArrayList<>(parallelism);
+    try {
+      for (int i = 0; i < parallelism; i++) {
+        futures.add(completion.submit(provider.createRunnable(), null));
+      }
+
+      /*
+       * Wait in completion order, so the first failure is rethrown as soon as it happens and the
+       * remaining runnables are interrupted below.
+       */
+      for (int i = 0; i < parallelism; i++) {
+        completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while signing", e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for (Future<Void> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /** Obtains the pool, creating it on first use. */
+  private synchronized ExecutorService getPool() {
+    Preconditions.checkState(!closed, "Executor closed");
+    if (pool == null) {
+      pool =
+          Executors.newFixedThreadPool(
+              parallelism,
+              new ThreadFactoryBuilder().setNameFormat("apkzlib-sign-%d").setDaemon(true).build());
+    }
+
+    return pool;
+  }
+
+  /** Stops the threads. Runnables still running are interrupted. */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (pool != null) {
+      pool.shutdownNow();
+      pool = null;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.android.apksig.internal.apk.ApkSigningBlockUtils;
 import com.android.apksig.util.DataSink;
 import com.android.apksig.util.DataSource;
 import com.android.apksig.util.DataSources;
+import com.android.apksig.util.RunnablesExecutor;
 import com.android.tools.build.apkzlib.utils.IOExceptionRunnable;
 import com.android.tools.build.apkzlib.utils.SigningBlockUtils;
 import com.android.tools.build.apkzlib.zip.StoredEntry;
@@ -37,8 +38,11 @@ import com.google.common.collect.Iterables;
 import com.google.common.primitives.Bytes;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -100,6 +104,12 @@ public class SigningExtension {
    */
   @Nullable private byte[] cachedApkSigningBlock;
 
+  /**
+   * {@code true} if an APK Signing Block was written in the current update and the v4 signature,
+   * if enabled, must be generated once the update finishes.
+   */
+  private boolean v4SignaturePending;
+
   /**
    * {@code true} if signatures may need to be output, {@code false} if there's no need to output
    * signatures. This is used in an optimization where we don't modify the APK if it's already
@@ -130,7 +140,7 @@ public class SigningExtension {
             .setOtherSignersSignaturesPreserved(false)
             .setV1SigningEnabled(opts.isV1SigningEnabled())
             .setV2SigningEnabled(opts.isV2SigningEnabled())
-            .setV3SigningEnabled(false)
+            .setV3SigningEnabled(opts.isV3SigningEnabled())
             .setCreatedBy("1.0 (Android)")
             .build();
     if (opts.getSdkDependencyData() != null) {
@@ -193,6 +203,11 @@ public class SigningExtension {
             onOutputZipEntriesWritten();
           }
 
+          @Override
+          public void updated() throws IOException {
+            onOutputZipUpdated();
+          }
+
           @Override
           public void closed() {
             onOutputClosed();
@@ -224,7 +239,8 @@ public class SigningExtension {
     }
 
     if ((result.isVerifiedUsingV1Scheme() != options.isV1SigningEnabled())
-        || (result.isVerifiedUsingV2Scheme() != options.isV2SigningEnabled())) {
+        || (result.isVerifiedUsingV2Scheme() != options.isV2SigningEnabled())
+        || (result.isVerifiedUsingV3Scheme() != options.isV3SigningEnabled())) {
       // APK isn't signed with exactly the schemes we want it to be signed
       return false;
     }
@@ -358,21 +374,22 @@ public class SigningExtension {
 
     // Check whether we should output an APK Signing Block which contains v2 signatures
     byte[] apkSigningBlock;
-    byte[] centralDirBytes = zFile.getCentralDirectoryBytes();
-    byte[] eocdBytes = zFile.getEocdBytes();
     ApkSignerEngine.OutputApkSigningBlockRequest2 addV2SignatureRequest;
-    // This event may arrive a second time -- after we write out the APK Signing Block. Thus, we
-    // cache the block to speed things up. The cached block is invalidated by any changes to the
-    // file (as reported to this extension).
+    // The block is inserted with ZFile.moveCentralDirectory, so this event normally arrives once
+    // per update. It may still arrive again if another extension resets the central directory;
+    // the block is cached for that case and invalidated by any changes to the file (as reported
+    // to this extension).
     if (cachedApkSigningBlock != null) {
       apkSigningBlock = cachedApkSigningBlock;
       addV2SignatureRequest = null;
     } else {
-      DataSource centralDir = DataSources.asDataSource(ByteBuffer.wrap(centralDirBytes));
-      DataSource eocd = DataSources.asDataSource(ByteBuffer.wrap(eocdBytes));
+      DataSource centralDir =
+          DataSources.asDataSource(ByteBuffer.wrap(zFile.getCentralDirectoryBytes()));
+      DataSource eocd = DataSources.asDataSource(ByteBuffer.wrap(zFile.getEocdBytes()));
       long zipEntriesSizeBytes =
           zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset();
       DataSource zipEntries = zFile.asDataSource(0, zipEntriesSizeBytes);
+
       try {
         addV2SignatureRequest = signer.outputZipSections2(zipEntries, centralDir, eocd);
       } catch (NoSuchAlgorithmException
@@ -410,19 +427,47 @@ public class SigningExtension {
       cachedApkSigningBlock = apkSigningBlock;
     }
 
-    // Insert the APK Signing Block into the output right before the ZIP Central Directory and
-    // accordingly update the start offset of ZIP Central Directory in ZIP End of Central
-    // Directory.
-    zFile.directWrite(
-        zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset(), apkSigningBlock);
-    zFile.setExtraDirectoryOffset(apkSigningBlock.length);
+    writeApkSigningBlock(apkSigningBlock);
 
     if (addV2SignatureRequest != null) {
       addV2SignatureRequest.done();
     }
   }
 
+  /**
+   * Inserts the APK Signing Block into the output right before the ZIP Central Directory and
+   * accordingly updates the start offset of ZIP Central Directory in ZIP End of Central Directory.
+   * The signing block does not depend on where the central directory is, so the already computed
+   * central directory is moved rather than recomputed.
+   */
+  private void writeApkSigningBlock(byte[] apkSigningBlock) throws IOException {
+    zFile.directWrite(
+        zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset(), apkSigningBlock);
+    zFile.moveCentralDirectory(apkSigningBlock.length);
+    v4SignaturePending = true;
+  }
+
+  /**
+   * Generates the v4 signature, if enabled, once the output with its APK Signing Block is fully
+   * written. The v4 signature covers the whole file and refers to the v2 or v3 signature in the
+   * signing block, so it can't be generated earlier.
+   */
+  private void onOutputZipUpdated() throws IOException {
+    File v4SignatureFile = options.getV4SignatureFile();
+    if (!v4SignaturePending || v4SignatureFile == null) {
+      return;
+    }
+
+    try {
+      signer.signV4(zFile.asDataSource(), v4SignatureFile, /* ignoreFailures */ false);
+    } catch (SignatureException e) {
+      throw new IOException("Failed to generate v4 signature", e);
+    }
+    v4SignaturePending = false;
+  }
+
   private void onOutputClosed() {
+    closeExecutor();
     if (!dirty) {
       return;
     }
@@ -430,6 +475,18 @@ public class SigningExtension {
     dirty = false;
   }
 
+  /** Stops the threads of the digest executor, if it has any, once the file is closed. */
+  private void closeExecutor() {
+    RunnablesExecutor executor = options.getExecutor();
+    if (executor instanceof Closeable) {
+      try {
+        ((Closeable) executor).close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
   private void setDirty() {
     dirty = true;
     cachedApkSigningBlock = null;
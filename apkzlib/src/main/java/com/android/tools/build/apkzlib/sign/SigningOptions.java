@@ -20,6 +20,7 @@ import com.android.apksig.util.RunnablesExecutor;
 import com.google.auto.value.AutoValue;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import java.io.File;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import javax.annotation.Nonnull;
@@ -37,6 +38,8 @@ public abstract class SigningOptions {
         public abstract Builder setCertificates(X509Certificate... certs);
         public abstract Builder setV1SigningEnabled(boolean enabled);
         public abstract Builder setV2SigningEnabled(boolean enabled);
+        public abstract Builder setV3SigningEnabled(boolean enabled);
+        public abstract Builder setV4SignatureFile(@Nullable File file);
         public abstract Builder setMinSdkVersion(int version);
         public abstract Builder setValidation(@Nonnull Validation validation);
         public abstract Builder setExecutor(@Nullable RunnablesExecutor executor);
@@ -50,6 +53,11 @@ public abstract class SigningOptions {
             Preconditions.checkArgument(
                     !options.getCertificates().isEmpty(),
                     "There should be at least one certificate in SigningOptions");
+            Preconditions.checkArgument(
+                    options.getV4SignatureFile() == null
+                            || options.isV2SigningEnabled()
+                            || options.isV3SigningEnabled(),
+                    "v4 signing requires v2 or v3 signing");
             return options;
         }
     }
@@ -58,6 +66,7 @@ public abstract class SigningOptions {
         return new AutoValue_SigningOptions.Builder()
                 .setV1SigningEnabled(false)
                 .setV2SigningEnabled(false)
+                .setV3SigningEnabled(false)
                 .setValidation(Validation.ALWAYS_VALIDATE);
     }
 
@@ -76,12 +85,29 @@ public abstract class SigningOptions {
     /** Shows whether signing with APK Signature Scheme v2 (aka v2 signing) is enabled. */
     public abstract boolean isV2SigningEnabled();
 
+    /** Shows whether signing with APK Signature Scheme v3 (aka v3 signing) is enabled. */
+    public abstract boolean isV3SigningEnabled();
+
+    /**
+     * File receiving the APK Signature Scheme v4 signature (aka v4 signing), an {@code .idsig} file
+     * with the Merkle tree of the output used for incremental installation. {@code null} if v4
+     * signing is disabled. The file is written whenever the signed output changes.
+     */
+    @Nullable
+    public abstract File getV4SignatureFile();
+
     /** Minimum SDK version supported. */
     public abstract int getMinSdkVersion();
 
     /** Strategy of package signature validation */
     public abstract Validation getValidation();
 
+    /**
+     * Executor used to compute the v2 signature digests, for example a {@link
+     * ParallelRunnablesExecutor}. {@code null} keeps the signer's default. An executor that is
+     * {@link java.io.Closeable} is closed when the zip file being signed is closed, so it must not
+     * be shared between files.
+     */
     @Nullable
     public abstract RunnablesExecutor getExecutor();
 
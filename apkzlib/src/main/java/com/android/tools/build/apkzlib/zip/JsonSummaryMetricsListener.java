@@ -0,0 +1,206 @@
+package com.android.tools.build.apkzlib.zip;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link ZFileMetricsListener} that accumulates all metrics it receives and produces a JSON summary
+ * with {@link #toJson()}. The summary contains the totals for direct I/O, spills and update phases,
+ * and the compression results of every entry.
+ */
+public class JsonSummaryMetricsListener implements ZFileMetricsListener {
+
+  /** Compression result of a single entry. */
+  private static class CompressedEntry {
+    final String name;
+    final CompressionMethod method;
+    final long uncompressedSize;
+    final long compressedSize;
+    final long nanos;
+
+    CompressedEntry(
+        String name,
+        CompressionMethod method,
+        long uncompressedSize,
+        long compressedSize,
+        long nanos) {
+      this.name = name;
+      this.method = method;
+      this.uncompressedSize = uncompressedSize;
+      this.compressedSize = compressedSize;
+      this.nanos = nanos;
+    }
+  }
+
+  /** Number of direct reads. */
+  private long directReads;
+
+  /** Number of bytes directly read. */
+  private long bytesRead;
+
+  /** Number of direct writes. */
+  private long directWrites;
+
+  /** Number of bytes directly written. */
+  private long bytesWritten;
+
+  /** Number of spills to disk. */
+  private long spills;
+
+  /** Number of bytes spilled to disk. */
+  private long bytesSpilled;
+
+  /** Total time spent in each update phase. */
+  private final Map<UpdatePhase, Long> phaseNanos = new EnumMap<>(UpdatePhase.class);
+
+  /** All compressed entries, in the order compression finished. */
+  private final List<CompressedEntry> compressedEntries = new ArrayList<>();
+
+  @Override
+  public synchronized void directRead(long bytes) {
+    directReads++;
+    bytesRead += bytes;
+  }
+
+  @Override
+  public synchronized void directWrite(long bytes) {
+    directWrites++;
+    bytesWritten += bytes;
+  }
+
+  @Override
+  public synchronized void entryCompressed(
+      String name,
+      CompressionMethod method,
+      long uncompressedSize,
+      long compressedSize,
+      long nanos) {
+    compressedEntries.add(
+        new CompressedEntry(name, method, uncompressedSize, compressedSize, nanos));
+  }
+
+  @Override
+  public synchronized void spilled(long bytes) {
+    spills++;
+    bytesSpilled += bytes;
+  }
+
+  @Override
+  public synchronized void updatePhaseFinished(UpdatePhase phase, long nanos) {
+    phaseNanos.merge(phase, nanos, Long::sum);
+  }
+
+  /**
+   * Obtains the JSON summary of all metrics received so far.
+   *
+   * @return a JSON object
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"directReads\": ").append(directReads).append(",\n");
+    json.append("  \"bytesRead\": ").append(bytesRead).append(",\n");
+    json.append("  \"directWrites\": ").append(directWrites).append(",\n");
+    json.append("  \"bytesWritten\": ").append(bytesWritten).append(",\n");
+    json.append("  \"spills\": ").append(spills).append(",\n");
+    json.append("  \"bytesSpilled\": ").append(bytesSpilled).append(",\n");
+
+    json.append("  \"updatePhasesMillis\": {");
+    String separator = "\n";
+    for (UpdatePhase phase : UpdatePhase.values()) {
+      json.append(separator);
+      json.append("    \"").append(phase.name().toLowerCase(Locale.ROOT)).append("\": ");
+      json.append(millis(phaseNanos.getOrDefault(phase, 0L)));
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+
+    long totalUncompressed = 0;
+    long totalCompressed = 0;
+    long totalNanos = 0;
+    for (CompressedEntry entry : compressedEntries) {
+      totalUncompressed += entry.uncompressedSize;
+      totalCompressed += entry.compressedSize;
+      totalNanos += entry.nanos;
+    }
+
+    json.append("  \"compression\": {\n");
+    json.append("    \"entries\": ").append(compressedEntries.size()).append(",\n");
+    json.append("    \"uncompressedBytes\": ").append(totalUncompressed).append(",\n");
+    json.append("    \"compressedBytes\": ").append(totalCompressed).append(",\n");
+    json.append("    \"ratio\": ").append(ratio(totalCompressed, totalUncompressed)).append(",\n");
+    json.append("    \"millis\": ").append(millis(totalNanos)).append("\n");
+    json.append("  },\n");
+
+    json.append("  \"compressedEntries\": [");
+    separator = "\n";
+    for (CompressedEntry entry : compressedEntries) {
+      json.append(separator);
+      json.append("    {\"name\": ");
+      appendString(json, entry.name);
+      json.append(", \"method\": \"").append(entry.method.name()).append('"');
+      json.append(", \"uncompressedBytes\": ").append(entry.uncompressedSize);
+      json.append(", \"compressedBytes\": ").append(entry.compressedSize);
+      json.append(", \"ratio\": ").append(ratio(entry.compressedSize, entry.uncompressedSize));
+      json.append(", \"millis\": ").append(millis(entry.nanos));
+      json.append('}');
+      separator = ",\n";
+    }
+    json.append(compressedEntries.isEmpty() ? "]\n" : "\n  ]\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  /**
+   * Obtains a JSON object holding the summaries of several listeners, for example of different zip
+   * files, under the given names.
+   *
+   * @param listeners the listeners by name, in the order they should appear
+   * @return a JSON object
+   */
+  public static String toJson(Map<String, JsonSummaryMetricsListener> listeners) {
+    StringBuilder json = new StringBuilder();
+    json.append('{');
+    String separator = "\n";
+    for (Map.Entry<String, JsonSummaryMetricsListener> listener : listeners.entrySet()) {
+      json.append(separator).append("  ");
+      appendString(json, listener.getKey());
+      json.append(": ");
+      // indent the nested summary, keeping its first line after the key
+      json.append(listener.getValue().toJson().trim().replace("\n", "\n  "));
+      separator = ",\n";
+    }
+    json.append(listeners.isEmpty() ? "}\n" : "\n}\n");
+    return json.toString();
+  }
+
+  /** Formats a duration in nanoseconds as milliseconds. */
+  private static String millis(long nanos) {
+    return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+  }
+
+  /** Formats the ratio between compressed and uncompressed sizes. */
+  private static String ratio(long compressed, long uncompressed) {
+    return String.format(
+        Locale.ROOT, "%.4f", uncompressed == 0 ? 1.0 : (double) compressed / uncompressed);
+  }
+
+  /** Appends a string as a quoted and escaped JSON string. */
+  private static void appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        json.append('\\').append(c);
+      } else if (c < 0x20) {
+        json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+      } else {
+        json.append(c);
+      }
+    }
+    json.append('"');
+  }
+}
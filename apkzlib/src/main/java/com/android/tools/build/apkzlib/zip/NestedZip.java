@@ -14,7 +14,11 @@ public class NestedZip extends ZFile {
     }
 
     public NestedZip(NameCallback name, ZFile target, File src, boolean mayCompress) throws IOException {
-        super(src, new ZFileOptions(), true);
+        this(name, target, src, mayCompress, new ZFileOptions());
+    }
+
+    public NestedZip(NameCallback name, ZFile target, File src, boolean mayCompress, ZFileOptions options) throws IOException {
+        super(src, options, true);
         this.target = target;
         this.entry = target.add(name.getName(this), directOpen(0, directSize()), mayCompress);
     }
@@ -174,7 +174,9 @@ import javax.annotation.Nullable;
  * offset by a fixed amount. This amount can be set using the {@link #setExtraDirectoryOffset(long)}
  * method. Setting a non-zero value will add extra (unused) space in the zip file before the central
  * directory. This value can be changed at any time and it will force the central directory
- * rewritten when the file is updated or closed.
+ * rewritten when the file is updated or closed. Extensions that know the offset only once the
+ * central directory has been computed use {@link #moveCentralDirectory(long)} instead, which moves
+ * it without recomputing it.
  *
  * <p>{@code ZFile} provides an extension mechanism to allow objects to register with the file and
  * be notified when changes to the file happen. This should be used to add extra features to the zip
@@ -332,6 +334,13 @@ public class ZFile implements Closeable {
    */
   private long extraDirectoryOffset;
 
+  /**
+   * Set by {@link #moveCentralDirectory(long)} when the central directory and EOCD were moved but
+   * not yet written at their new location. Forces {@link
+   * #recomputeAndWriteCentralDirectoryAndEocd()} to write them even though they stayed computed.
+   */
+  private boolean centralDirectoryMoved;
+
   /** Should all timestamps be zeroed when reading / writing the zip? */
   private boolean noTimestamps;
 
@@ -353,6 +362,9 @@ public class ZFile implements Closeable {
   /** Verify log to use. */
   private final VerifyLog verifyLog;
 
+  /** Listener receiving I/O and timing metrics. */
+  private final ZFileMetricsListener metrics;
+
   /** Should skip expensive validation? */
   private final boolean skipValidation;
 
@@ -437,6 +449,8 @@ public class ZFile implements Closeable {
     verifyLogFactory = options.getVerifyLogFactory();
     verifyLog = verifyLogFactory.get();
     skipValidation = options.getSkipValidation();
+    metrics = options.getMetricsListener();
+    storage.setSpillListener(metrics::spilled);
 
     /*
      * These two values will be overwritten by openReadOnlyIfClosed() below if the file exists.
@@ -1021,13 +1035,20 @@ public class ZFile implements Closeable {
     /*
      * Process all background stuff before calling in the extensions.
      */
+    long phaseStart = System.nanoTime();
     processAllReadyEntriesWithWait();
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.COMPRESSION_WAIT, System.nanoTime() - phaseStart);
+
+    phaseStart = System.nanoTime();
     notify(ZFileExtension::beforeUpdate);
 
     /*
      * Process all background stuff that may be leftover by the extensions.
      */
     processAllReadyEntriesWithWait();
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.EXTENSIONS, System.nanoTime() - phaseStart);
 
     if (dirty) {
       writeAllFilesToZip();
@@ -1051,11 +1072,14 @@ public class ZFile implements Closeable {
     // Regardless of whether the zip was dirty or not, we're sure it isn't now.
     dirty = false;
 
+    phaseStart = System.nanoTime();
     notify(
         ext -> {
           ext.updated();
           return null;
         });
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.EXTENSIONS, System.nanoTime() - phaseStart);
   }
 
   /**
@@ -1071,11 +1095,16 @@ public class ZFile implements Closeable {
      * empty spaces or sort. If we sort, we don't need to repack as sorting forces the
      * zip file to be as compact as possible.
      */
+    long phaseStart = System.nanoTime();
     if (autoSortFiles) {
       sortZipContents();
     } else {
       packIfNecessary();
     }
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.PACK, System.nanoTime() - phaseStart);
+
+    phaseStart = System.nanoTime();
 
     /*
      * We're going to change the file so delete the central directory and the EOCD as they
@@ -1209,6 +1238,9 @@ public class ZFile implements Closeable {
         writeEntry(entry, fileUseMapEntry.getStart(), chunk);
       }
     }
+
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.WRITE, System.nanoTime() - phaseStart);
   }
 
   /**
@@ -1224,6 +1256,8 @@ public class ZFile implements Closeable {
     boolean changedAnything = false;
     boolean hasCentralDirectory;
     int extensionBugDetector = MAXIMUM_EXTENSION_CYCLE_COUNT;
+    long phaseStart = System.nanoTime();
+    long extensionNanos = 0;
     do {
       // Try to compute the central directory and EOCD. Computing the central directory may end
       // with directoryEntry == null if there are no entries in the zip.
@@ -1243,11 +1277,18 @@ public class ZFile implements Closeable {
 
       hasCentralDirectory = (directoryEntry != null);
 
+      long extensionStart = System.nanoTime();
       notify(
           ext -> {
             ext.entriesWritten();
             return null;
           });
+      extensionNanos += System.nanoTime() - extensionStart;
+
+      if (centralDirectoryMoved) {
+        centralDirectoryMoved = false;
+        changedAnything = true;
+      }
 
       if ((--extensionBugDetector) == 0) {
         throw new IOException(
@@ -1260,6 +1301,11 @@ public class ZFile implements Closeable {
       appendCentralDirectory();
       appendEocd();
     }
+
+    metrics.updatePhaseFinished(ZFileMetricsListener.UpdatePhase.EXTENSIONS, extensionNanos);
+    metrics.updatePhaseFinished(
+        ZFileMetricsListener.UpdatePhase.CENTRAL_DIRECTORY_AND_EOCD,
+        System.nanoTime() - phaseStart - extensionNanos);
   }
 
   /**
@@ -1787,6 +1833,10 @@ public class ZFile implements Closeable {
     return new NestedZip(name, this, src, mayCompress);
   }
 
+  public NestedZip addNestedZip(NestedZip.NameCallback name, File src, boolean mayCompress, ZFileOptions options) throws IOException {
+    return new NestedZip(name, this, src, mayCompress, options);
+  }
+
 
   /**
    * Adds a {@link StoredEntry} to the zip. The entry is not immediately added to {@link #entries}
@@ -1859,12 +1909,19 @@ public class ZFile implements Closeable {
       CentralDirectoryHeader newFileData)
       throws IOException {
     if (mayCompress) {
+      long compressStart = System.nanoTime();
       ListenableFuture<CompressionResult> result = compressor.compress(source, storage);
       Futures.addCallback(
           result,
           new FutureCallback<CompressionResult>() {
             @Override
             public void onSuccess(CompressionResult result) {
+              metrics.entryCompressed(
+                  newFileData.getName(),
+                  result.getCompressionMethod(),
+                  newFileData.getUncompressedSize(),
+                  result.getSize(),
+                  System.nanoTime() - compressStart);
               compressInfo.set(
                   new CentralDirectoryHeaderCompressInfo(
                       newFileData, result.getCompressionMethod(), result.getSize()));
@@ -2389,6 +2446,7 @@ public class ZFile implements Closeable {
 
     raf.seek(offset);
     raf.write(data, start, count);
+    metrics.directWrite(count);
   }
 
   /**
@@ -2465,7 +2523,9 @@ public class ZFile implements Closeable {
     }
 
     raf.seek(offset);
-    return raf.getChannel().read(dest);
+    int read = raf.getChannel().read(dest);
+    metrics.directRead(Math.max(read, 0));
+    return read;
   }
 
   /**
@@ -2515,6 +2575,7 @@ public class ZFile implements Closeable {
     }
 
     FileChannel fileChannel = raf.getChannel();
+    int total = dest.remaining();
     while (dest.hasRemaining()) {
       fileChannel.position(offset);
       int chunkSize = fileChannel.read(dest);
@@ -2523,6 +2584,7 @@ public class ZFile implements Closeable {
       }
       offset += chunkSize;
     }
+    metrics.directRead(total);
   }
 
   /**
@@ -2760,6 +2822,48 @@ public class ZFile implements Closeable {
     }
   }
 
+  /**
+   * Sets an extra offset for the central directory while the central directory and EOCD are being
+   * written, that is, from {@link ZFileExtension#entriesWritten()}. Unlike {@link
+   * #setExtraDirectoryOffset(long)}, the computed central directory is moved rather than discarded:
+   * its contents do not depend on where it is written, so only the EOCD is recomputed. Both are
+   * written at their new location once the extensions have been notified, even if they had been
+   * read from an existing file. Since the central directory and EOCD stay computed, extensions are
+   * not notified again; the caller must be the only extension that depends on the offset.
+   *
+   * <p>This allows an extension that inserts data before the central directory, such as an APK
+   * Signing Block, to compute that data once and have the central directory written once.
+   *
+   * @param offset the offset or {@code 0} to write the central directory right after the entries
+   * @throws IOException failed to compute the EOCD
+   * @throws IllegalStateException if file is in read-only mode or the EOCD has not been computed
+   */
+  public void moveCentralDirectory(long offset) throws IOException {
+    checkNotInReadOnlyMode();
+    Preconditions.checkArgument(offset >= 0, "offset < 0");
+    Preconditions.checkState(eocdEntry != null, "eocdEntry == null");
+
+    if (extraDirectoryOffset == offset) {
+      return;
+    }
+
+    CentralDirectory directory = directoryEntry == null ? null : directoryEntry.getStore();
+    deleteDirectoryAndEocd();
+    map.truncate();
+    extraDirectoryOffset = offset;
+
+    long directoryOffset = map.size() + extraDirectoryOffset;
+    long directorySize = directory == null ? 0 : directory.toBytes().length;
+    map.extend(directoryOffset + directorySize);
+    if (directory != null && directorySize > 0) {
+      directoryEntry = map.add(directoryOffset, directoryOffset + directorySize, directory);
+    }
+
+    computeEocd();
+    centralDirectoryMoved = true;
+    dirty = true;
+  }
+
   /**
    * Obtains the extra offset for the central directory. See class description for details.
    *
@@ -90,7 +90,8 @@ public abstract class ZFileExtension {
    * directory and the EOCD have not yet been written. No entries should be added, removed or
    * updated during this notification. If this method forces an update of either the central
    * directory or EOCD, then this method will be invoked again for all extensions with the new
-   * central directory and EOCD.
+   * central directory and EOCD. Moving the central directory with {@link
+   * ZFile#moveCentralDirectory(long)} does not count as such an update.
    *
    * <p>After this notification, {@link #updated()} is sent.
    *
@@ -0,0 +1,77 @@
+package com.android.tools.build.apkzlib.zip;
+
+/**
+ * Listener receiving I/O and timing metrics from a {@link ZFile}. A listener is set in {@link
+ * ZFileOptions#setMetricsListener(ZFileMetricsListener)} and receives events from every {@link
+ * ZFile} created with those options.
+ *
+ * <p>Compression may run in the background, so {@link #entryCompressed(String, CompressionMethod,
+ * long, long, long)} may be invoked from any thread. All other methods are invoked from the thread
+ * using the {@link ZFile}. All methods do nothing by default.
+ */
+public interface ZFileMetricsListener {
+
+  /** Phases of {@link ZFile#update()} that are timed separately. */
+  enum UpdatePhase {
+    /** Waiting for entries still being compressed in the background. */
+    COMPRESSION_WAIT,
+
+    /** Sorting or packing entries before writing. */
+    PACK,
+
+    /** Writing entry data to the file. */
+    WRITE,
+
+    /** Computing and writing the central directory and EOCD. */
+    CENTRAL_DIRECTORY_AND_EOCD,
+
+    /** Notifying extensions, including any work they do such as signing. */
+    EXTENSIONS,
+  }
+
+  /**
+   * Data has been read directly from the zip file.
+   *
+   * @param bytes the number of bytes read
+   */
+  default void directRead(long bytes) {}
+
+  /**
+   * Data has been written directly to the zip file.
+   *
+   * @param bytes the number of bytes written
+   */
+  default void directWrite(long bytes) {}
+
+  /**
+   * An entry has been compressed.
+   *
+   * @param name the name of the entry
+   * @param method the compression method chosen for the entry
+   * @param uncompressedSize the size of the entry's data
+   * @param compressedSize the size of the entry's data as stored in the zip
+   * @param nanos the time from submitting the entry to the compressor until compression finished
+   */
+  default void entryCompressed(
+      String name,
+      CompressionMethod method,
+      long uncompressedSize,
+      long compressedSize,
+      long nanos) {}
+
+  /**
+   * Data kept in memory by the zip's storage has been moved to disk.
+   *
+   * @param bytes the number of bytes moved
+   */
+  default void spilled(long bytes) {}
+
+  /**
+   * A phase of {@link ZFile#update()} has finished. A phase may be reported more than once per
+   * update.
+   *
+   * @param phase the phase
+   * @param nanos the time spent in the phase
+   */
+  default void updatePhaseFinished(UpdatePhase phase, long nanos) {}
+}
@@ -64,6 +64,9 @@ public class ZFileOptions {
    */
   private boolean alwaysGenerateJarManifest;
 
+  /** Listener receiving I/O and timing metrics. */
+  private ZFileMetricsListener metricsListener;
+
   /** Creates a new options object. All options are set to their defaults. */
   public ZFileOptions() {
     storageFactory =
@@ -72,6 +75,7 @@ public class ZFileOptions {
     compressor = new DeflateExecutionCompressor(Runnable::run, Deflater.DEFAULT_COMPRESSION);
     alignmentRule = AlignmentRules.compose();
     verifyLogFactory = VerifyLogs::devNull;
+    metricsListener = new ZFileMetricsListener() {};
 
     // We set this to true because many utilities stream the zip and expect no space between entries
     // in the zip file.
@@ -257,4 +261,24 @@ public class ZFileOptions {
   public boolean getAlwaysGenerateJarManifest() {
     return alwaysGenerateJarManifest;
   }
+
+  /**
+   * Obtains the metrics listener. By default, the listener ignores all metrics.
+   *
+   * @return the metrics listener
+   */
+  public ZFileMetricsListener getMetricsListener() {
+    return metricsListener;
+  }
+
+  /**
+   * Sets the listener that receives I/O and timing metrics of all {@link ZFile}s created with these
+   * options.
+   *
+   * @param metricsListener the metrics listener
+   */
+  public ZFileOptions setMetricsListener(ZFileMetricsListener metricsListener) {
+    this.metricsListener = metricsListener;
+    return this;
+  }
 }
@@ -0,0 +1,178 @@
+package com.android.tools.build.apkzlib.bytestorage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.tools.build.apkzlib.zip.utils.CloseableByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileByteStorageTest {
+
+  private final Random random = new Random(0);
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("mapped").toFile();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  /** Creates storages whose temporary directories are subdirectories of {@link #dir}. */
+  private MappedFileByteStorage newStorage() throws IOException {
+    return new MappedFileByteStorage(
+        () -> {
+          File directory = Files.createTempDirectory(dir.toPath(), "storage").toFile();
+          TemporaryFile temporary = new TemporaryFile(directory);
+          return new TemporaryDirectory() {
+            @Override
+            public File newFile() throws IOException {
+              return Files.createTempFile(directory.toPath(), "temp_", ".data").toFile();
+            }
+
+            @Override
+            public File getDirectory() {
+              return directory;
+            }
+
+            @Override
+            public void close() throws IOException {
+              temporary.close();
+            }
+          };
+        });
+  }
+
+  @Test
+  public void sourcesSpanningRegionsAreReadBack() throws IOException {
+    try (MappedFileByteStorage storage = newStorage()) {
+      // larger than a 16 MiB region, so the data is split over extents of several regions
+      byte[] large = data(20 * 1024 * 1024 + 123);
+      byte[] small = data(1000);
+      try (CloseableByteSource largeSource = storage.fromStream(new ByteArrayInputStream(large));
+          CloseableByteSource smallSource = storage.fromStream(new ByteArrayInputStream(small))) {
+        assertArrayEquals(large, largeSource.read());
+        assertArrayEquals(small, smallSource.read());
+        assertArrayEquals(
+            slice(large, 16 * 1024 * 1024 - 10, 20),
+            largeSource.slice(16 * 1024 * 1024 - 10, 20).read());
+        assertEquals(large.length + small.length, storage.getBytesUsed());
+      }
+
+      assertEquals(0, storage.getBytesUsed());
+    }
+  }
+
+  @Test
+  public void freedBlocksAreReused() throws IOException {
+    try (MappedFileByteStorage storage = newStorage()) {
+      for (int i = 0; i < 10; i++) {
+        byte[] data = data(4 * 1024 * 1024);
+        try (CloseableByteSource source = storage.fromStream(new ByteArrayInputStream(data))) {
+          assertArrayEquals(data, source.read());
+        }
+      }
+
+      assertEquals(16 * 1024 * 1024, storage.getMappedBytes());
+    }
+  }
+
+  @Test
+  public void overflowingSourcesAreMovedToTheScratchFile() throws IOException {
+    MappedFileByteStorage diskStorage = newStorage();
+    List<CloseableByteSource> sources = new ArrayList<>();
+    List<byte[]> contents = new ArrayList<>();
+    try (OverflowToDiskByteStorage storage = new OverflowToDiskByteStorage(100_000, diskStorage)) {
+      for (int i = 0; i < 8; i++) {
+        byte[] data = data(60_000);
+        contents.add(data);
+        sources.add(storage.fromStream(new ByteArrayInputStream(data)));
+      }
+
+      assertTrue(storage.getMemoryBytesUsed() <= 100_000);
+      assertTrue(storage.getDiskBytesUsed() >= 7 * 60_000 - 100_000);
+      for (int i = 0; i < sources.size(); i++) {
+        assertArrayEquals(contents.get(i), sources.get(i).read());
+      }
+
+      for (CloseableByteSource source : sources) {
+        source.close();
+      }
+
+      assertEquals(0, storage.getDiskBytesUsed());
+    }
+
+    assertTrue(diskStorage.isReleased());
+    assertDirEmpty();
+  }
+
+  @Test
+  public void sourcesStayReadableAfterClose() throws IOException {
+    byte[] first = data(100_000);
+    byte[] second = data(200_000);
+    MappedFileByteStorage storage = newStorage();
+    CloseableByteSource firstSource = storage.fromStream(new ByteArrayInputStream(first));
+    CloseableByteSource secondSource = storage.fromStream(new ByteArrayInputStream(second));
+    storage.close();
+
+    // the scratch file must neither be unmapped nor deleted while sources are open
+    assertFalse(storage.isReleased());
+    assertArrayEquals(first, firstSource.read());
+    firstSource.close();
+    assertFalse(storage.isReleased());
+    assertArrayEquals(second, secondSource.read());
+
+    secondSource.close();
+    assertTrue(storage.isReleased());
+    assertDirEmpty();
+  }
+
+  @Test
+  public void closingWithoutOpenSourcesDeletesTheScratchFile() throws IOException {
+    MappedFileByteStorage storage = newStorage();
+    try (CloseableByteSource source = storage.fromStream(new ByteArrayInputStream(data(10)))) {
+      assertEquals(1, dir.listFiles().length);
+    }
+
+    storage.close();
+    storage.close();
+
+    assertTrue(storage.isReleased());
+    assertDirEmpty();
+  }
+
+  private byte[] data(int size) {
+    byte[] data = new byte[size];
+    random.nextBytes(data);
+    return data;
+  }
+
+  private static byte[] slice(byte[] data, int offset, int length) {
+    byte[] slice = new byte[length];
+    System.arraycopy(data, offset, slice, 0, length);
+    return slice;
+  }
+
+  private void assertDirEmpty() {
+    assertArrayEquals(new File[0], dir.listFiles());
+  }
+}
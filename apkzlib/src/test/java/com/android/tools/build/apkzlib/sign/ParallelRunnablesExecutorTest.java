@@ -0,0 +1,199 @@
+package com.android.tools.build.apkzlib.sign;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class ParallelRunnablesExecutorTest {
+
+  @Test
+  public void singleRunnableRunsOnCallingThread() {
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    AtomicInteger created = new AtomicInteger();
+
+    new ParallelRunnablesExecutor(1)
+        .execute(
+            () -> {
+              created.incrementAndGet();
+              return () -> threads.add(Thread.currentThread());
+            });
+
+    assertEquals(1, created.get());
+    assertEquals(Set.of(Thread.currentThread()), threads);
+  }
+
+  @Test
+  public void runsAllRunnablesConcurrentlyAndWaitsForThem() {
+    int parallelism = 4;
+    // every runnable waits for all others to start, so this only passes if they run at once
+    CountDownLatch started = new CountDownLatch(parallelism);
+    AtomicInteger finished = new AtomicInteger();
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+    new ParallelRunnablesExecutor(parallelism)
+        .execute(
+            () ->
+                () -> {
+                  threads.add(Thread.currentThread());
+                  started.countDown();
+                  try {
+                    assertTrue(started.await(10, TimeUnit.SECONDS));
+                    Thread.sleep(50);
+                  } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                  }
+                  finished.incrementAndGet();
+                });
+
+    assertEquals(parallelism, finished.get());
+    assertEquals(parallelism, threads.size());
+    assertTrue(!threads.contains(Thread.currentThread()));
+  }
+
+  @Test
+  public void chunksSharedThroughProviderAreAllProcessed() {
+    int chunks = 1000;
+    AtomicInteger nextChunk = new AtomicInteger();
+    boolean[] processed = new boolean[chunks];
+
+    new ParallelRunnablesExecutor(3)
+        .execute(
+            () ->
+                () -> {
+                  int chunk;
+                  while ((chunk = nextChunk.getAndIncrement()) < chunks) {
+                    processed[chunk] = true;
+                  }
+                });
+
+    // execute() returning happens-after every runnable, so their writes are visible here
+    for (int i = 0; i < chunks; i++) {
+      assertTrue("chunk " + i, processed[i]);
+    }
+  }
+
+  @Test
+  public void failureIsRethrownUnwrapped() {
+    IllegalStateException failure = new IllegalStateException("digest failed");
+    AtomicInteger created = new AtomicInteger();
+
+    IllegalStateException thrown =
+        assertThrows(
+            IllegalStateException.class,
+            () ->
+                new ParallelRunnablesExecutor(3)
+                    .execute(
+                        () -> {
+                          if (created.getAndIncrement() == 1) {
+                            return () -> {
+                              throw failure;
+                            };
+                          }
+                          return () -> {};
+                        }));
+
+    assertSame(failure, thrown);
+  }
+
+  @Test
+  public void failureIsRethrownWithoutWaitingForOtherRunnables() {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger created = new AtomicInteger();
+
+    try {
+      assertThrows(
+          IllegalStateException.class,
+          () ->
+              new ParallelRunnablesExecutor(2)
+                  .execute(
+                      () -> {
+                        if (created.getAndIncrement() == 0) {
+                          // the first runnable only finishes once released or interrupted
+                          return () -> {
+                            try {
+                              release.await();
+                            } catch (InterruptedException e) {
+                              Thread.currentThread().interrupt();
+                            }
+                          };
+                        }
+                        return () -> {
+                          throw new IllegalStateException();
+                        };
+                      }));
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void errorIsRethrown() {
+    AssertionError error = new AssertionError("boom");
+
+    AssertionError thrown =
+        assertThrows(
+            AssertionError.class,
+            () ->
+                new ParallelRunnablesExecutor(2)
+                    .execute(
+                        () ->
+                            () -> {
+                              throw error;
+                            }));
+
+    assertSame(error, thrown);
+  }
+
+  @Test
+  public void threadsAreReusedUntilClosed() throws InterruptedException {
+    Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    ParallelRunnablesExecutor executor = new ParallelRunnablesExecutor(2);
+    for (int i = 0; i < 5; i++) {
+      executor.execute(() -> () -> threads.add(Thread.currentThread()));
+    }
+
+    assertTrue(threads.size() <= 2);
+
+    executor.close();
+    for (Thread thread : threads) {
+      thread.join(10_000);
+      assertFalse(thread.isAlive());
+    }
+    assertThrows(IllegalStateException.class, () -> executor.execute(() -> () -> {}));
+  }
+
+  @Test
+  public void executorIsUsableAfterAFailure() {
+    ParallelRunnablesExecutor executor = new ParallelRunnablesExecutor(2);
+    try {
+      assertThrows(
+          IllegalStateException.class,
+          () ->
+              executor.execute(
+                  () ->
+                      () -> {
+                        throw new IllegalStateException();
+                      }));
+
+      AtomicInteger ran = new AtomicInteger();
+      executor.execute(() -> ran::incrementAndGet);
+      assertEquals(2, ran.get());
+    } finally {
+      executor.close();
+    }
+  }
+
+  @Test
+  public void rejectsNonPositiveParallelism() {
+    assertThrows(IllegalArgumentException.class, () -> new ParallelRunnablesExecutor(0));
+  }
+}
@@ -0,0 +1,151 @@
+package com.android.tools.build.apkzlib.zip;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ZFile#moveCentralDirectory(long)} the way the signing extension uses it: a block is
+ * written in place of the central directory and the central directory is moved after it.
+ */
+public class ZFileMoveCentralDirectoryTest {
+
+  private File dir;
+  private File zip;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("zfile").toFile();
+    zip = new File(dir, "test.zip");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    try (Stream<Path> paths = Files.walk(dir.toPath())) {
+      paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+  }
+
+  @Test
+  public void blockInsertedWhenCreatingZip() throws IOException {
+    try (ZFile zFile = ZFile.openReadWrite(zip)) {
+      addEntries(zFile);
+      zFile.addZFileExtension(new BlockWriter(zFile, block(4096, (byte) 'a')));
+    }
+
+    assertZip(block(4096, (byte) 'a'));
+  }
+
+  @Test
+  public void blockReplacedInPlaceInExistingZip() throws IOException {
+    try (ZFile zFile = ZFile.openReadWrite(zip)) {
+      addEntries(zFile);
+    }
+
+    // insert, then replace with a smaller, an equally sized and a larger block without changing
+    // any entry, as when re-signing an already signed zip
+    byte[][] blocks = {
+      block(4096, (byte) 'a'),
+      block(1024, (byte) 'b'),
+      block(1024, (byte) 'c'),
+      block(8192, (byte) 'd'),
+    };
+    for (byte[] block : blocks) {
+      try (ZFile zFile = ZFile.openReadWrite(zip)) {
+        zFile.addZFileExtension(new BlockWriter(zFile, block));
+      }
+      assertZip(block);
+    }
+  }
+
+  @Test
+  public void blockReplacedInExistingZipWithChangedEntries() throws IOException {
+    try (ZFile zFile = ZFile.openReadWrite(zip)) {
+      addEntries(zFile);
+      zFile.add("extra", new ByteArrayInputStream("to be removed".getBytes(UTF_8)));
+      zFile.addZFileExtension(new BlockWriter(zFile, block(4096, (byte) 'a')));
+    }
+
+    try (ZFile zFile = ZFile.openReadWrite(zip)) {
+      StoredEntry extra = zFile.get("extra");
+      assertNotNull(extra);
+      extra.delete();
+      zFile.addZFileExtension(new BlockWriter(zFile, block(2048, (byte) 'b')));
+    }
+
+    assertZip(block(2048, (byte) 'b'));
+  }
+
+  private static void addEntries(ZFile zFile) throws IOException {
+    zFile.add("first", stream("first contents"));
+    zFile.add("second", stream("second contents"));
+  }
+
+  private static InputStream stream(String contents) {
+    return new ByteArrayInputStream(contents.getBytes(UTF_8));
+  }
+
+  private static byte[] block(int size, byte value) {
+    byte[] block = new byte[size];
+    Arrays.fill(block, value);
+    return block;
+  }
+
+  /** Checks that the zip holds the entries and {@code block} right before its central directory. */
+  private void assertZip(byte[] block) throws IOException {
+    try (ZFile zFile = ZFile.openReadOnly(zip)) {
+      assertEquals(2, zFile.entries().size());
+      assertArrayEquals("first contents".getBytes(UTF_8), zFile.get("first").read());
+      assertArrayEquals("second contents".getBytes(UTF_8), zFile.get("second").read());
+      assertEquals(block.length, zFile.getExtraDirectoryOffset());
+
+      byte[] written = new byte[block.length];
+      zFile.directFullyRead(zFile.getCentralDirectoryOffset() - block.length, written);
+      assertArrayEquals(block, written);
+      assertEquals(
+          zFile.getCentralDirectoryOffset()
+              + zFile.getCentralDirectoryBytes().length
+              + zFile.getEocdBytes().length,
+          zip.length());
+    }
+
+    // also readable by an independent zip implementation
+    try (ZipFile zipFile = new ZipFile(zip)) {
+      assertEquals(2, zipFile.size());
+      assertNotNull(zipFile.getEntry("first"));
+      assertNotNull(zipFile.getEntry("second"));
+    }
+  }
+
+  /** Writes a block before the central directory once per update, like the signing extension. */
+  private static class BlockWriter extends ZFileExtension {
+    private final ZFile zFile;
+    private final byte[] block;
+
+    BlockWriter(ZFile zFile, byte[] block) {
+      this.zFile = zFile;
+      this.block = block;
+    }
+
+    @Override
+    public void entriesWritten() throws IOException {
+      zFile.directWrite(zFile.getCentralDirectoryOffset() - zFile.getExtraDirectoryOffset(), block);
+      zFile.moveCentralDirectory(block.length);
+    }
+  }
+}
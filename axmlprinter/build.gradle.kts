@@ -10,4 +10,24 @@ plugins {
 java {
     sourceCompatibility = androidSourceCompatibility
     targetCompatibility = androidTargetCompatibility
+    sourceSets {
+        create("jmh") {
+            compileClasspath += main.get().output + test.get().output
+            runtimeClasspath += main.get().output + test.get().output
+        }
+    }
+}
+
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.36")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.36")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks, passing -PjmhArgs to the JMH runner"
+    group = "verification"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    args((findProperty("jmhArgs") as String?)?.split(' ') ?: emptyList<String>())
 }
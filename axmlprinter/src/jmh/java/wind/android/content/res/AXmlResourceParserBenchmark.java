@@ -0,0 +1,95 @@
+package wind.android.content.res;
+
+import static wind.android.content.res.BinaryXmlBuilder.ANDROID;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import wind.android.util.TypedValue;
+import wind.v1.XmlPullParser;
+
+/**
+ * Compares parsing a binary manifest through the stream mode of
+ * {@link IntReader}, one read() per byte, with the buffer mode and its bulk
+ * int reads. Run with {@code ./gradlew :axmlprinter:jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AXmlResourceParserBenchmark {
+
+    /**
+     * Number of activity elements of the manifest.
+     */
+    @Param({"10", "3000"})
+    public int activities;
+
+    private byte[] manifest;
+
+    @Setup
+    public void setUp() {
+        var xml = new BinaryXmlBuilder(false, new String[] {"label", "name", "exported"},
+                new int[] {0x01010001, 0x01010003, 0x01010010});
+        int label = xml.mapped("label");
+        int name = xml.mapped("name");
+        int exported = xml.mapped("exported");
+        xml.startNamespace("android", ANDROID);
+        xml.startTag("manifest", xml.stringAttribute(null, xml.string("package"), "org.example"));
+        xml.startTag("application", xml.stringAttribute(ANDROID, label, "Example"));
+        for (int i = 0; i != activities; ++i) {
+            xml.startTag("activity",
+                    xml.stringAttribute(ANDROID, name, "org.example.Activity" + i),
+                    xml.intAttribute(ANDROID, exported, TypedValue.TYPE_INT_BOOLEAN, 0));
+            xml.endTag("activity");
+        }
+        xml.endTag("application");
+        xml.endTag("manifest");
+        xml.endNamespace("android", ANDROID);
+        manifest = xml.build();
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws Exception {
+        var parser = new AXmlResourceParser();
+        parser.open(new ByteArrayInputStream(manifest));
+        parse(parser, blackhole);
+    }
+
+    @Benchmark
+    public void buffer(Blackhole blackhole) throws Exception {
+        var parser = new AXmlResourceParser();
+        parser.open(manifest);
+        parse(parser, blackhole);
+    }
+
+    private static void parse(AXmlResourceParser parser, Blackhole blackhole) throws Exception {
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+            blackhole.consume(parser.getName());
+            for (int i = 0; i != parser.getAttributeCount(); ++i) {
+                blackhole.consume(parser.getAttributeNameResource(i));
+                blackhole.consume(parser.getAttributeValue(i));
+            }
+        }
+        parser.close();
+    }
+}
@@ -0,0 +1,547 @@
+package wind.android.content.res;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import wind.android.util.TypedValue;
+
+/**
+ * Edits a binary xml document at the chunk level.
+ *
+ * The document is split into its string pool, resource map and the raw node
+ * chunks. Edits append strings to the pool, patch attribute values of start
+ * tag chunks in place and splice new element chunks between the existing ones,
+ * so nothing is decoded that is not edited and every other chunk is written
+ * back byte for byte.
+ *
+ * Attribute names bound to a resource id have to be indexed by the resource
+ * map, which only covers the first strings of the pool. A new such name is
+ * therefore inserted right after the mapped strings, and every string
+ * reference behind it is shifted.
+ */
+public class AXmlEditor {
+
+    public static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private static final int CHUNK_AXML_FILE = 0x0003;
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_RESOURCE_IDS = 0x0180;
+    private static final int CHUNK_XML_START_NAMESPACE = 0x0100;
+    private static final int CHUNK_XML_END_NAMESPACE = 0x0101;
+    private static final int CHUNK_XML_START_TAG = 0x0102;
+    private static final int CHUNK_XML_END_TAG = 0x0103;
+    private static final int CHUNK_XML_TEXT = 0x0104;
+
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_START = 20;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int SORTED_FLAG = 0x00000001;
+    private static final int UTF8_FLAG = 0x00000100;
+    private static final int NO_ENTRY = -1;
+
+    /**
+     * Value of an attribute.
+     */
+    public static final class Value {
+        final int m_type;
+        final int m_data;
+        final String m_string;
+
+        private Value(int type, int data, String string) {
+            m_type = type;
+            m_data = data;
+            m_string = string;
+        }
+
+        public static Value string(String value) {
+            return new Value(TypedValue.TYPE_STRING, 0, value);
+        }
+
+        public static Value bool(boolean value) {
+            return new Value(TypedValue.TYPE_INT_BOOLEAN, value ? -1 : 0, null);
+        }
+
+        public static Value integer(int value) {
+            return new Value(TypedValue.TYPE_INT_DEC, value, null);
+        }
+    }
+
+    /**
+     * Attribute to set on an element.
+     */
+    public static final class Attribute {
+        final String m_namespace;
+        final String m_name;
+        final int m_resourceId;
+        final Value m_value;
+
+        /**
+         * @param namespace namespace uri of the attribute, or null.
+         * @param resourceId resource id of the attribute name, or 0 if the
+         *        attribute is not a framework attribute.
+         */
+        public Attribute(String namespace, String name, int resourceId, Value value) {
+            m_namespace = namespace;
+            m_name = name;
+            m_resourceId = resourceId;
+            m_value = value;
+        }
+
+        /**
+         * Attribute in the android namespace.
+         */
+        public static Attribute android(String name, int resourceId, Value value) {
+            return new Attribute(ANDROID_NAMESPACE, name, resourceId, value);
+        }
+    }
+
+    private int m_poolFlags;
+    private final List<byte[]> m_strings = new ArrayList<>();
+    private int[] m_styleOffsets = new int[0];
+    private int[] m_styles = new int[0];
+    private int[] m_resourceIds = new int[0];
+    private final List<byte[]> m_nodes = new ArrayList<>();
+
+    public AXmlEditor(byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || buffer.getShort(0) != CHUNK_AXML_FILE) {
+            throw new IOException("Not a binary xml file.");
+        }
+        int end = Math.min(buffer.getInt(4), data.length);
+        int offset = buffer.getShort(2) & 0xffff;
+        while (offset + 8 <= end) {
+            int type = buffer.getShort(offset) & 0xffff;
+            int size = buffer.getInt(offset + 4);
+            if (size < 8 || size > end - offset) {
+                throw new IOException("Bad chunk size " + size + " at offset " + offset + ".");
+            }
+            if (type == CHUNK_STRING_POOL && m_nodes.isEmpty()) {
+                readStringPool(buffer, offset, size);
+            } else if (type == CHUNK_RESOURCE_IDS && m_nodes.isEmpty()) {
+                int headerSize = buffer.getShort(offset + 2) & 0xffff;
+                m_resourceIds = new int[(size - headerSize) / 4];
+                for (int i = 0; i != m_resourceIds.length; ++i) {
+                    m_resourceIds[i] = buffer.getInt(offset + headerSize + i * 4);
+                }
+            } else {
+                m_nodes.add(Arrays.copyOfRange(data, offset, offset + size));
+            }
+            offset += size;
+        }
+    }
+
+    private void readStringPool(ByteBuffer buffer, int offset, int size) throws IOException {
+        int headerSize = buffer.getShort(offset + 2) & 0xffff;
+        int stringCount = buffer.getInt(offset + 8);
+        int styleCount = buffer.getInt(offset + 12);
+        m_poolFlags = buffer.getInt(offset + 16);
+        int stringsStart = offset + buffer.getInt(offset + 20);
+        int stylesStart = buffer.getInt(offset + 24);
+        boolean utf8 = (m_poolFlags & UTF8_FLAG) != 0;
+
+        int offsets = offset + headerSize;
+        for (int i = 0; i != stringCount; ++i) {
+            int start = stringsStart + buffer.getInt(offsets + i * 4);
+            int length = utf8 ? utf8EntryLength(buffer, start) : utf16EntryLength(buffer, start);
+            if (start + length > offset + size) {
+                throw new IOException("String " + i + " is out of the pool.");
+            }
+            byte[] entry = new byte[length];
+            buffer.position(start);
+            buffer.get(entry);
+            m_strings.add(entry);
+        }
+        m_styleOffsets = new int[styleCount];
+        for (int i = 0; i != styleCount; ++i) {
+            m_styleOffsets[i] = buffer.getInt(offsets + (stringCount + i) * 4);
+        }
+        if (stylesStart != 0) {
+            m_styles = new int[(size - stylesStart) / 4];
+            for (int i = 0; i != m_styles.length; ++i) {
+                m_styles[i] = buffer.getInt(offset + stylesStart + i * 4);
+            }
+        }
+    }
+
+    /**
+     * Sets an attribute on the first element named {@code tag}, replacing the
+     * value of the attribute if the element already has it.
+     */
+    public void setAttribute(String tag, Attribute attribute) throws IOException {
+        int name = attributeName(attribute);
+        int namespace = attribute.m_namespace == null ? NO_ENTRY : string(attribute.m_namespace);
+        int rawValue = attribute.m_value.m_string == null ? NO_ENTRY : string(attribute.m_value.m_string);
+
+        int index = findStartTag(tag);
+        ByteBuffer node = wrap(m_nodes.get(index));
+        int base = node.getShort(2) & 0xffff;
+        int attributeStart = base + (node.getShort(base + 8) & 0xffff);
+        int attributeSize = node.getShort(base + 10) & 0xffff;
+        int count = node.getShort(base + 12) & 0xffff;
+        for (int i = 0; i != count; ++i) {
+            int position = attributeStart + i * attributeSize;
+            int other = node.getInt(position + 4);
+            if (other == name || (attribute.m_resourceId != 0 && resourceId(other) == attribute.m_resourceId)) {
+                writeAttribute(node, position, namespace, name, rawValue, attribute.m_value);
+                return;
+            }
+        }
+
+        int insert = count;
+        if (attribute.m_resourceId != 0) {
+            for (int i = 0; i != count; ++i) {
+                int other = resourceId(node.getInt(attributeStart + i * attributeSize + 4));
+                if (other == 0 || Integer.compareUnsigned(other, attribute.m_resourceId) > 0) {
+                    insert = i;
+                    break;
+                }
+            }
+        }
+
+        byte[] chunk = node.array();
+        int position = attributeStart + insert * attributeSize;
+        byte[] edited = new byte[chunk.length + attributeSize];
+        System.arraycopy(chunk, 0, edited, 0, position);
+        System.arraycopy(chunk, position, edited, position + attributeSize, chunk.length - position);
+        node = wrap(edited);
+        node.putInt(4, edited.length);
+        node.putShort(base + 12, (short) (count + 1));
+        for (int indexField = base + 14; indexField != base + 20; indexField += 2) {
+            int attributeIndex = node.getShort(indexField) & 0xffff;
+            if (attributeIndex > insert) {
+                node.putShort(indexField, (short) (attributeIndex + 1));
+            }
+        }
+        writeAttribute(node, position, namespace, name, rawValue, attribute.m_value);
+        m_nodes.set(index, edited);
+    }
+
+    /**
+     * Adds an empty element named {@code tag} as the first child of the first
+     * element named {@code parentTag}.
+     */
+    public void addElement(String parentTag, String tag, Attribute... attributes) throws IOException {
+        // resolve the mapped names first, as inserting one shifts the other strings
+        attributes = attributes.clone();
+        Arrays.sort(attributes, (a, b) -> a.m_resourceId == b.m_resourceId ? 0
+                : a.m_resourceId == 0 ? 1 : b.m_resourceId == 0 ? -1
+                : Integer.compareUnsigned(a.m_resourceId, b.m_resourceId));
+        int[] names = new int[attributes.length];
+        for (int i = 0; i != attributes.length; ++i) {
+            names[i] = attributeName(attributes[i]);
+        }
+        int name = string(tag);
+
+        int parent = findStartTag(parentTag);
+        int lineNumber = wrap(m_nodes.get(parent)).getInt(8);
+
+        byte[] start = new byte[NODE_HEADER_SIZE + ATTRIBUTE_START + attributes.length * ATTRIBUTE_SIZE];
+        ByteBuffer node = wrap(start);
+        writeNodeHeader(node, CHUNK_XML_START_TAG, lineNumber, name);
+        node.putShort(NODE_HEADER_SIZE + 8, (short) ATTRIBUTE_START);
+        node.putShort(NODE_HEADER_SIZE + 10, (short) ATTRIBUTE_SIZE);
+        node.putShort(NODE_HEADER_SIZE + 12, (short) attributes.length);
+        for (int i = 0; i != attributes.length; ++i) {
+            Attribute attribute = attributes[i];
+            int namespace = attribute.m_namespace == null ? NO_ENTRY : string(attribute.m_namespace);
+            int rawValue = attribute.m_value.m_string == null ? NO_ENTRY : string(attribute.m_value.m_string);
+            writeAttribute(node, NODE_HEADER_SIZE + ATTRIBUTE_START + i * ATTRIBUTE_SIZE,
+                    namespace, names[i], rawValue, attribute.m_value);
+        }
+
+        byte[] end = new byte[NODE_HEADER_SIZE + 8];
+        writeNodeHeader(wrap(end), CHUNK_XML_END_TAG, lineNumber, name);
+
+        m_nodes.add(parent + 1, end);
+        m_nodes.add(parent + 1, start);
+    }
+
+    /**
+     * Writes the edited document.
+     */
+    public byte[] toByteArray() {
+        boolean utf8 = (m_poolFlags & UTF8_FLAG) != 0;
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        int[] offsets = new int[m_strings.size()];
+        for (int i = 0; i != offsets.length; ++i) {
+            offsets[i] = strings.size();
+            strings.write(m_strings.get(i), 0, m_strings.get(i).length);
+        }
+        while (strings.size() % 4 != 0) {
+            strings.write(0);
+        }
+        int stringsStart = STRING_POOL_HEADER_SIZE + (offsets.length + m_styleOffsets.length) * 4;
+        int poolSize = stringsStart + strings.size() + m_styles.length * 4;
+        int resourceIdsSize = m_resourceIds.length == 0 ? 0 : 8 + m_resourceIds.length * 4;
+        int size = 8 + poolSize + resourceIdsSize;
+        for (byte[] node : m_nodes) {
+            size += node.length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putShort((short) CHUNK_AXML_FILE).putShort((short) 8).putInt(size);
+
+        out.putShort((short) CHUNK_STRING_POOL).putShort((short) STRING_POOL_HEADER_SIZE).putInt(poolSize);
+        out.putInt(offsets.length).putInt(m_styleOffsets.length).putInt(m_poolFlags);
+        out.putInt(stringsStart).putInt(m_styles.length == 0 ? 0 : stringsStart + strings.size());
+        for (int offset : offsets) {
+            out.putInt(offset);
+        }
+        for (int offset : m_styleOffsets) {
+            out.putInt(offset);
+        }
+        out.put(strings.toByteArray());
+        for (int style : m_styles) {
+            out.putInt(style);
+        }
+
+        if (resourceIdsSize != 0) {
+            out.putShort((short) CHUNK_RESOURCE_IDS).putShort((short) 8).putInt(resourceIdsSize);
+            for (int resourceId : m_resourceIds) {
+                out.putInt(resourceId);
+            }
+        }
+
+        for (byte[] node : m_nodes) {
+            out.put(node);
+        }
+        return out.array();
+    }
+
+    ///////////////////////////////////////////// implementation
+
+    private static ByteBuffer wrap(byte[] chunk) {
+        return ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeNodeHeader(ByteBuffer node, int type, int lineNumber, int name) {
+        node.putShort(0, (short) type);
+        node.putShort(2, (short) NODE_HEADER_SIZE);
+        node.putInt(4, node.capacity());
+        node.putInt(8, lineNumber);
+        node.putInt(12, NO_ENTRY);
+        node.putInt(NODE_HEADER_SIZE, NO_ENTRY);
+        node.putInt(NODE_HEADER_SIZE + 4, name);
+    }
+
+    private static void writeAttribute(ByteBuffer node, int position, int namespace, int name, int rawValue, Value value) {
+        node.putInt(position, namespace);
+        node.putInt(position + 4, name);
+        node.putInt(position + 8, rawValue);
+        node.putShort(position + 12, (short) 8);
+        node.put(position + 14, (byte) 0);
+        node.put(position + 15, (byte) value.m_type);
+        node.putInt(position + 16, value.m_string == null ? value.m_data : rawValue);
+    }
+
+    private int findStartTag(String tag) throws IOException {
+        for (int i = 0; i != m_nodes.size(); ++i) {
+            ByteBuffer node = wrap(m_nodes.get(i));
+            if (node.getShort(0) != CHUNK_XML_START_TAG) {
+                continue;
+            }
+            int name = node.getInt((node.getShort(2) & 0xffff) + 4);
+            if (name >= 0 && name < m_strings.size() && tag.equals(getString(name))) {
+                return i;
+            }
+        }
+        throw new IOException("No element " + tag + ".");
+    }
+
+    private int resourceId(int string) {
+        return string >= 0 && string < m_resourceIds.length ? m_resourceIds[string] : 0;
+    }
+
+    /**
+     * Returns the index of the name of an attribute, adding it to the pool
+     * and to the resource map if needed.
+     */
+    private int attributeName(Attribute attribute) throws IOException {
+        if (attribute.m_resourceId == 0) {
+            for (int i = 0; i != m_strings.size(); ++i) {
+                if (resourceId(i) == 0 && attribute.m_name.equals(getString(i))) {
+                    return i;
+                }
+            }
+            return appendString(attribute.m_name);
+        }
+        for (int i = 0; i != m_resourceIds.length; ++i) {
+            if (m_resourceIds[i] == attribute.m_resourceId) {
+                return i;
+            }
+        }
+        int index = m_resourceIds.length;
+        if (index < m_styleOffsets.length) {
+            throw new IOException("Cannot map " + attribute.m_name + " in front of styled strings.");
+        }
+        shiftStringReferences(index);
+        m_strings.add(index, encode(attribute.m_name));
+        m_resourceIds = Arrays.copyOf(m_resourceIds, index + 1);
+        m_resourceIds[index] = attribute.m_resourceId;
+        m_poolFlags &= ~SORTED_FLAG;
+        return index;
+    }
+
+    /**
+     * Returns the index of a string, appending it to the pool if needed.
+     */
+    private int string(String value) {
+        for (int i = 0; i != m_strings.size(); ++i) {
+            if (value.equals(getString(i))) {
+                return i;
+            }
+        }
+        return appendString(value);
+    }
+
+    private int appendString(String value) {
+        m_strings.add(encode(value));
+        m_poolFlags &= ~SORTED_FLAG;
+        return m_strings.size() - 1;
+    }
+
+    /**
+     * Increments every reference to a string at or behind {@code from}.
+     */
+    private void shiftStringReferences(int from) {
+        for (byte[] chunk : m_nodes) {
+            ByteBuffer node = wrap(chunk);
+            int base = node.getShort(2) & 0xffff;
+            int type = node.getShort(0);
+            if (type >= CHUNK_XML_START_NAMESPACE && type <= CHUNK_XML_TEXT) {
+                shift(node, 12, from); // comment
+            }
+            switch (type) {
+                case CHUNK_XML_START_NAMESPACE:
+                case CHUNK_XML_END_NAMESPACE:
+                case CHUNK_XML_END_TAG:
+                    shift(node, base, from);
+                    shift(node, base + 4, from);
+                    break;
+                case CHUNK_XML_START_TAG: {
+                    shift(node, base, from);
+                    shift(node, base + 4, from);
+                    int attributeStart = base + (node.getShort(base + 8) & 0xffff);
+                    int attributeSize = node.getShort(base + 10) & 0xffff;
+                    int count = node.getShort(base + 12) & 0xffff;
+                    for (int i = 0; i != count; ++i) {
+                        int position = attributeStart + i * attributeSize;
+                        shift(node, position, from);
+                        shift(node, position + 4, from);
+                        shift(node, position + 8, from);
+                        if (node.get(position + 15) == TypedValue.TYPE_STRING) {
+                            shift(node, position + 16, from);
+                        }
+                    }
+                    break;
+                }
+                case CHUNK_XML_TEXT:
+                    shift(node, base, from);
+                    if (node.get(base + 7) == TypedValue.TYPE_STRING) {
+                        shift(node, base + 8, from);
+                    }
+                    break;
+            }
+        }
+        // spans are name, first char, last char triples ended by -1
+        for (int i = 0; i < m_styles.length; ++i) {
+            if (m_styles[i] == NO_ENTRY) {
+                continue;
+            }
+            if (m_styles[i] >= from) {
+                ++m_styles[i];
+            }
+            i += 2;
+        }
+    }
+
+    private static void shift(ByteBuffer node, int position, int from) {
+        int string = node.getInt(position);
+        if (string != NO_ENTRY && string >= from) {
+            node.putInt(position, string + 1);
+        }
+    }
+
+    private String getString(int index) {
+        byte[] entry = m_strings.get(index);
+        if ((m_poolFlags & UTF8_FLAG) != 0) {
+            int position = (entry[0] & 0x80) != 0 ? 2 : 1;
+            int length = entry[position] & 0xff;
+            if ((length & 0x80) != 0) {
+                length = ((length & 0x7f) << 8) | (entry[position + 1] & 0xff);
+                position += 2;
+            } else {
+                position += 1;
+            }
+            return new String(entry, position, length, StandardCharsets.UTF_8);
+        }
+        int length = (entry[0] & 0xff) | ((entry[1] & 0xff) << 8);
+        int position = 2;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (entry[2] & 0xff) | ((entry[3] & 0xff) << 8);
+            position = 4;
+        }
+        return new String(entry, position, length * 2, StandardCharsets.UTF_16LE);
+    }
+
+    private byte[] encode(String value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ((m_poolFlags & UTF8_FLAG) != 0) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeUtf8Length(out, value.length());
+            writeUtf8Length(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+            out.write(0);
+        } else {
+            byte[] chars = value.getBytes(StandardCharsets.UTF_16LE);
+            int length = chars.length / 2;
+            if (length > 0x7fff) {
+                out.write((length >> 16) & 0xff);
+                out.write(((length >> 24) & 0x7f) | 0x80);
+                length &= 0xffff;
+            }
+            out.write(length & 0xff);
+            out.write((length >> 8) & 0xff);
+            out.write(chars, 0, chars.length);
+            out.write(0);
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeUtf8Length(ByteArrayOutputStream out, int length) {
+        if (length > 0x7f) {
+            out.write(((length >> 8) & 0x7f) | 0x80);
+        }
+        out.write(length & 0xff);
+    }
+
+    private static int utf8EntryLength(ByteBuffer buffer, int start) {
+        int position = start + ((buffer.get(start) & 0x80) != 0 ? 2 : 1);
+        int length = buffer.get(position) & 0xff;
+        if ((length & 0x80) != 0) {
+            length = ((length & 0x7f) << 8) | (buffer.get(position + 1) & 0xff);
+            position += 2;
+        } else {
+            position += 1;
+        }
+        return position + length + 1 - start;
+    }
+
+    private static int utf16EntryLength(ByteBuffer buffer, int start) {
+        int length = buffer.getShort(start) & 0xffff;
+        int position = start + 2;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7fff) << 16) | (buffer.getShort(start + 2) & 0xffff);
+            position += 2;
+        }
+        return position + length * 2 + 2 - start;
+    }
+}
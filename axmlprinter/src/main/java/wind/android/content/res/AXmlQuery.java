@@ -0,0 +1,341 @@
+package wind.android.content.res;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import wind.android.util.TypedValue;
+
+/**
+ * Finds attribute values in a binary xml document without iterating parser
+ * events.
+ *
+ * Queried element and attribute names are resolved to string pool indices
+ * once, by comparing their encoding with the pool entries rather than
+ * decoding the pool, and attributes with a resource id through the resource
+ * map. The element
+ * chunks are then scanned comparing indices only, and nothing but the values
+ * of matching attributes is decoded.
+ */
+public class AXmlQuery {
+
+    private static final int CHUNK_AXML_FILE = 0x0003;
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_RESOURCE_IDS = 0x0180;
+    private static final int CHUNK_XML_START_TAG = 0x0102;
+    private static final int CHUNK_XML_END_TAG = 0x0103;
+
+    /**
+     * Attribute to look for.
+     */
+    public static final class Target {
+        final String m_element;
+        final int m_resourceId;
+        final String m_name;
+
+        /**
+         * @param element name of the elements to look in, or null for all.
+         * @param resourceId resource id of the attribute name, or 0.
+         * @param name name of the attribute, matched if the attribute has no
+         *        resource id or resourceId is 0. May be null if resourceId is
+         *        not 0.
+         */
+        public Target(String element, int resourceId, String name) {
+            m_element = element;
+            m_resourceId = resourceId;
+            m_name = name;
+        }
+    }
+
+    /**
+     * Attribute found by {@link AXmlQuery#select(Target...)}.
+     */
+    public final class Match {
+        private final int m_target;
+        private final int m_element;
+        private final int m_rawValue;
+        private final int m_type;
+        private final int m_data;
+
+        private Match(int target, int element, int rawValue, int type, int data) {
+            m_target = target;
+            m_element = element;
+            m_rawValue = rawValue;
+            m_type = type;
+            m_data = data;
+        }
+
+        /**
+         * Returns the index of the matched target.
+         */
+        public int getTarget() {
+            return m_target;
+        }
+
+        public String getElementName() {
+            return m_strings.getString(m_element);
+        }
+
+        public int getValueType() {
+            return m_type;
+        }
+
+        public int getValueData() {
+            return m_data;
+        }
+
+        /**
+         * Returns the value as written in the source, or null if it was
+         * compiled, e.g. to a number or a reference.
+         */
+        public String getRawValue() {
+            return m_strings.getString(m_rawValue);
+        }
+
+        public int getIntValue(int defaultValue) {
+            if (m_type >= TypedValue.TYPE_FIRST_INT && m_type <= TypedValue.TYPE_LAST_INT) {
+                return m_data;
+            }
+            return defaultValue;
+        }
+
+        public boolean getBooleanValue(boolean defaultValue) {
+            return getIntValue(defaultValue ? 1 : 0) != 0;
+        }
+    }
+
+    private final ByteBuffer m_buffer;
+    private final StringBlock m_strings;
+    private final int[] m_resourceIds;
+    private final int m_nodesStart;
+
+    /**
+     * Reads the string pool and resource map of the remaining bytes of
+     * buffer. The buffer itself is not modified and must not change while
+     * the query is used.
+     */
+    public AXmlQuery(ByteBuffer buffer) throws IOException {
+        m_buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (m_buffer.remaining() < 8 || m_buffer.getShort(0) != CHUNK_AXML_FILE) {
+            throw new IOException("Not a binary xml file.");
+        }
+        int offset = m_buffer.getShort(2) & 0xffff;
+        StringBlock strings = null;
+        int[] resourceIds = new int[0];
+        while (offset + 8 <= m_buffer.limit()) {
+            int type = m_buffer.getShort(offset) & 0xffff;
+            int size = m_buffer.getInt(offset + 4);
+            if (size < 8 || size > m_buffer.limit() - offset) {
+                throw new IOException("Bad chunk size " + size + " at offset " + offset + ".");
+            }
+            if (type == CHUNK_STRING_POOL) {
+                ByteBuffer pool = m_buffer.duplicate();
+                pool.position(offset);
+                strings = StringBlock.read(new IntReader(pool, false));
+            } else if (type == CHUNK_RESOURCE_IDS) {
+                int headerSize = m_buffer.getShort(offset + 2) & 0xffff;
+                resourceIds = new int[(size - headerSize) / 4];
+                ByteBuffer ids = m_buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                ids.position(offset + headerSize);
+                ids.asIntBuffer().get(resourceIds);
+            } else {
+                break;
+            }
+            offset += size;
+        }
+        if (strings == null) {
+            throw new IOException("No string pool.");
+        }
+        m_strings = strings;
+        m_resourceIds = resourceIds;
+        m_nodesStart = offset;
+    }
+
+    public AXmlQuery(byte[] data) throws IOException {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Returns the attributes matching any of targets, in document order.
+     * The names are resolved once; the element chunks are scanned as the
+     * matches are iterated.
+     */
+    public Iterable<Match> select(Target... targets) {
+        return selectUntilEnd(null, targets);
+    }
+
+    /**
+     * Like {@link #select(Target...)}, but stops at the end tag of the first
+     * element named endElement, so that the rest of the document is not
+     * scanned.
+     */
+    public Iterable<Match> selectUntilEnd(String endElement, Target... targets) {
+        if (targets.length > Long.SIZE) {
+            throw new IllegalArgumentException("Too many targets.");
+        }
+        int count = m_strings.getCount();
+        // per string, bit t is set if the string is the element or attribute name of target t
+        long[] elements = new long[count];
+        long[] names = new long[count];
+        Map<String, int[]> indices = new HashMap<>();
+        for (int t = 0; t != targets.length; ++t) {
+            Target target = targets[t];
+            long bit = 1L << t;
+            if (target.m_element == null) {
+                for (int i = 0; i != count; ++i) {
+                    elements[i] |= bit;
+                }
+            } else {
+                for (int i : indices(indices, target.m_element)) {
+                    elements[i] |= bit;
+                }
+            }
+            if (target.m_resourceId != 0) {
+                for (int i = 0; i != Math.min(count, m_resourceIds.length); ++i) {
+                    if (m_resourceIds[i] == target.m_resourceId) {
+                        names[i] |= bit;
+                    }
+                }
+            }
+            if (target.m_name != null) {
+                for (int i : indices(indices, target.m_name)) {
+                    int resourceId = i < m_resourceIds.length ? m_resourceIds[i] : 0;
+                    if (resourceId == 0 || target.m_resourceId == 0) {
+                        names[i] |= bit;
+                    }
+                }
+            }
+        }
+        boolean[] ends = null;
+        if (endElement != null) {
+            ends = new boolean[count];
+            for (int i : indices(indices, endElement)) {
+                ends[i] = true;
+            }
+        }
+        boolean[] stops = ends;
+        return () -> new MatchIterator(elements, names, stops);
+    }
+
+    ///////////////////////////////////////////// implementation
+
+    /**
+     * Returns every pool index of string, which may be stored more than once,
+     * e.g. as a mapped attribute name and as an element name.
+     */
+    private int[] indices(Map<String, int[]> cache, String string) {
+        int[] indices = cache.get(string);
+        if (indices == null) {
+            indices = new int[0];
+            for (int i = m_strings.find(string); i != -1; i = m_strings.find(string, i + 1)) {
+                indices = Arrays.copyOf(indices, indices.length + 1);
+                indices[indices.length - 1] = i;
+            }
+            cache.put(string, indices);
+        }
+        return indices;
+    }
+
+    private class MatchIterator implements Iterator<Match> {
+        private final long[] m_elements;
+        private final long[] m_names;
+        private final boolean[] m_ends;
+        private int m_offset = m_nodesStart;
+        private int m_element;
+        private long m_elementTargets;
+        private int m_attribute;
+        private int m_attributeEnd;
+        private int m_attributeSize;
+        private Match m_next;
+
+        MatchIterator(long[] elements, long[] names, boolean[] ends) {
+            m_elements = elements;
+            m_names = names;
+            m_ends = ends;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (m_next == null) {
+                if (m_attribute < m_attributeEnd) {
+                    m_next = matchAttribute(m_attribute);
+                    m_attribute += m_attributeSize;
+                } else if (!nextElement()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Match next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Match match = m_next;
+            m_next = null;
+            return match;
+        }
+
+        private Match matchAttribute(int position) {
+            int name = m_buffer.getInt(position + 4);
+            if (name < 0 || name >= m_names.length) {
+                return null;
+            }
+            long targets = m_names[name] & m_elementTargets;
+            if (targets == 0) {
+                return null;
+            }
+            return new Match(Long.numberOfTrailingZeros(targets), m_element,
+                    m_buffer.getInt(position + 8), m_buffer.get(position + 15) & 0xff,
+                    m_buffer.getInt(position + 16));
+        }
+
+        /**
+         * Moves to the attributes of the next element that may hold a
+         * target, or returns false at the end of the document.
+         */
+        private boolean nextElement() {
+            ByteBuffer buffer = m_buffer;
+            while (m_offset + 8 <= buffer.limit()) {
+                int offset = m_offset;
+                int type = buffer.getShort(offset) & 0xffff;
+                int size = buffer.getInt(offset + 4);
+                if (size < 8 || size > buffer.limit() - offset) {
+                    break;
+                }
+                m_offset += size;
+                if (type == CHUNK_XML_END_TAG && m_ends != null) {
+                    int element = buffer.getInt(offset + (buffer.getShort(offset + 2) & 0xffff) + 4);
+                    if (element >= 0 && element < m_ends.length && m_ends[element]) {
+                        break;
+                    }
+                }
+                if (type != CHUNK_XML_START_TAG) {
+                    continue;
+                }
+                int base = offset + (buffer.getShort(offset + 2) & 0xffff);
+                int element = buffer.getInt(base + 4);
+                int attributeSize = buffer.getShort(base + 10) & 0xffff;
+                if (element < 0 || element >= m_elements.length || m_elements[element] == 0
+                        || attributeSize < 20) {
+                    continue;
+                }
+                m_element = element;
+                m_elementTargets = m_elements[element];
+                m_attribute = base + (buffer.getShort(base + 8) & 0xffff);
+                m_attributeSize = attributeSize;
+                m_attributeEnd = Math.min(m_attribute + m_attributeSize * (buffer.getShort(base + 12) & 0xffff),
+                        offset + size);
+                return true;
+            }
+            m_offset = buffer.limit();
+            return false;
+        }
+    }
+}
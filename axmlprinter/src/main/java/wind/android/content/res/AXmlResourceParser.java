@@ -18,6 +18,7 @@ package wind.android.content.res;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import wind.v1.XmlPullParserException;
 
 import wind.android.content.res.ChunkUtil;
@@ -53,6 +54,22 @@ public class AXmlResourceParser implements XmlResourceParser {
 			m_reader=new wind.android.content.res.IntReader(stream,false);
 		}
 	}
+
+	/**
+	 * Parses the remaining bytes of buffer, which may be a memory-mapped
+	 * STORED zip entry. The buffer is read in place and must not change
+	 * until the parser is closed.
+	 */
+	public void open(ByteBuffer buffer) {
+		close();
+		if (buffer!=null) {
+			m_reader=new wind.android.content.res.IntReader(buffer,false);
+		}
+	}
+	
+	public void open(byte[] data) {
+		open(data!=null?ByteBuffer.wrap(data):null);
+	}
 	
 	public void close() {
 		if (!m_operational) {
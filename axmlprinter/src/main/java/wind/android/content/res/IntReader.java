@@ -19,12 +19,18 @@ import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @author Dmitry Skiba
  *
  * Simple helper class that allows reading of integers.
  * 
+ * Reads either from a stream, one byte at a time, or from a buffer, such as
+ * a byte array or a memory-mapped STORED zip entry. Buffers are read with
+ * bulk int reads and never copied.
+ * 
  * TODO:
  * 	* implement buffering
  *
@@ -36,15 +42,31 @@ public final class IntReader {
 	public IntReader(InputStream stream,boolean bigEndian) {
 		reset(stream,bigEndian);
 	}
+	public IntReader(ByteBuffer buffer,boolean bigEndian) {
+		reset(buffer,bigEndian);
+	}
 	
 	public final void reset(InputStream stream,boolean bigEndian) {
 		m_stream=stream;
+		m_buffer=null;
 		m_bigEndian=bigEndian;
 		m_position=0;		
 	}
 
+	/**
+	 * Reads from the remaining bytes of buffer. The buffer itself is not
+	 * modified.
+	 */
+	public final void reset(ByteBuffer buffer,boolean bigEndian) {
+		m_stream=null;
+		m_buffer=buffer.slice();
+		setBigEndian(bigEndian);
+		m_position=0;
+	}
+
 	public final void close() {
 		if (m_stream==null) {
+			m_buffer=null;
 			return;
 		}
 		try {
@@ -52,7 +74,7 @@ public final class IntReader {
 		}
 		catch (IOException e) {
 		}
-		reset(null,false);
+		reset((InputStream)null,false);
 	}
 	
 	public final InputStream getStream() {
@@ -64,6 +86,9 @@ public final class IntReader {
 	}
 	public final void setBigEndian(boolean bigEndian) {
 		m_bigEndian=bigEndian;
+		if (m_buffer!=null) {
+			m_buffer.order(bigEndian?ByteOrder.BIG_ENDIAN:ByteOrder.LITTLE_ENDIAN);
+		}
 	}
 
 	public final int readByte() throws IOException {
@@ -76,12 +101,22 @@ public final class IntReader {
 		return readInt(4);
 	}
     public final void readFully(byte[] b) throws IOException {
+        if (m_buffer!=null) {
+            checkRemaining(b.length);
+            m_buffer.get(b);
+            m_position+=b.length;
+            return;
+        }
         new DataInputStream(m_stream).readFully(b);
+        m_position+=b.length;
     }
 	public final int readInt(int length) throws IOException {
 		if (length<0 || length>4) {
 			throw new IllegalArgumentException();
 		}
+		if (m_buffer!=null) {
+			return readBufferInt(length);
+		}
 		int result=0;
 		if (m_bigEndian) {
 			for (int i=(length-1)*8;i>=0;i-=8) {
@@ -113,6 +148,13 @@ public final class IntReader {
 	}
 	
 	public final void readIntArray(int[] array,int offset,int length) throws IOException {
+		if (m_buffer!=null) {
+			checkRemaining(length*4L);
+			m_buffer.asIntBuffer().get(array,offset,length);
+			m_buffer.position(m_buffer.position()+length*4);
+			m_position+=length*4;
+			return;
+		}
 		for (;length>0;length-=1) {
 			array[offset++]=readInt();
 		}
@@ -120,6 +162,10 @@ public final class IntReader {
 	
 	public final byte[] readByteArray(int length) throws IOException {
 		byte[] array=new byte[length];
+		if (m_buffer!=null) {
+			readFully(array);
+			return array;
+		}
 		int read=m_stream.read(array);
 		m_position+=read;
 		if (read!=length) {
@@ -132,6 +178,12 @@ public final class IntReader {
 		if (bytes<=0) {
 			return;
 		}
+		if (m_buffer!=null) {
+			checkRemaining(bytes);
+			m_buffer.position(m_buffer.position()+bytes);
+			m_position+=bytes;
+			return;
+		}
 		long skipped=m_stream.skip(bytes);
 		m_position+=skipped;
 		if (skipped!=bytes) {
@@ -144,6 +196,9 @@ public final class IntReader {
 	}
 	
 	public final int available() throws IOException {
+		if (m_buffer!=null) {
+			return m_buffer.remaining();
+		}
 		return m_stream.available();
 	}
 	
@@ -151,9 +206,46 @@ public final class IntReader {
 		return m_position;
 	}
 	
+	/////////////////////////////////// implementation
+
+	private final void checkRemaining(long bytes) throws EOFException {
+		if (bytes<0 || bytes>m_buffer.remaining()) {
+			throw new EOFException();
+		}
+	}
+
+	private final int readBufferInt(int length) throws IOException {
+		checkRemaining(length);
+		int result;
+		switch (length) {
+			case 4:
+				result=m_buffer.getInt();
+				break;
+			case 2:
+				result=m_buffer.getShort()&0xFFFF;
+				break;
+			case 1:
+				result=m_buffer.get()&0xFF;
+				break;
+			case 0:
+				result=0;
+				break;
+			default:
+				// three bytes, in the stream's byte order
+				result=0;
+				for (int i=0;i!=length;++i) {
+					int b=m_buffer.get()&0xFF;
+					result=m_bigEndian?(result<<8)|b:result|(b<<(i*8));
+				}
+		}
+		m_position+=length;
+		return result;
+	}
+	
 	/////////////////////////////////// data
 
 	private InputStream m_stream;
+	private ByteBuffer m_buffer;
 	private boolean m_bigEndian;
 	private int m_position;
 }
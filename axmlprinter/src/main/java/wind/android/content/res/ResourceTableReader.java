@@ -0,0 +1,277 @@
+package wind.android.content.res;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import wind.android.util.TypedValue;
+
+/**
+ * Resolves resource ids against a resources.arsc table in a single forward
+ * pass.
+ *
+ * Only the global string pool is kept. Type chunks of types that hold none
+ * of the requested ids are skipped, and of the other type chunks only the
+ * requested entries are read. A value from the default configuration wins;
+ * if there is none, the first configuration holding the id is used.
+ *
+ * References are returned as they are. To follow one, resolve the id it
+ * refers to in another pass.
+ */
+public class ResourceTableReader {
+
+    private static final int CHUNK_TABLE = 0x0002;
+    private static final int CHUNK_STRING_POOL = 0x0001;
+    private static final int CHUNK_PACKAGE = 0x0200;
+    private static final int CHUNK_TYPE = 0x0201;
+
+    private static final int TYPE_FLAG_SPARSE = 0x01;
+    private static final int TYPE_FLAG_OFFSET16 = 0x02;
+    private static final int ENTRY_FLAG_COMPLEX = 0x0001;
+    private static final int ENTRY_FLAG_COMPACT = 0x0008;
+    private static final int NO_ENTRY = 0xFFFFFFFF;
+    private static final int NO_ENTRY16 = 0xFFFF;
+
+    /**
+     * Resolved simple value of a resource.
+     */
+    public static final class Value {
+        private final int m_type;
+        private final int m_data;
+        private final String m_string;
+
+        Value(int type, int data, String string) {
+            m_type = type;
+            m_data = data;
+            m_string = string;
+        }
+
+        public int getType() {
+            return m_type;
+        }
+
+        public int getData() {
+            return m_data;
+        }
+
+        /**
+         * Returns the string of a string value, or null.
+         */
+        public String getString() {
+            return m_string;
+        }
+    }
+
+    public static Map<Integer, Value> read(InputStream stream, Collection<Integer> resourceIds) throws IOException {
+        return read(new IntReader(stream, false), resourceIds);
+    }
+
+    public static Map<Integer, Value> read(ByteBuffer buffer, Collection<Integer> resourceIds) throws IOException {
+        return read(new IntReader(buffer, false), resourceIds);
+    }
+
+    /**
+     * Reads the table at the position of reader and returns the values of
+     * the requested ids that have a simple value. Ids without an entry or
+     * with a bag value are left out.
+     */
+    public static Map<Integer, Value> read(IntReader reader, Collection<Integer> resourceIds) throws IOException {
+        ResourceTableReader table = new ResourceTableReader(reader, resourceIds);
+        table.readTable();
+
+        Map<Integer, Value> values = new HashMap<>();
+        for (Map.Entry<Integer, Entry> found : table.m_found.entrySet()) {
+            Entry entry = found.getValue();
+            String string = entry.m_type == TypedValue.TYPE_STRING && table.m_strings != null
+                    ? table.m_strings.getString(entry.m_data)
+                    : null;
+            values.put(found.getKey(), new Value(entry.m_type, entry.m_data, string));
+        }
+        return values;
+    }
+
+    ///////////////////////////////////////////// implementation
+
+    private static final class Entry {
+        final int m_type;
+        final int m_data;
+        final boolean m_default;
+
+        Entry(int type, int data, boolean isDefault) {
+            m_type = type;
+            m_data = data;
+            m_default = isDefault;
+        }
+    }
+
+    private final IntReader m_reader;
+    /**
+     * Requested entry indices by package and type id, packed as 0xPPTT.
+     */
+    private final Map<Integer, List<Integer>> m_wanted = new HashMap<>();
+    private final Map<Integer, Entry> m_found = new HashMap<>();
+    private StringBlock m_strings;
+    private int m_packageId;
+
+    private ResourceTableReader(IntReader reader, Collection<Integer> resourceIds) {
+        m_reader = reader;
+        for (int resourceId : resourceIds) {
+            m_wanted.computeIfAbsent(resourceId >>> 16, k -> new ArrayList<>()).add(resourceId & 0xFFFF);
+        }
+    }
+
+    private void readTable() throws IOException {
+        int start = m_reader.getPosition();
+        int header = m_reader.readInt();
+        if ((header & 0xFFFF) != CHUNK_TABLE) {
+            throw new IOException("Not a resource table, chunk type 0x" + Integer.toHexString(header & 0xFFFF) + ".");
+        }
+        int end = start + m_reader.readInt();
+        m_reader.skip(start + (header >>> 16) - m_reader.getPosition());
+        while (m_reader.getPosition() < end) {
+            readChunk();
+        }
+    }
+
+    private void readChunk() throws IOException {
+        int start = m_reader.getPosition();
+        int header = m_reader.readInt();
+        int type = header & 0xFFFF;
+        int headerSize = header >>> 16;
+        int size = m_reader.readInt();
+        if (size < 8) {
+            throw new IOException("Bad chunk size " + size + " at offset " + start + ".");
+        }
+        switch (type) {
+            case CHUNK_STRING_POOL:
+                if (m_strings == null && m_packageId == 0) {
+                    m_strings = StringBlock.readBody(m_reader, size);
+                }
+                break;
+            case CHUNK_PACKAGE:
+                m_packageId = m_reader.readInt();
+                if (!isPackageWanted()) {
+                    break;
+                }
+                // the chunks of the package follow its header
+                m_reader.skip(start + headerSize - m_reader.getPosition());
+                while (m_reader.getPosition() < start + size) {
+                    readChunk();
+                }
+                break;
+            case CHUNK_TYPE:
+                readType(start, headerSize, size);
+                break;
+        }
+        m_reader.skip(start + size - m_reader.getPosition());
+    }
+
+    private boolean isPackageWanted() {
+        for (int packageType : m_wanted.keySet()) {
+            if (packageType >>> 8 == m_packageId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readType(int start, int headerSize, int size) throws IOException {
+        int header = m_reader.readInt();
+        int typeId = header & 0xFF;
+        int flags = (header >>> 8) & 0xFF;
+        List<Integer> wanted = m_wanted.get((m_packageId << 8) | typeId);
+        if (wanted == null) {
+            return;
+        }
+        int entryCount = m_reader.readInt();
+        int entriesStart = m_reader.readInt();
+        boolean isDefault = readIsDefaultConfig();
+        m_reader.skip(start + headerSize - m_reader.getPosition());
+
+        // offsets of the wanted entries, relative to entriesStart
+        List<int[]> offsets = new ArrayList<>();
+        if ((flags & TYPE_FLAG_SPARSE) != 0) {
+            for (int i = 0; i != entryCount; ++i) {
+                int sparse = m_reader.readInt();
+                int index = sparse & 0xFFFF;
+                if (wanted.contains(index)) {
+                    offsets.add(new int[]{(sparse >>> 16) * 4, index});
+                }
+            }
+        } else if ((flags & TYPE_FLAG_OFFSET16) != 0) {
+            for (int i = 0; i != entryCount; ++i) {
+                int offset = m_reader.readShort();
+                if (offset != NO_ENTRY16 && wanted.contains(i)) {
+                    offsets.add(new int[]{offset * 4, i});
+                }
+            }
+        } else {
+            int[] entryOffsets = m_reader.readIntArray(entryCount);
+            for (int index : wanted) {
+                if (index < entryCount && entryOffsets[index] != NO_ENTRY) {
+                    offsets.add(new int[]{entryOffsets[index], index});
+                }
+            }
+        }
+        offsets.sort(Comparator.comparingInt(offset -> offset[0]));
+
+        for (int[] offset : offsets) {
+            int position = start + entriesStart + offset[0];
+            if (position < m_reader.getPosition() || position + 8 > start + size) {
+                continue;
+            }
+            m_reader.skip(position - m_reader.getPosition());
+            int resourceId = (m_packageId << 24) | (typeId << 16) | offset[1];
+            Entry existing = m_found.get(resourceId);
+            if (existing != null && (existing.m_default || !isDefault)) {
+                continue;
+            }
+            Entry entry = readEntry(isDefault);
+            if (entry != null) {
+                m_found.put(resourceId, entry);
+            }
+        }
+    }
+
+    /**
+     * Reads an entry and returns its value, or null for a bag.
+     */
+    private Entry readEntry(boolean isDefault) throws IOException {
+        int header = m_reader.readInt();
+        int flags = header >>> 16;
+        if ((flags & ENTRY_FLAG_COMPACT) != 0) {
+            return new Entry(flags >>> 8, m_reader.readInt(), isDefault);
+        }
+        if ((flags & ENTRY_FLAG_COMPLEX) != 0) {
+            return null;
+        }
+        /*key*/m_reader.skipInt();
+        /*size, res0*/m_reader.skip(3);
+        int type = m_reader.readByte();
+        return new Entry(type, m_reader.readInt(), isDefault);
+    }
+
+    /**
+     * Reads a ResTable_config and returns whether it is the default
+     * configuration, in which every field is zero.
+     */
+    private boolean readIsDefaultConfig() throws IOException {
+        int size = m_reader.readInt();
+        if (size < 4) {
+            throw new IOException("Bad configuration size " + size + ".");
+        }
+        boolean isDefault = true;
+        for (int i = 4; i < size; i += 4) {
+            if (m_reader.readInt(Math.min(4, size - i)) != 0) {
+                isDefault = false;
+            }
+        }
+        return isDefault;
+    }
+}
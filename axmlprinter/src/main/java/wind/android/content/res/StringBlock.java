@@ -20,6 +20,9 @@ import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * @author Dmitry Skiba
@@ -37,6 +40,8 @@ public class StringBlock {
     private int[] m_styleOffsets;
     private int[] m_styles;
     private boolean m_isUTF8;
+    private String[] m_decoded;
+    private Map<Integer, Integer> m_index;
     private static final int CHUNK_TYPE = 0x001C0001;
     private static final int UTF8_FLAG = 0x00000100;
 
@@ -49,7 +54,14 @@ public class StringBlock {
      */
     public static StringBlock read(IntReader reader) throws IOException {
         ChunkUtil.readCheckType(reader, CHUNK_TYPE);
-        int chunkSize = reader.readInt();
+        return readBody(reader, reader.readInt());
+    }
+
+    /**
+     * Reads the rest of a string block whose chunk type and size have
+     * already been read.
+     */
+    static StringBlock readBody(IntReader reader, int chunkSize) throws IOException {
         int stringCount = reader.readInt();
         int styleOffsetCount = reader.readInt();
         int flags = reader.readInt();
@@ -88,10 +100,26 @@ public class StringBlock {
     }
 
 
+    /**
+     * Returns the string at index. Strings are decoded on first use and
+     * cached, so repeated lookups return the same instance.
+     */
     public String getString(int index) {
         if (index < 0 || m_stringOffsets == null || index >= m_stringOffsets.length) {
             return null;
         }
+        if (m_decoded == null) {
+            m_decoded = new String[m_stringOffsets.length];
+        }
+        String string = m_decoded[index];
+        if (string == null) {
+            string = decodeString(index);
+            m_decoded[index] = string;
+        }
+        return string;
+    }
+
+    private String decodeString(int index) {
         int offset = m_stringOffsets[index];
         int length;
         if (m_isUTF8) {
@@ -107,6 +135,10 @@ public class StringBlock {
     }
 
     private String decodeString(int offset, int length) {
+        String ascii = m_isUTF8 ? decodeAsciiUtf8(offset, length) : decodeAsciiUtf16(offset, length);
+        if (ascii != null) {
+            return ascii;
+        }
         try {
             return (m_isUTF8 ? UTF8_DECODER : UTF16LE_DECODER).decode(
                     ByteBuffer.wrap(m_strings, offset, length)).toString();
@@ -115,6 +147,38 @@ public class StringBlock {
         }
     }
 
+    /**
+     * Decodes UTF-8 that is plain ASCII without going through the decoder,
+     * or returns null if there are other characters.
+     */
+    private String decodeAsciiUtf8(int offset, int length) {
+        for (int i = offset; i != offset + length; ++i) {
+            if (m_strings[i] < 0) {
+                return null;
+            }
+        }
+        return new String(m_strings, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes UTF-16 that is plain ASCII without going through the decoder,
+     * or returns null if there are other characters.
+     */
+    private String decodeAsciiUtf16(int offset, int length) {
+        if (offset + length > m_strings.length) {
+            return null;
+        }
+        char[] chars = new char[length / 2];
+        for (int i = 0; i != chars.length; ++i) {
+            int c = getShort(m_strings, offset + i * 2);
+            if (c >= 0x80) {
+                return null;
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+
     private static final int getShort(byte[] array, int offset) {
         return (array[offset + 1] & 0xff) << 8 | array[offset] & 0xff;
     }
@@ -220,35 +284,123 @@ public class StringBlock {
 	/**
 	 * Finds index of the string.
 	 * Returns -1 if the string was not found.
+	 * The first call hashes every encoded string once into an index of the
+	 * first string with each hash; lookups then compare the encoded bytes of
+	 * that string only, without decoding any.
 	 */
 	public int find(String string) {
-		if (string==null) {
+		if (string==null || m_stringOffsets==null) {
 			return -1;
 		}
-		for (int i=0;i!=m_stringOffsets.length;++i) {
-			int offset=m_stringOffsets[i];
-			int length=getShort(m_strings,offset);
-			if (length!=string.length()) {
-				continue;
-			}
-			int j=0;
-			for (;j!=length;++j) {
-				offset+=2;
-				if (string.charAt(j)!=getShort(m_strings,offset)) {
-					break;
-				}
-			}
-			if (j==length) {
-				return i;
-			}
+		if (m_index==null) {
+			m_index=buildIndex();
 		}
-		return -1;
+		byte[] encoded=encode(string);
+		Integer index=m_index.get(hash(encoded,0,encoded.length));
+		if (index==null) {
+			return -1;
+		}
+		if (encodedEquals(index,encoded)) {
+			return index;
+		}
+		// another string has the same hash, the string can only come after it
+		return find(encoded,index+1);
+	}
+
+	/**
+	 * Finds the first index of the string not lower than from, so that
+	 * strings stored more than once can be found one after the other.
+	 * Returns -1 if the string was not found.
+	 */
+	public int find(String string,int from) {
+		if (string==null || m_stringOffsets==null) {
+			return -1;
+		}
+		return find(encode(string),from);
 	}
 	
 	///////////////////////////////////////////// implementation
 
 	private StringBlock() {
 	}
+
+	private byte[] encode(String string) {
+		return string.getBytes(m_isUTF8?StandardCharsets.UTF_8:StandardCharsets.UTF_16LE);
+	}
+
+	private int find(byte[] encoded,int from) {
+		for (int i=Math.max(from,0);i<m_stringOffsets.length;++i) {
+			if (encodedEquals(i,encoded)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Maps the hash of every encoded string to the index of the first string
+	 * with that hash.
+	 */
+	private Map<Integer,Integer> buildIndex() {
+		Map<Integer,Integer> index=new HashMap<>(m_stringOffsets.length*4/3+1);
+		for (int i=m_stringOffsets.length-1;i>=0;--i) {
+			int[] range=getEncodedRange(i);
+			if (range!=null) {
+				index.put(hash(m_strings,range[0],range[1]),i);
+			}
+		}
+		return index;
+	}
+
+	private static int hash(byte[] array,int offset,int length) {
+		int hash=1;
+		for (int i=offset;i!=offset+length;++i) {
+			hash=31*hash+array[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * Returns the offset and length of the encoded string at index, or null
+	 * if it is out of the string data.
+	 */
+	private int[] getEncodedRange(int index) {
+		int offset=m_stringOffsets[index];
+		if (offset<0 || offset>=m_strings.length) {
+			return null;
+		}
+		int length;
+		if (m_isUTF8) {
+			int[] val=getUtf8(m_strings,offset);
+			offset=val[0];
+			length=val[1];
+		} else {
+			int[] val=getUtf16(m_strings,offset);
+			offset+=val[0];
+			length=val[1];
+		}
+		if (offset+length>m_strings.length) {
+			return null;
+		}
+		return new int[]{offset,length};
+	}
+
+	/**
+	 * Compares the string at index with the encoding of a string in the
+	 * charset of this block.
+	 */
+	private boolean encodedEquals(int index,byte[] encoded) {
+		int[] range=getEncodedRange(index);
+		if (range==null || range[1]!=encoded.length) {
+			return false;
+		}
+		for (int i=0;i!=encoded.length;++i) {
+			if (m_strings[range[0]+i]!=encoded[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
 	
 	/**
 	 * Returns style information - array of int triplets,
@@ -0,0 +1,176 @@
+package wind.android.content.res;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static wind.android.content.res.BinaryXmlBuilder.ANDROID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import wind.android.content.res.AXmlEditor.Attribute;
+import wind.android.content.res.AXmlEditor.Value;
+import wind.android.util.TypedValue;
+import wind.v1.XmlPullParser;
+
+public class AXmlEditorTest {
+
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+    private static final int ATTR_VALUE = 0x01010024;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+
+    /**
+     * <manifest package="org.example" android:versionCode="5">
+     *   <uses-permission android:name="android.permission.INTERNET"/>
+     *   <application android:label="App" android:name=".App" custom="x">
+     *     <activity android:name=".Main"/>
+     *   </application>
+     * </manifest>
+     */
+    private static byte[] manifest(boolean utf8) {
+        var xml = new BinaryXmlBuilder(utf8, new String[] {"label", "name", "versionCode"},
+                new int[] {ATTR_LABEL, ATTR_NAME, ATTR_VERSION_CODE});
+        int label = xml.mapped("label");
+        int name = xml.mapped("name");
+        int versionCode = xml.mapped("versionCode");
+        xml.startNamespace("android", ANDROID);
+        xml.startTag("manifest",
+                xml.stringAttribute(null, xml.string("package"), "org.example"),
+                xml.intAttribute(ANDROID, versionCode, TypedValue.TYPE_INT_DEC, 5));
+        xml.startTag("uses-permission", xml.stringAttribute(ANDROID, name, "android.permission.INTERNET"));
+        xml.endTag("uses-permission");
+        xml.startTag("application",
+                xml.stringAttribute(ANDROID, label, "App"),
+                xml.stringAttribute(ANDROID, name, ".App"),
+                xml.stringAttribute(null, xml.string("custom"), "x"));
+        xml.startTag("activity", xml.stringAttribute(ANDROID, name, ".Main"));
+        xml.endTag("activity");
+        xml.endTag("application");
+        xml.endTag("manifest");
+        xml.endNamespace("android", ANDROID);
+        return xml.build();
+    }
+
+    /**
+     * Lists the start tags of a document with their attributes, each as
+     * {@code namespace:name[resource id]=value}.
+     */
+    private static List<String> elements(byte[] data) throws Exception {
+        var parser = new AXmlResourceParser();
+        parser.open(data);
+        List<String> elements = new ArrayList<>();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event != XmlPullParser.START_TAG) {
+                continue;
+            }
+            var element = new StringBuilder(parser.getName());
+            for (int i = 0; i != parser.getAttributeCount(); ++i) {
+                element.append(' ');
+                if (ANDROID.equals(parser.getAttributeNamespace(i))) {
+                    element.append("android:");
+                }
+                element.append(parser.getAttributeName(i));
+                int resourceId = parser.getAttributeNameResource(i);
+                if (resourceId != 0) {
+                    element.append('[').append(Integer.toHexString(resourceId)).append(']');
+                }
+                element.append('=');
+                if (parser.getAttributeValueType(i) == TypedValue.TYPE_STRING) {
+                    element.append(parser.getAttributeValue(i));
+                } else {
+                    element.append(parser.getAttributeValueType(i)).append(':').append(parser.getAttributeValueData(i));
+                }
+            }
+            elements.add(element.toString());
+        }
+        parser.close();
+        return elements;
+    }
+
+    @Test
+    public void roundTripIsByteIdentical() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            byte[] data = manifest(utf8);
+            assertArrayEquals(data, new AXmlEditor(data).toByteArray());
+        }
+    }
+
+    @Test
+    public void setAttributeReplacesValue() throws Exception {
+        byte[] data = manifest(false);
+        var editor = new AXmlEditor(data);
+        editor.setAttribute("manifest", Attribute.android("versionCode", ATTR_VERSION_CODE, Value.integer(1)));
+        byte[] edited = editor.toByteArray();
+
+        assertEquals(data.length, edited.length);
+        assertEquals("manifest package=org.example android:versionCode[101021b]=16:1", elements(edited).get(0));
+    }
+
+    @Test
+    public void setAttributeInsertsInResourceIdOrder() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            var editor = new AXmlEditor(manifest(utf8));
+            editor.setAttribute("application", Attribute.android("debuggable", ATTR_DEBUGGABLE, Value.bool(true)));
+
+            assertEquals(List.of(
+                    "manifest package=org.example android:versionCode[101021b]=16:5",
+                    "uses-permission android:name[1010003]=android.permission.INTERNET",
+                    "application android:label[1010001]=App android:name[1010003]=.App"
+                            + " android:debuggable[101000f]=18:-1 custom=x",
+                    "activity android:name[1010003]=.Main"), elements(editor.toByteArray()));
+        }
+    }
+
+    @Test
+    public void newMappedNameShiftsStringReferences() throws Exception {
+        // "debuggable" and "value" are not in the pool yet, so both are inserted
+        // after the mapped names, in front of every element name and value
+        var editor = new AXmlEditor(manifest(false));
+        editor.setAttribute("application", Attribute.android("debuggable", ATTR_DEBUGGABLE, Value.bool(false)));
+        editor.addElement("application", "meta-data",
+                Attribute.android("value", ATTR_VALUE, Value.string("config")),
+                Attribute.android("name", ATTR_NAME, Value.string("lspatch")));
+        editor.setAttribute("application", Attribute.android("label", ATTR_LABEL, Value.string("Patched")));
+
+        assertEquals(List.of(
+                "manifest package=org.example android:versionCode[101021b]=16:5",
+                "uses-permission android:name[1010003]=android.permission.INTERNET",
+                "application android:label[1010001]=Patched android:name[1010003]=.App"
+                        + " android:debuggable[101000f]=18:0 custom=x",
+                "meta-data android:name[1010003]=lspatch android:value[1010024]=config",
+                "activity android:name[1010003]=.Main"), elements(editor.toByteArray()));
+    }
+
+    @Test
+    public void addElementAddsFirstChild() throws Exception {
+        var editor = new AXmlEditor(manifest(true));
+        editor.addElement("manifest", "uses-permission",
+                Attribute.android("name", ATTR_NAME, Value.string("android.permission.QUERY_ALL_PACKAGES")));
+        byte[] edited = editor.toByteArray();
+
+        List<String> elements = elements(edited);
+        assertEquals(5, elements.size());
+        assertEquals("uses-permission android:name[1010003]=android.permission.QUERY_ALL_PACKAGES", elements.get(1));
+        assertEquals("uses-permission android:name[1010003]=android.permission.INTERNET", elements.get(2));
+        // re-editing the output keeps it intact
+        assertArrayEquals(edited, new AXmlEditor(edited).toByteArray());
+    }
+
+    @Test
+    public void missingElementIsRejected() throws Exception {
+        var editor = new AXmlEditor(manifest(false));
+        assertThrows(IOException.class, () -> editor.setAttribute("service",
+                Attribute.android("name", ATTR_NAME, Value.string(".Service"))));
+    }
+
+    @Test
+    public void notBinaryXmlIsRejected() {
+        assertThrows(IOException.class, () -> new AXmlEditor("<manifest/>".getBytes()));
+    }
+}
@@ -0,0 +1,169 @@
+package wind.android.content.res;
+
+import static org.junit.Assert.assertEquals;
+import static wind.android.content.res.BinaryXmlBuilder.ANDROID;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import wind.android.content.res.AXmlQuery.Target;
+import wind.android.util.TypedValue;
+
+public class AXmlQueryTest {
+
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_PERMISSION = 0x01010006;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+
+    private static final Target[] TARGETS = {
+            new Target("manifest", 0, "package"),
+            new Target("manifest", ATTR_VERSION_CODE, "versionCode"),
+            new Target("uses-permission", ATTR_NAME, "name"),
+            new Target("application", ATTR_LABEL, "label"),
+            new Target("application", ATTR_PERMISSION, "permission"),
+            new Target("permission", ATTR_NAME, "name"),
+            new Target(null, 0, "größe"),
+    };
+
+    /**
+     * <manifest package="org.example" android:versionCode="5">
+     *   <uses-permission android:name="android.permission.INTERNET"/>
+     *   <permission android:name="org.example.READ"/>
+     *   <application android:label="Äpp" android:permission="org.example.READ" größe="2">
+     *     <activity android:name=".Main"/>
+     *   </application>
+     *   <uses-permission android:name="android.permission.CAMERA"/>
+     * </manifest>
+     */
+    private static byte[] manifest(boolean utf8) {
+        // "permission" is both a mapped attribute name and an element name
+        var xml = new BinaryXmlBuilder(utf8, new String[] {"label", "name", "permission", "versionCode"},
+                new int[] {ATTR_LABEL, ATTR_NAME, ATTR_PERMISSION, ATTR_VERSION_CODE});
+        int label = xml.mapped("label");
+        int name = xml.mapped("name");
+        int permission = xml.mapped("permission");
+        int versionCode = xml.mapped("versionCode");
+        xml.startNamespace("android", ANDROID);
+        xml.startTag("manifest",
+                xml.stringAttribute(null, xml.string("package"), "org.example"),
+                xml.intAttribute(ANDROID, versionCode, TypedValue.TYPE_INT_DEC, 5));
+        xml.startTag("uses-permission", xml.stringAttribute(ANDROID, name, "android.permission.INTERNET"));
+        xml.endTag("uses-permission");
+        xml.startTag("permission", xml.stringAttribute(ANDROID, name, "org.example.READ"));
+        xml.endTag("permission");
+        xml.startTag("application",
+                xml.stringAttribute(ANDROID, label, "Äpp"),
+                xml.stringAttribute(ANDROID, permission, "org.example.READ"),
+                xml.intAttribute(null, xml.string("größe"), TypedValue.TYPE_INT_DEC, 2));
+        xml.startTag("activity", xml.stringAttribute(ANDROID, name, ".Main"));
+        xml.endTag("activity");
+        xml.endTag("application");
+        xml.startTag("uses-permission", xml.stringAttribute(ANDROID, name, "android.permission.CAMERA"));
+        xml.endTag("uses-permission");
+        xml.endTag("manifest");
+        xml.endNamespace("android", ANDROID);
+        return xml.build();
+    }
+
+    /**
+     * Lists the matches, each as {@code target:element=value}.
+     */
+    private static List<String> matches(Iterable<AXmlQuery.Match> select) {
+        List<String> matches = new ArrayList<>();
+        for (var match : select) {
+            String value = match.getValueType() == TypedValue.TYPE_STRING ?
+                    match.getRawValue() :
+                    String.valueOf(match.getIntValue(-1));
+            matches.add(match.getTarget() + ":" + match.getElementName() + "=" + value);
+        }
+        return matches;
+    }
+
+    @Test
+    public void selectFindsTargetsInDocumentOrder() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            assertEquals(List.of(
+                    "0:manifest=org.example",
+                    "1:manifest=5",
+                    "2:uses-permission=android.permission.INTERNET",
+                    "5:permission=org.example.READ",
+                    "3:application=Äpp",
+                    "4:application=org.example.READ",
+                    "6:application=2",
+                    "2:uses-permission=android.permission.CAMERA"),
+                    matches(new AXmlQuery(manifest(utf8)).select(TARGETS)));
+        }
+    }
+
+    @Test
+    public void selectUntilEndStopsAtEndTag() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            assertEquals(List.of(
+                    "0:manifest=org.example",
+                    "1:manifest=5",
+                    "2:uses-permission=android.permission.INTERNET",
+                    "5:permission=org.example.READ",
+                    "3:application=Äpp",
+                    "4:application=org.example.READ",
+                    "6:application=2"),
+                    matches(new AXmlQuery(manifest(utf8)).selectUntilEnd("application", TARGETS)));
+        }
+    }
+
+    @Test
+    public void missingNamesMatchNothing() throws Exception {
+        var query = new AXmlQuery(manifest(true));
+        assertEquals(List.of(), matches(query.select(
+                new Target("service", ATTR_NAME, "name"),
+                new Target("application", 0x0101000f, "debuggable"))));
+    }
+
+    @Test
+    public void findComparesEncodedStrings() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            var parser = new AXmlResourceParser();
+            parser.open(manifest(utf8));
+            parser.next();
+            StringBlock strings = parser.getStrings();
+
+            int element = strings.find("permission", 3);
+            assertEquals(2, strings.find("permission"));
+            assertEquals("permission", strings.getString(element));
+            assertEquals(-1, strings.find("permission", element + 1));
+            assertEquals("größe", strings.getString(strings.find("größe")));
+            assertEquals("Äpp", strings.getString(strings.find("Äpp")));
+            assertEquals(-1, strings.find("gröse"));
+            assertEquals(-1, strings.find(null));
+        }
+    }
+
+    @Test
+    public void findTellsApartStringsWithTheSameHash() throws Exception {
+        for (boolean utf8 : new boolean[] {false, true}) {
+            // the encoded bytes of "Aa" hash like those of "BB" in UTF-8 and of "\u0141B" in UTF-16
+            String collision = utf8 ? "BB" : "\u0141B";
+            var xml = new BinaryXmlBuilder(utf8, new String[0], new int[0]);
+            xml.startTag(collision);
+            xml.endTag(collision);
+            var parser = new AXmlResourceParser();
+            parser.open(xml.build());
+            parser.next();
+            StringBlock strings = parser.getStrings();
+
+            assertEquals(-1, strings.find("Aa"));
+            assertEquals(collision, strings.getString(strings.find(collision)));
+
+            xml.string("Aa");
+            parser = new AXmlResourceParser();
+            parser.open(xml.build());
+            parser.next();
+            strings = parser.getStrings();
+
+            assertEquals("Aa", strings.getString(strings.find("Aa")));
+            assertEquals(collision, strings.getString(strings.find(collision)));
+        }
+    }
+}
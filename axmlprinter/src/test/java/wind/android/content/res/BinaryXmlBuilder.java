@@ -0,0 +1,170 @@
+package wind.android.content.res;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import wind.android.util.TypedValue;
+
+/**
+ * Writes small binary xml documents the way aapt lays them out: the string
+ * pool with the attribute names mapped to resource ids first, the resource
+ * map, then the node chunks.
+ */
+final class BinaryXmlBuilder {
+
+    static final String ANDROID = AXmlEditor.ANDROID_NAMESPACE;
+
+    private final boolean m_utf8;
+    private final List<String> m_strings = new ArrayList<>();
+    private final int[] m_resourceIds;
+    private final ByteArrayOutputStream m_nodes = new ByteArrayOutputStream();
+    private int m_lineNumber = 1;
+
+    /**
+     * @param names attribute names mapped to {@code resourceIds}, in pool order.
+     */
+    BinaryXmlBuilder(boolean utf8, String[] names, int[] resourceIds) {
+        m_utf8 = utf8;
+        for (String name : names) {
+            m_strings.add(name);
+        }
+        m_resourceIds = resourceIds.clone();
+    }
+
+    static int[] attribute(int namespace, int name, int rawValue, int type, int data) {
+        return new int[] {namespace, name, rawValue, type, data};
+    }
+
+    int string(String value) {
+        int index = m_strings.indexOf(value);
+        if (index < 0 || index < m_resourceIds.length) {
+            // mapped names only stand for attribute names
+            for (int i = m_resourceIds.length; i < m_strings.size(); ++i) {
+                if (m_strings.get(i).equals(value)) {
+                    return i;
+                }
+            }
+            m_strings.add(value);
+            return m_strings.size() - 1;
+        }
+        return index;
+    }
+
+    int mapped(String name) {
+        for (int i = 0; i != m_resourceIds.length; ++i) {
+            if (m_strings.get(i).equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    int[] stringAttribute(String namespace, int name, String value) {
+        int string = string(value);
+        return attribute(namespace == null ? -1 : string(namespace), name, string, TypedValue.TYPE_STRING, string);
+    }
+
+    int[] intAttribute(String namespace, int name, int type, int data) {
+        return attribute(namespace == null ? -1 : string(namespace), name, -1, type, data);
+    }
+
+    BinaryXmlBuilder startNamespace(String prefix, String uri) {
+        return namespace(0x0100, prefix, uri);
+    }
+
+    BinaryXmlBuilder endNamespace(String prefix, String uri) {
+        return namespace(0x0101, prefix, uri);
+    }
+
+    private BinaryXmlBuilder namespace(int type, String prefix, String uri) {
+        ByteBuffer node = node(type, 24);
+        node.putInt(string(prefix)).putInt(string(uri));
+        write(node);
+        return this;
+    }
+
+    BinaryXmlBuilder startTag(String name, int[]... attributes) {
+        ByteBuffer node = node(0x0102, 36 + attributes.length * 20);
+        node.putInt(-1).putInt(string(name));
+        node.putShort((short) 20).putShort((short) 20).putShort((short) attributes.length);
+        node.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        for (int[] attribute : attributes) {
+            node.putInt(attribute[0]).putInt(attribute[1]).putInt(attribute[2]);
+            node.putShort((short) 8).put((byte) 0).put((byte) attribute[3]).putInt(attribute[4]);
+        }
+        write(node);
+        return this;
+    }
+
+    BinaryXmlBuilder endTag(String name) {
+        ByteBuffer node = node(0x0103, 24);
+        node.putInt(-1).putInt(string(name));
+        write(node);
+        return this;
+    }
+
+    private ByteBuffer node(int type, int size) {
+        ByteBuffer node = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        node.putShort((short) type).putShort((short) 16).putInt(size);
+        node.putInt(m_lineNumber++).putInt(-1);
+        return node;
+    }
+
+    private void write(ByteBuffer node) {
+        m_nodes.write(node.array(), 0, node.capacity());
+    }
+
+    byte[] build() {
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        int[] offsets = new int[m_strings.size()];
+        for (int i = 0; i != offsets.length; ++i) {
+            offsets[i] = strings.size();
+            byte[] entry = encode(m_strings.get(i));
+            strings.write(entry, 0, entry.length);
+        }
+        while (strings.size() % 4 != 0) {
+            strings.write(0);
+        }
+        int stringsStart = 28 + offsets.length * 4;
+        int poolSize = stringsStart + strings.size();
+        int resourceIdsSize = 8 + m_resourceIds.length * 4;
+        int size = 8 + poolSize + resourceIdsSize + m_nodes.size();
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putShort((short) 0x0003).putShort((short) 8).putInt(size);
+        out.putShort((short) 0x0001).putShort((short) 28).putInt(poolSize);
+        out.putInt(offsets.length).putInt(0).putInt(m_utf8 ? 0x100 : 0);
+        out.putInt(stringsStart).putInt(0);
+        for (int offset : offsets) {
+            out.putInt(offset);
+        }
+        out.put(strings.toByteArray());
+        out.putShort((short) 0x0180).putShort((short) 8).putInt(resourceIdsSize);
+        for (int resourceId : m_resourceIds) {
+            out.putInt(resourceId);
+        }
+        out.put(m_nodes.toByteArray());
+        return out.array();
+    }
+
+    private byte[] encode(String value) {
+        if (m_utf8) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            byte[] entry = new byte[bytes.length + 3];
+            entry[0] = (byte) value.length();
+            entry[1] = (byte) bytes.length;
+            System.arraycopy(bytes, 0, entry, 2, bytes.length);
+            return entry;
+        }
+        byte[] chars = value.getBytes(StandardCharsets.UTF_16LE);
+        byte[] entry = new byte[chars.length + 4];
+        entry[0] = (byte) value.length();
+        entry[1] = (byte) (value.length() >> 8);
+        System.arraycopy(chars, 0, entry, 2, chars.length);
+        return entry;
+    }
+}
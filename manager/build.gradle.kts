@@ -20,6 +20,7 @@ android {
 
     androidResources {
         noCompress.add(".so")
+        noCompress.add(".dex")
     }
 
     buildTypes {
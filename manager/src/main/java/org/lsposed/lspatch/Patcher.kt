@@ -27,6 +27,7 @@ object Patcher {
                 add("-l"); add(config.sigBypassLevel.toString())
                 if (config.useManager) add("--manager")
                 if (config.overrideVersionCode) add("-r")
+                if (config.directOriginalApk) add("--direct-origin")
                 if (Configs.detailPatchLogs) add("-v")
                 embeddedModules?.forEach {
                     add("-m"); add(it)
@@ -34,8 +35,23 @@ object Patcher {
                 if (!MyKeyStore.useDefault) {
                     addAll(arrayOf("-k", MyKeyStore.file.path, Configs.keyStorePassword, Configs.keyStoreAlias, Configs.keyStoreAliasPassword))
                 }
+                // Keep temporary patch data within a small share of the heap and spill the rest to app cache
+                add("--storage-memory"); add(storageMemoryMiB().toString())
+                add("--storage-chunk"); add(STORAGE_CHUNK_MIB.toString())
+                add("--storage-dir"); add(lspApp.cacheDir.resolve("zfile").absolutePath)
             }.toTypedArray()
         }
+
+        private fun storageMemoryMiB(): Long {
+            val heapMiB = Runtime.getRuntime().maxMemory() / (1024 * 1024)
+            return (heapMiB / 8).coerceIn(STORAGE_MEMORY_MIN_MIB, STORAGE_MEMORY_MAX_MIB)
+        }
+
+        companion object {
+            private const val STORAGE_CHUNK_MIB = 4L
+            private const val STORAGE_MEMORY_MIN_MIB = 8L
+            private const val STORAGE_MEMORY_MAX_MIB = 50L
+        }
     }
 
     suspend fun patch(logger: Logger, options: Options) {
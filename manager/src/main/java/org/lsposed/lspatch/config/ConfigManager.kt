@@ -11,6 +11,7 @@ import org.lsposed.lspatch.database.entity.Module
 import org.lsposed.lspatch.database.entity.Scope
 import org.lsposed.lspatch.lspApp
 import org.lsposed.lspatch.util.ModuleLoader
+import org.lsposed.lspatch.util.ModuleMetadataCache
 import java.io.File
 
 object ConfigManager {
@@ -29,6 +30,10 @@ object ConfigManager {
 
     private val loadedModules = mutableMapOf<Module, org.lsposed.lspd.models.Module>()
 
+    init {
+        ModuleLoader.setMetadataCache(ModuleMetadataCache(File(lspApp.cacheDir, "module_metadata").toPath()))
+    }
+
     suspend fun updateModules(newModules: Map<String, String>) =
         withContext(dispatcher) {
             for (module in moduleDao.getAll()) {
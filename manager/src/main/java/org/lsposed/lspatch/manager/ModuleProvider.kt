@@ -6,13 +6,17 @@ import android.database.Cursor
 import android.net.Uri
 import android.os.Binder
 import android.os.Bundle
+import android.os.Process
 import android.util.Log
 import org.lsposed.lspatch.lspApp
+import java.io.StringWriter
 
 class ModuleProvider : ContentProvider() {
 
     companion object {
         private const val TAG = "ModuleProvider"
+        private const val ROOT_UID = 0
+        private const val SHELL_UID = 2000
     }
 
     override fun onCreate(): Boolean {
@@ -26,6 +30,22 @@ class ModuleProvider : ContentProvider() {
             "getBinder" -> Bundle().apply {
                 putBinder("binder", ManagerService.asBinder())
             }
+            "reportStartupTrace" -> Bundle().apply {
+                val trace = extras?.getByteArray("trace")
+                // apps patched before traces were kept per process only report their main process
+                val process = extras?.getString("process") ?: app
+                // any app may call, so save only keeps bounded traces of the caller's own processes
+                if (app != null && process != null && trace != null) StartupTraces.save(app, process, trace)
+            }
+            // adb shell content call --uri content://org.lsposed.lspatch.provider --method exportStartupTrace --arg <package>
+            "exportStartupTrace" -> Bundle().apply {
+                val uid = Binder.getCallingUid()
+                if (uid != SHELL_UID && uid != ROOT_UID && uid != Process.myUid()) {
+                    throw SecurityException("Startup traces are only exported to the shell")
+                }
+                val writer = StringWriter()
+                if (arg != null && StartupTraces.export(arg, writer)) putString("trace", writer.toString())
+            }
             else -> throw IllegalArgumentException("Invalid method name")
         }
     }
@@ -0,0 +1,85 @@
+package org.lsposed.lspatch.manager
+
+import android.util.Log
+import org.lsposed.lspatch.lspApp
+import org.lsposed.lspatch.share.StartupTrace
+import java.io.File
+import java.io.IOException
+import java.io.Writer
+
+/**
+ * Startup traces reported by patched apps, the latest ring of each process of each app.
+ */
+object StartupTraces {
+
+    private const val TAG = "StartupTraces"
+
+    /**
+     * Maximum number of processes of an app whose traces are kept.
+     */
+    private const val MAX_PROCESSES = 16
+
+    private val traceDir get() = File(lspApp.cacheDir, "startup_traces")
+
+    /**
+     * Keeps the trace [process] of [packageName] reported, replacing the one it reported before. Traces larger than
+     * [StartupTrace.MAX_SIZE], of processes of other packages, or of more than [MAX_PROCESSES] processes are dropped.
+     */
+    fun save(packageName: String, process: String, data: ByteArray) {
+        if (!StartupTrace.isProcessOf(process, packageName)) {
+            Log.w(TAG, "Startup trace of $process reported by $packageName")
+            return
+        }
+        try {
+            if (!StartupTrace.read(data).hasOnlyProcessesOf(packageName)) {
+                throw IOException("Records of processes of other packages")
+            }
+            val dir = File(traceDir, packageName)
+            val name = "${process.replace('/', '_')}.trace"
+            val target = File(dir, name)
+            dir.mkdirs()
+            val traces = dir.list { _, file -> file.endsWith(".trace") }?.size ?: 0
+            if (!target.exists() && traces >= MAX_PROCESSES) {
+                Log.w(TAG, "Too many startup traces of $packageName, dropping the one of $process")
+                return
+            }
+            // processes of an app may report at the same time
+            val tmp = File.createTempFile(name, ".tmp", dir)
+            try {
+                tmp.writeBytes(data)
+                if (!tmp.renameTo(target)) {
+                    throw IOException("Failed to move $tmp")
+                }
+            } finally {
+                tmp.delete()
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Invalid startup trace from $packageName", e)
+        }
+    }
+
+    /**
+     * Returns the traces of the processes of [packageName].
+     */
+    fun get(packageName: String): List<StartupTrace> {
+        val files = File(traceDir, packageName).listFiles { file -> file.name.endsWith(".trace") } ?: return emptyList()
+        return files.sortedBy { it.name }.mapNotNull { file ->
+            try {
+                StartupTrace.read(file.readBytes())
+            } catch (e: IOException) {
+                Log.w(TAG, "Failed to read startup trace ${file.name} of $packageName", e)
+                null
+            }
+        }
+    }
+
+    /**
+     * Writes the traces of [packageName] as Chrome trace events, returning false if there is none.
+     */
+    fun export(packageName: String, writer: Writer): Boolean {
+        val traces = get(packageName)
+        if (traces.isEmpty()) return false
+        StartupTrace.writeTraceEvents(writer, traces)
+        return true
+    }
+}
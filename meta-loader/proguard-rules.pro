@@ -1,5 +1,7 @@
 -keep class org.lsposed.lspatch.metaloader.LSPAppComponentFactoryStub {
-    public static byte[] dex;
+    public static java.nio.ByteBuffer dexBuffer;
     public static java.lang.ClassLoader parent;
+    public static long bootstrapStartNanos;
+    public static long bootstrapLoadNanos;
     <init>();
 }
@@ -6,19 +6,26 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.IPackageManager;
 import android.os.Build;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
 import android.util.JsonReader;
 import android.util.Log;
 
 import org.lsposed.hiddenapibypass.HiddenApiBypass;
+import org.lsposed.lspatch.share.BinaryPatchConfig;
 import org.lsposed.lspatch.share.Constants;
+import org.lsposed.lspatch.share.StoredEntryRegion;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.Objects;
 import java.util.zip.ZipFile;
@@ -34,10 +41,23 @@ public class LSPAppComponentFactoryStub extends AppComponentFactory {
             "x86_64", "x86_64"
     );
 
-    public static byte[] dex;
+    /**
+     * The loader dex, mapped from the apk or inflated into shared memory. Read by the native loader.
+     */
+    public static ByteBuffer dexBuffer;
+    /**
+     * The shared memory an inflated {@link #dexBuffer} is mapped from, released once the native loader is loaded.
+     */
+    private static SharedMemory dexMemory;
     public static ClassLoader parent = null;
+    /**
+     * {@link System#nanoTime()} when the bootstrap began and when the native loader was loaded, for startup tracing.
+     */
+    public static long bootstrapStartNanos;
+    public static long bootstrapLoadNanos;
 
     static {
+        bootstrapStartNanos = System.nanoTime();
         try {
             var cl = Objects.requireNonNull(LSPAppComponentFactoryStub.class.getClassLoader());
 
@@ -56,17 +76,11 @@ public class LSPAppComponentFactoryStub extends AppComponentFactory {
             boolean useManager = false;
             String soPath;
 
-            try (var is = cl.getResourceAsStream(Constants.CONFIG_ASSET_PATH);
-                 var reader = new JsonReader(new InputStreamReader(is))) {
-                reader.beginObject();
-                while (reader.hasNext()) {
-                    var name = reader.nextName();
-                    if (name.equals("useManager")) {
-                        useManager = reader.nextBoolean();
-                        break;
-                    } else {
-                        reader.skipValue();
-                    }
+            try (var is = cl.getResourceAsStream(Constants.BINARY_CONFIG_ASSET_PATH)) {
+                if (is != null) {
+                    useManager = BinaryPatchConfig.read(is).useManager;
+                } else {
+                    useManager = readUseManagerFromJson(cl);
                 }
             }
 
@@ -79,36 +93,77 @@ public class LSPAppComponentFactoryStub extends AppComponentFactory {
                 } else {
                     manager = ipm.getApplicationInfo(Constants.MANAGER_PACKAGE_NAME, 0, 0);
                 }
-                try (var zip = new ZipFile(new File(manager.sourceDir));
-                     var is = zip.getInputStream(zip.getEntry(Constants.LOADER_DEX_ASSET_PATH));
-                     var os = new ByteArrayOutputStream()) {
-                    transfer(is, os);
-                    dex = os.toByteArray();
-                }
+                dexBuffer = readLoaderDex(manager.sourceDir);
                 soPath = manager.sourceDir + "!/assets/lspatch/so/" + libName + "/liblspatch.so";
             } else {
                 Log.i(TAG, "Bootstrap loader from embedment");
-                try (var is = cl.getResourceAsStream(Constants.LOADER_DEX_ASSET_PATH);
-                     var os = new ByteArrayOutputStream()) {
-                    transfer(is, os);
-                    dex = os.toByteArray();
-                }
+                var dexPath = cl.getResource(Constants.LOADER_DEX_ASSET_PATH).getPath();
+                dexBuffer = readLoaderDex(dexPath.substring(5, dexPath.indexOf("!/")));
                 soPath = cl.getResource("assets/lspatch/so/" + libName + "/liblspatch.so").getPath().substring(5);
             }
 
+            bootstrapLoadNanos = System.nanoTime();
             System.load(soPath);
         } catch (Throwable e) {
             throw new ExceptionInInitializerError(e);
+        } finally {
+            if (dexMemory != null) {
+                // the native loader is done with the dex once loaded
+                if (dexBuffer != null) {
+                    SharedMemory.unmap(dexBuffer);
+                }
+                dexMemory.close();
+                dexMemory = null;
+            }
         }
-        dex = null;
+        dexBuffer = null;
         parent = null;
     }
 
-    private static void transfer(InputStream is, OutputStream os) throws IOException {
-        byte[] buffer = new byte[8192];
-        int n;
-        while (-1 != (n = is.read(buffer))) {
-            os.write(buffer, 0, n);
+    /**
+     * Reads {@code useManager} from the json config of apks patched before the binary config was introduced.
+     */
+    private static boolean readUseManagerFromJson(ClassLoader cl) throws IOException {
+        try (var is = cl.getResourceAsStream(Constants.CONFIG_ASSET_PATH);
+             var reader = new JsonReader(new InputStreamReader(is))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                var name = reader.nextName();
+                if (name.equals("useManager")) {
+                    return reader.nextBoolean();
+                } else {
+                    reader.skipValue();
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Maps the loader dex if it is stored in the apk, otherwise inflates it into {@link SharedMemory} of its size.
+     * A direct buffer would not do: on Android, {@link ByteBuffer#allocateDirect} is backed by a non-movable array on
+     * the java heap.
+     */
+    private static ByteBuffer readLoaderDex(String apkPath) throws IOException, ErrnoException {
+        try (var channel = FileChannel.open(Paths.get(apkPath), StandardOpenOption.READ)) {
+            var region = StoredEntryRegion.find(channel, Constants.LOADER_DEX_ASSET_PATH);
+            if (region != null) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, region.offset, region.size);
+            }
+        }
+        try (var zip = new ZipFile(new File(apkPath))) {
+            var entry = zip.getEntry(Constants.LOADER_DEX_ASSET_PATH);
+            dexMemory = SharedMemory.create("lspatch-loader-dex", (int) entry.getSize());
+            var buffer = dexMemory.mapReadWrite();
+            try (var in = Channels.newChannel(zip.getInputStream(entry))) {
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) < 0) {
+                        throw new EOFException("Truncated " + Constants.LOADER_DEX_ASSET_PATH);
+                    }
+                }
+            }
+            buffer.flip();
+            return buffer;
         }
     }
 }
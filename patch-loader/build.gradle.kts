@@ -61,4 +61,6 @@ dependencies {
     implementation(projects.share.java)
 
     implementation("com.google.code.gson:gson:2.9.1")
+
+    testImplementation("junit:junit:4.13.2")
 }
@@ -1,17 +1,24 @@
 package org.lsposed.lspatch.loader;
 
+import static org.lsposed.lspatch.share.Constants.BINARY_CONFIG_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.CONFIG_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
 
 import android.app.ActivityThread;
+import android.app.Application;
+import android.app.Instrumentation;
 import android.app.LoadedApk;
 import android.app.ResourcesManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.Signature;
+import android.content.pm.SigningInfo;
 import android.content.res.CompatibilityInfo;
 import android.content.res.Resources;
 import android.os.Build;
@@ -28,12 +35,16 @@ import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import org.lsposed.lspatch.loader.util.FileUtils;
+import org.lsposed.lspatch.loader.util.StartupStamp;
 import org.lsposed.lspatch.loader.util.XLog;
 import org.lsposed.lspatch.service.LocalApplicationService;
 import org.lsposed.lspatch.service.NullApplicationService;
 import org.lsposed.lspatch.service.RemoteApplicationService;
+import org.lsposed.lspatch.share.BinaryPatchConfig;
 import org.lsposed.lspatch.share.Constants;
 import org.lsposed.lspatch.share.PatchConfig;
+import org.lsposed.lspatch.share.StartupTrace;
+import org.lsposed.lspatch.share.StoredEntryRegion;
 import org.lsposed.lspd.core.Startup;
 import org.lsposed.lspd.nativebridge.SigBypass;
 import org.lsposed.lspd.service.ILSPApplicationService;
@@ -47,16 +58,25 @@ import java.io.InputStreamReader;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -79,13 +99,86 @@ public class LSPApplication {
     private static ActivityThread activityThread;
 
     private static PatchConfig config;
-    private static final Map<String, String> signatures = new HashMap<>();
+    private static StartupTrace trace;
+    /**
+     * Original signatures by package, {@link OriginalSignatures#NOT_PATCHED} for packages that are not patched. Filled
+     * from the binder threads that unparcel PackageInfo, and emptied of a package when it is installed, updated or
+     * removed, as it may have been patched or unpatched since.
+     */
+    private static final Map<String, OriginalSignatures> signatures = new ConcurrentHashMap<>();
+    /**
+     * Whether package changes reach {@link #signatures}; until they do, packages found not patched are looked up again.
+     */
+    private static volatile boolean watchingPackages;
+    /**
+     * The ComponentInfo fields of each class {@link #updateApplicationInfoInObjectFields} has looked at.
+     */
+    private static final Map<Class<?>, Field[]> componentInfoFields = new ConcurrentHashMap<>();
+    /**
+     * appComponentFactory of the original app, resolved against its package name once.
+     */
+    private static String appComponentFactory;
+    /**
+     * ContextImpl methods that are called on the context handleBindApplication creates for the stub LoadedApk before
+     * the app gets to that context. They are called from ContextImpl.createAppContext and
+     * ActivityThread.handleBindApplication on Android 9 to 14. Several are needed because small ones may be inlined
+     * into boot image code, where they never reach a hook.
+     */
+    private static final Set<String> CONTEXT_IMPL_ENTRY_POINTS = Set.of(
+            "setResources", "checkPermission", "getResources", "getAssets", "getTheme", "getClassLoader",
+            "getPackageName", "getOpPackageName", "getBasePackageName", "getAttributionSource", "getApplicationInfo",
+            "getCacheDir", "getCodeCacheDir", "getDataDir", "getSystemService", "getContentResolver", "getUserId",
+            "getDisplayId", "getMainLooper", "getApplicationContext");
+
+    /**
+     * Signing certificates of an app before it was patched, in the forms PackageInfo reports them.
+     */
+    private static class OriginalSignatures {
+        /**
+         * Stands for packages that are not patched, as the map of signatures cannot hold {@code null}.
+         */
+        static final OriginalSignatures NOT_PATCHED = new OriginalSignatures(null, null);
+
+        /**
+         * Reported in PackageInfo.signatures: the oldest certificate if the signing key was rotated.
+         */
+        final Signature legacy;
+        /**
+         * Reported by SigningInfo.getApkContentsSigners: the certificate the app is signed with now.
+         */
+        final Signature current;
+        /**
+         * Reported by SigningInfo.getSigningCertificateHistory, oldest first; {@code null} if the key was never rotated.
+         */
+        final Signature[] history;
+
+        private OriginalSignatures(Signature current, Signature[] history) {
+            this.legacy = history == null ? current : history[0];
+            this.current = current;
+            this.history = history;
+        }
+
+        static OriginalSignatures of(PatchConfig config) {
+            if (config.originalSignature == null) {
+                return NOT_PATCHED;
+            }
+            Signature[] history = null;
+            if (config.originalSignatureLineage != null && config.originalSignatureLineage.length > 1) {
+                history = new Signature[config.originalSignatureLineage.length];
+                for (int i = 0; i < history.length; i++) {
+                    history[i] = new Signature(config.originalSignatureLineage[i]);
+                }
+            }
+            return new OriginalSignatures(new Signature(config.originalSignature), history);
+        }
+    }
 
     public static boolean isIsolated() {
         return (android.os.Process.myUid() % PER_USER_RANGE) >= FIRST_APP_ZYGOTE_ISOLATED_UID;
     }
 
     public static void onLoad() {
+        long onLoadNanos = System.nanoTime();
         activityThread = ActivityThread.currentActivityThread();
         Log.i(TAG, "Create stub Context");
         var stubContext = createStubContext();
@@ -93,6 +186,7 @@ public class LSPApplication {
             XLog.e(TAG, "Error when creating context");
             return;
         }
+        long phase = beginStartupTrace(stubContext, onLoadNanos);
 
         Log.i(TAG, "Load config");
         config = loadConfig(stubContext);
@@ -100,10 +194,12 @@ public class LSPApplication {
             Log.e(TAG, "Failed to load config file");
             return;
         }
+        phase = tracePhase("loadConfig", phase);
         Log.i(TAG, "Use manager: " + config.useManager);
         Log.i(TAG, "Signature bypass level: " + config.sigBypassLevel);
-        signatures.put(stubContext.getPackageName(), config.originalSignature);
+        signatures.put(stubContext.getPackageName(), OriginalSignatures.of(config));
 
+        StartupStamp stamp = isIsolated() ? null : loadStartupStamp(stubContext);
         try {
             Log.d(TAG, "Initialize service client");
             ILSPApplicationService service;
@@ -115,58 +211,200 @@ public class LSPApplication {
                 if (config.useManager) {
                     service = new RemoteApplicationService(stubContext);
                 } else {
-                    service = new LocalApplicationService(stubContext);
+                    service = new LocalApplicationService(stubContext, stamp);
                 }
                 disableProfile(stubContext);
             }
+            phase = tracePhase("initService", phase);
 
             // start Main.forkCommon
             Startup.initXposed(false, ActivityThread.currentProcessName(), service);
+            phase = tracePhase("initXposed", phase);
             Log.i(TAG, "Bootstrap Xposed");
             Startup.bootstrapXposed();
             Log.i(TAG, "Xposed ready");
+            phase = tracePhase("bootstrapXposed", phase);
             // end Main.forkCommon
 
             Log.i(TAG, "Prepare cache apk");
-            String cacheApk = prepareCacheApk(stubContext);
+            String cacheApk = prepareCacheApk(stubContext, stamp);
+            if (stamp != null) {
+                try {
+                    stamp.save();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save startup stamp", e);
+                }
+            }
+            phase = tracePhase("prepareCacheApk", phase);
 
             Log.i(TAG, "SigBypass");
             doSigBypass(stubContext);
+            phase = tracePhase("sigBypass", phase);
 
             Log.i(TAG, "Switch to new LoadedApk");
             // load xposed modules same as lsposed with zygisk
             switchLoadedApk(stubContext, cacheApk);
+            tracePhase("switchLoadedApk", phase);
 
         } catch (Throwable e) {
             throw new RuntimeException("Do hook", e);
         }
         Log.i(TAG, "LSPatch bootstrap completed");
+        saveStartupTrace(stubContext);
+    }
+
+    /**
+     * Starts tracing this start into the persisted ring of the app, including the phases that ran before
+     * {@link #onLoad()}: the metaloader and the native loader. Returns the start of the next phase.
+     */
+    private static long beginStartupTrace(Context stubContext, long onLoadNanos) {
+        long now = System.nanoTime();
+        long bootstrapStartNanos = 0, bootstrapLoadNanos = 0;
+        try {
+            var stub = Class.forName(Constants.PROXY_APP_COMPONENT_FACTORY, false, stubContext.getClassLoader());
+            bootstrapStartNanos = stub.getField("bootstrapStartNanos").getLong(null);
+            bootstrapLoadNanos = stub.getField("bootstrapLoadNanos").getLong(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            Log.w(TAG, "Failed to read metaloader timestamps", e);
+        }
+        if (!isIsolated()) {
+            try {
+                trace = StartupTrace.read(Files.readAllBytes(startupTracePath(stubContext)));
+            } catch (NoSuchFileException ignored) {
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read startup trace", e);
+            }
+        }
+        if (trace == null) {
+            trace = new StartupTrace();
+        }
+        trace.begin(ActivityThread.currentProcessName(), bootstrapStartNanos != 0 ? bootstrapStartNanos : onLoadNanos);
+        if (bootstrapStartNanos != 0 && bootstrapLoadNanos != 0) {
+            trace.record("metaloader", bootstrapStartNanos, bootstrapLoadNanos);
+            trace.record("nativeLoader", bootstrapLoadNanos, onLoadNanos);
+        }
+        trace.record("createStubContext", onLoadNanos, now);
+        return tracePhase("beginStartupTrace", now);
+    }
+
+    private static long tracePhase(String phase, long startNanos) {
+        long now = System.nanoTime();
+        trace.record(phase, startNanos, now);
+        return now;
     }
 
-    private static String prepareCacheApk(Context stubContext) throws IOException {
-        if (isIsolated()) {
+    /**
+     * Persists the trace in the cache of the app and, with a manager, hands it to the manager. Both happen off the
+     * main thread; isolated processes can do neither.
+     */
+    private static void saveStartupTrace(Context stubContext) {
+        if (isIsolated()) return;
+        var data = trace.toByteArray();
+        var process = ActivityThread.currentProcessName();
+        var tracePath = startupTracePath(stubContext);
+        new Thread(() -> {
+            try {
+                Files.createDirectories(tracePath.getParent());
+                Path tmpPath = Files.createTempFile(tracePath.getParent(), tracePath.getFileName().toString(), ".tmp");
+                try {
+                    Files.write(tmpPath, data);
+                    Files.move(tmpPath, tracePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(tmpPath);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save startup trace", e);
+            }
+            if (config.useManager) {
+                RemoteApplicationService.reportStartupTrace(stubContext, process, data);
+            }
+        }, "LSPatch-StartupTrace").start();
+    }
+
+    /**
+     * Each process of the app keeps its own trace, so processes starting together do not overwrite each other's
+     * starts.
+     */
+    private static Path startupTracePath(Context stubContext) {
+        var process = ActivityThread.currentProcessName().replace('/', '_');
+        return Paths.get(stubContext.getApplicationInfo().dataDir, "cache/lspatch/startup", process + ".trace");
+    }
+
+    private static StartupStamp loadStartupStamp(Context stubContext) {
+        try {
+            return StartupStamp.load(Paths.get(stubContext.getApplicationInfo().dataDir, "cache/lspatch/startup.stamp"),
+                    stubContext.getApplicationInfo().sourceDir);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load startup stamp", e);
+            return null;
+        }
+    }
+
+    private static String prepareCacheApk(Context stubContext, StartupStamp stamp) throws IOException {
+        if (isIsolated() || config.directOriginalApk) {
             SigBypass.enhanceOpenat();
             return stubContext.getApplicationInfo().sourceDir + "!/" + ORIGINAL_APK_ASSET_PATH;
         }
+        String stamped = stamp != null ? stamp.getExtractedPath(ORIGINAL_APK_ASSET_PATH) : null;
+        if (stamped != null) {
+            return stamped;
+        }
+        String sourceDir = stubContext.getApplicationInfo().sourceDir;
+        Path originPath = Paths.get(stubContext.getApplicationInfo().dataDir, "cache/lspatch/origin/");
+        try (var source = FileChannel.open(Paths.get(sourceDir), StandardOpenOption.READ)) {
+            // LSPatch stores the original apk uncompressed, so its data can be copied as it is
+            var region = StoredEntryRegion.find(source, ORIGINAL_APK_ASSET_PATH);
+            if (region != null) {
+                Path cacheApkPath = originPath.resolve(region.crc32 + ".apk");
+                if (!Files.exists(cacheApkPath)) {
+                    Log.i(TAG, "Extract original apk");
+                    Files.createDirectories(originPath);
+                    FileUtils.writeAtomically(cacheApkPath, tmpPath -> {
+                        try (var target = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+                            region.transferTo(source, target);
+                        }
+                    });
+                    // copies of other versions of the original apk
+                    FileUtils.deleteOtherFiles(originPath, cacheApkPath.getFileName().toString());
+                }
+                if (stamp != null) {
+                    stamp.putExtracted(ORIGINAL_APK_ASSET_PATH, region.crc32, cacheApkPath.toString());
+                }
+                return cacheApkPath.toString();
+            }
+        }
+        // recompressed after patching
         String cacheApk;
-        try (ZipFile sourceFile = new ZipFile(stubContext.getApplicationInfo().sourceDir)) {
+        try (ZipFile sourceFile = new ZipFile(sourceDir)) {
             ZipEntry entry = sourceFile.getEntry(ORIGINAL_APK_ASSET_PATH);
-            Path originPath = Paths.get(stubContext.getApplicationInfo().dataDir, "cache/lspatch/origin/");
             Path cacheApkPath = originPath.resolve(entry.getCrc() + ".apk");
             cacheApk = cacheApkPath.toString();
             if (!Files.exists(cacheApkPath)) {
                 Log.i(TAG, "Extract original apk");
-                FileUtils.deleteFolderIfExists(originPath);
                 Files.createDirectories(originPath);
-                try (InputStream is = sourceFile.getInputStream(entry)) {
-                    Files.copy(is, cacheApkPath);
-                }
+                FileUtils.writeAtomically(cacheApkPath, tmpPath -> {
+                    try (InputStream is = sourceFile.getInputStream(entry)) {
+                        Files.copy(is, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                });
+                FileUtils.deleteOtherFiles(originPath, cacheApkPath.getFileName().toString());
+            }
+            if (stamp != null) {
+                stamp.putExtracted(ORIGINAL_APK_ASSET_PATH, entry.getCrc(), cacheApk);
             }
         }
         return cacheApk;
     }
 
     private static PatchConfig loadConfig(Context context) {
+        // apks patched before the binary config was introduced only have the json one
+        try (var is = context.getClassLoader().getResourceAsStream(BINARY_CONFIG_ASSET_PATH)) {
+            if (is != null) {
+                return BinaryPatchConfig.read(is);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read binary config, falling back to json", e);
+        }
         try (var is = context.getClassLoader().getResourceAsStream(CONFIG_ASSET_PATH)) {
             BufferedReader streamReader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
             return new Gson().fromJson(streamReader, PatchConfig.class);
@@ -200,6 +438,7 @@ public class LSPApplication {
 
             String sourceDir = appInfo.sourceDir;
 
+            appComponentFactory = resolveAppComponentFactory(appInfo.packageName);
             // update existing ApplicationInfo
             updateApplicationInfo(appInfo, cacheApk);
             updateApplicationInfoInMessageQueue(appInfo.packageName, cacheApk);
@@ -402,39 +641,77 @@ public class LSPApplication {
     }
 
     private static void proxyPackageInfoCreator(Context context) {
-        Parcelable.Creator<PackageInfo> originalCreator = PackageInfo.CREATOR;
-        Parcelable.Creator<PackageInfo> proxiedCreator = new Parcelable.Creator<>() {
+        watchPackageChanges(context);
+        XposedHelpers.setStaticObjectField(PackageInfo.class, "CREATOR", newPackageInfoCreator(context, PackageInfo.CREATOR));
+        clearCreatorCache();
+    }
+
+    private static void watchPackageChanges(Context context) {
+        var filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        try {
+            context.registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    var data = intent.getData();
+                    if (data != null) signatures.remove(data.getSchemeSpecificPart());
+                }
+            }, filter);
+            watchingPackages = true;
+        } catch (Throwable e) {
+            Log.w(TAG, "Failed to watch package changes, unpatched packages will not be cached", e);
+        }
+    }
+
+    private static OriginalSignatures readOriginalSignatures(Context context, String packageName) {
+        try {
+            var metaData = context.getPackageManager().getApplicationInfo(packageName, PackageManager.GET_META_DATA).metaData;
+            String encoded = null;
+            if (metaData != null) encoded = metaData.getString("lspatch");
+            if (encoded != null) {
+                var json = new String(Base64.decode(encoded, Base64.DEFAULT), StandardCharsets.UTF_8);
+                return OriginalSignatures.of(new Gson().fromJson(json, PatchConfig.class));
+            }
+        } catch (PackageManager.NameNotFoundException | JsonSyntaxException ignored) {
+        }
+        return OriginalSignatures.NOT_PATCHED;
+    }
+
+    /**
+     * Wraps {@code originalCreator} to report the original signatures of patched packages.
+     */
+    private static Parcelable.Creator<PackageInfo> newPackageInfoCreator(Context context, Parcelable.Creator<PackageInfo> originalCreator) {
+        return new Parcelable.Creator<>() {
             @Override
             public PackageInfo createFromParcel(Parcel source) {
                 PackageInfo packageInfo = originalCreator.createFromParcel(source);
                 boolean hasSignature = (packageInfo.signatures != null && packageInfo.signatures.length != 0) || packageInfo.signingInfo != null;
-                if (hasSignature) {
+                if (hasSignature && packageInfo.packageName != null) {
                     String packageName = packageInfo.packageName;
-                    String replacement = signatures.get(packageName);
-                    if (replacement == null && !signatures.containsKey(packageName)) {
-                        try {
-                            var metaData = context.getPackageManager().getApplicationInfo(packageName, PackageManager.GET_META_DATA).metaData;
-                            String encoded = null;
-                            if (metaData != null) encoded = metaData.getString("lspatch");
-                            if (encoded != null) {
-                                var json = new String(Base64.decode(encoded, Base64.DEFAULT), StandardCharsets.UTF_8);
-                                var patchConfig = new Gson().fromJson(json, PatchConfig.class);
-                                replacement = patchConfig.originalSignature;
-                            }
-                        } catch (PackageManager.NameNotFoundException | JsonSyntaxException ignored) {
+                    OriginalSignatures replacement = signatures.get(packageName);
+                    if (replacement == null) {
+                        // a binder call, so not under the lock of the map; threads racing on a package all read the same
+                        replacement = readOriginalSignatures(context, packageName);
+                        if (replacement != OriginalSignatures.NOT_PATCHED || watchingPackages) {
+                            signatures.putIfAbsent(packageName, replacement);
                         }
-                        signatures.put(packageName, replacement);
                     }
-                    if (replacement != null) {
+                    if (replacement != OriginalSignatures.NOT_PATCHED) {
                         if (packageInfo.signatures != null && packageInfo.signatures.length > 0) {
                             XLog.d(TAG, "Replace signature info for `" + packageName + "` (method 1)");
-                            packageInfo.signatures[0] = new Signature(replacement);
+                            packageInfo.signatures[0] = replacement.legacy;
                         }
                         if (packageInfo.signingInfo != null) {
                             XLog.d(TAG, "Replace signature info for `" + packageName + "` (method 2)");
                             Signature[] signaturesArray = packageInfo.signingInfo.getApkContentsSigners();
                             if (signaturesArray != null && signaturesArray.length > 0) {
-                                signaturesArray[0] = new Signature(replacement);
+                                signaturesArray[0] = replacement.current;
+                            }
+                            if (replacement.history != null) {
+                                setSigningCertificateHistory(packageInfo.signingInfo, replacement.history);
                             }
                         }
                     }
@@ -447,8 +724,24 @@ public class LSPApplication {
                 return originalCreator.newArray(size);
             }
         };
-        XposedHelpers.setStaticObjectField(PackageInfo.class, "CREATOR", proxiedCreator);
-        clearCreatorCache();
+    }
+
+    /**
+     * Makes {@code signingInfo} report {@code history} as past signing certificates. The patched apk is signed with a
+     * single key, so its signing details have none to replace in place.
+     */
+    private static void setSigningCertificateHistory(SigningInfo signingInfo, Signature[] history) {
+        try {
+            // PackageParser.SigningDetails before Android 13, android.content.pm.SigningDetails since
+            Object signingDetails = XposedHelpers.getObjectField(signingInfo, "mSigningDetails");
+            try {
+                XposedHelpers.setObjectField(signingDetails, "mPastSigningCertificates", history.clone());
+            } catch (NoSuchFieldError e) {
+                XposedHelpers.setObjectField(signingDetails, "pastSigningCertificates", history.clone());
+            }
+        } catch (Throwable e) {
+            Log.w(TAG, "Failed to replace signing certificate history", e);
+        }
     }
 
     private static void clearCreatorCache() {
@@ -494,26 +787,38 @@ public class LSPApplication {
         }
     }
 
+    private static String resolveAppComponentFactory(String packageName) {
+        if (config.appComponentFactory == null || config.appComponentFactory.isEmpty()) {
+            return null;
+        }
+        if (config.appComponentFactory.startsWith(".")) {
+            return packageName + config.appComponentFactory;
+        }
+        return config.appComponentFactory;
+    }
+
     private static void updateApplicationInfo(ApplicationInfo appInfo, String cacheApk) {
         appInfo.sourceDir = cacheApk;
         appInfo.publicSourceDir = cacheApk;
-        appInfo.appComponentFactory = null;
-        if (config.appComponentFactory != null && config.appComponentFactory.length() > 0) {
-            if (config.appComponentFactory.startsWith(".")) {
-                appInfo.appComponentFactory = appInfo.packageName + config.appComponentFactory;
-            } else {
-                appInfo.appComponentFactory = config.appComponentFactory;
-            }
-        }
+        appInfo.appComponentFactory = appComponentFactory;
     }
 
     private static void proxyApplicationInfoCreator(String packageName, String cacheApk) {
-        Parcelable.Creator<ApplicationInfo> originalCreator = ApplicationInfo.CREATOR;
-        Parcelable.Creator<ApplicationInfo> proxiedCreator = new Parcelable.Creator<ApplicationInfo>() {
+        XposedHelpers.setStaticObjectField(ApplicationInfo.class, "CREATOR",
+                newApplicationInfoCreator(packageName, cacheApk, ApplicationInfo.CREATOR));
+        clearCreatorCache();
+    }
+
+    /**
+     * Wraps {@code originalCreator} to point ApplicationInfo of {@code packageName} at {@code cacheApk}.
+     */
+    private static Parcelable.Creator<ApplicationInfo> newApplicationInfoCreator(String packageName, String cacheApk,
+                                                                         Parcelable.Creator<ApplicationInfo> originalCreator) {
+        return new Parcelable.Creator<ApplicationInfo>() {
             @Override
             public ApplicationInfo createFromParcel(Parcel source) {
                 ApplicationInfo applicationInfo = originalCreator.createFromParcel(source);
-                if (applicationInfo != null && applicationInfo.packageName.equals(packageName)) {
+                if (applicationInfo != null && packageName.equals(applicationInfo.packageName)) {
                     updateApplicationInfo(applicationInfo, cacheApk);
                 }
                 return applicationInfo;
@@ -524,8 +829,6 @@ public class LSPApplication {
                 return originalCreator.newArray(size);
             }
         };
-        XposedHelpers.setStaticObjectField(ApplicationInfo.class, "CREATOR", proxiedCreator);
-        clearCreatorCache();
     }
 
     private static void updateApplicationInfoInMessageQueue(String packageName, String cacheApk) {
@@ -557,18 +860,11 @@ public class LSPApplication {
         if (obj == null) {
             return;
         }
-        for (Field field : obj.getClass().getDeclaredFields()) {
-            if (Modifier.isStatic(field.getModifiers())) {
-                continue; // skip static field
-            }
-            if (!ComponentInfo.class.isAssignableFrom(field.getType())) {
-                continue; // skip unknown field
-            }
+        for (Field field : componentInfoFields.computeIfAbsent(obj.getClass(), LSPApplication::findComponentInfoFields)) {
             ComponentInfo componentInfo;
             try {
-                field.setAccessible(true);
                 componentInfo = (ComponentInfo) field.get(obj);
-            } catch (SecurityException | IllegalArgumentException | IllegalAccessException ignore) {
+            } catch (IllegalArgumentException | IllegalAccessException ignore) {
                 continue; // skip failed
             }
             if (componentInfo == null || componentInfo.applicationInfo == null) {
@@ -581,11 +877,34 @@ public class LSPApplication {
         }
     }
 
+    private static Field[] findComponentInfoFields(Class<?> clazz) {
+        var fields = new ArrayList<Field>();
+        for (Field field : clazz.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue; // skip static field
+            }
+            if (!ComponentInfo.class.isAssignableFrom(field.getType())) {
+                continue; // skip unknown field
+            }
+            try {
+                field.setAccessible(true);
+            } catch (SecurityException ignore) {
+                continue; // skip failed
+            }
+            fields.add(field);
+        }
+        return fields.toArray(new Field[0]);
+    }
+
     private static void replaceLoadedApkInContextImpl(LoadedApk stubLoadedApk, LoadedApk appLoadedApk, Resources appResources) {
+        long startNanos = System.nanoTime();
         Class<?> cContextImpl = XposedHelpers.findClass("android.app.ContextImpl", ActivityThread.class.getClassLoader());
+        Field mPackageInfo = XposedHelpers.findField(cContextImpl, "mPackageInfo");
         List<XC_MethodHook.Unhook> unhooks = new ArrayList<>();
+        var hookedCalls = new AtomicInteger();
+        var hookedNanos = new AtomicLong();
         for (Method m : cContextImpl.getDeclaredMethods()) {
-            if (Modifier.isStatic(m.getModifiers())) {
+            if (Modifier.isStatic(m.getModifiers()) || !CONTEXT_IMPL_ENTRY_POINTS.contains(m.getName())) {
                 continue;
             }
             unhooks.add(XposedBridge.hookMethod(m, new XC_MethodHook() {
@@ -602,23 +921,76 @@ public class LSPApplication {
                     // at android.app.ContextImpl.createAppContext(ContextImpl.java:3091)
                     // at android.app.ContextImpl.createAppContext(ContextImpl.java:3082)
                     // at android.app.ActivityThread.handleBindApplication(ActivityThread.java:6676)
-                    if (XposedHelpers.getObjectField(param.thisObject, "mPackageInfo") == stubLoadedApk) {
-                        XposedHelpers.setObjectField(param.thisObject, "mPackageInfo", appLoadedApk);
-                        Log.i(TAG, "replaced mPackageInfo in " + param.thisObject);
-                        for (Unhook unhook : unhooks) {
-                            unhook.unhook();
-                        }
-                        if (appResources != null) {
-                            if (param.method.getName().equals("setResources")) {
-                                param.args[0] = appResources;
-                            } else {
-                                XposedHelpers.callMethod(param.thisObject, "setResources", appResources);
+                    long callNanos = System.nanoTime();
+                    hookedCalls.incrementAndGet();
+                    try {
+                        if (mPackageInfo.get(param.thisObject) == stubLoadedApk) {
+                            mPackageInfo.set(param.thisObject, appLoadedApk);
+                            Log.i(TAG, "replaced mPackageInfo in " + param.thisObject + " after " + hookedCalls + " hooked calls, "
+                                    + (callNanos - startNanos) / 1000 + " us after hooking");
+                            for (Unhook unhook : unhooks) {
+                                unhook.unhook();
+                            }
+                            if (appResources != null) {
+                                if (param.method.getName().equals("setResources")) {
+                                    param.args[0] = appResources;
+                                } else {
+                                    XposedHelpers.callMethod(param.thisObject, "setResources", appResources);
+                                }
                             }
                         }
+                    } finally {
+                        hookedNanos.addAndGet(System.nanoTime() - callNanos);
                     }
                 }
             }));
         }
+        long installNanos = tracePhase("hookContextImpl", startNanos) - startNanos;
+        Log.d(TAG, "hooked " + unhooks.size() + " ContextImpl methods in " + installNanos / 1000 + " us");
+        hookCallApplicationOnCreate(stubLoadedApk, appLoadedApk, appResources, mPackageInfo, unhooks, hookedCalls, hookedNanos);
+    }
+
+    /**
+     * Removes the ContextImpl hooks right before Application.onCreate, so the app never runs with them, whether or not
+     * one of them was reached. The contexts still on the stub LoadedApk by then are fixed here instead: the base
+     * context LoadedApk.makeApplication created for the Application, which is ActivityThread.mInitialApplication, and
+     * the contexts of Instrumentation.
+     */
+    private static void hookCallApplicationOnCreate(LoadedApk stubLoadedApk, LoadedApk appLoadedApk, Resources appResources,
+                                                    Field mPackageInfo, List<XC_MethodHook.Unhook> unhooks,
+                                                    AtomicInteger hookedCalls, AtomicLong hookedNanos) {
+        var unhook = new XC_MethodHook.Unhook[1];
+        unhook[0] = XposedHelpers.findAndHookMethod(Instrumentation.class, "callApplicationOnCreate", Application.class, new XC_MethodHook() {
+            @Override
+            protected void beforeHookedMethod(MethodHookParam param) throws Throwable {
+                unhook[0].unhook();
+                for (Unhook contextImplHook : unhooks) {
+                    contextImplHook.unhook();
+                }
+                Log.d(TAG, hookedCalls + " hooked ContextImpl calls before Application.onCreate spent "
+                        + hookedNanos.get() / 1000 + " us in the hook");
+                var contexts = new LinkedHashMap<String, Object>();
+                contexts.put("Application", ((Application) param.args[0]).getBaseContext());
+                // Instrumentation.init sets both when the app runs under instrumentation, otherwise they stay null
+                for (String field : new String[]{"mAppContext", "mInstrContext"}) {
+                    try {
+                        contexts.put("Instrumentation." + field, XposedHelpers.getObjectField(param.thisObject, field));
+                    } catch (NoSuchFieldError ignored) {
+                    }
+                }
+                for (var entry : contexts.entrySet()) {
+                    Object context = entry.getValue();
+                    if (context != null && context.getClass() == mPackageInfo.getDeclaringClass()
+                            && mPackageInfo.get(context) == stubLoadedApk) {
+                        mPackageInfo.set(context, appLoadedApk);
+                        Log.i(TAG, "replaced mPackageInfo in the context of " + entry.getKey());
+                        if (appResources != null) {
+                            XposedHelpers.callMethod(context, "setResources", appResources);
+                        }
+                    }
+                }
+            }
+        });
     }
 
 }
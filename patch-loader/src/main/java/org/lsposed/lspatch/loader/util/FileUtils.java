@@ -5,6 +5,7 @@ import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 
 public class FileUtils {
@@ -31,4 +32,37 @@ public class FileUtils {
             }
         });
     }
+
+    public interface PathWriter {
+        void write(Path path) throws IOException;
+    }
+
+    /**
+     * Writes {@code target} through a temporary file of its own next to it and then moves it in place, so that
+     * processes writing the same file at the same time never write to or move each other's partial copy.
+     */
+    public static void writeAtomically(Path target, PathWriter writer) throws IOException {
+        Path tmpPath = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            writer.write(tmpPath);
+            Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    /**
+     * Deletes the files of {@code dir} whose names do not start with {@code prefix}. Temporary files of
+     * {@link #writeAtomically} start with the name of their target, so other processes still writing the kept file
+     * are not disturbed.
+     */
+    public static void deleteOtherFiles(Path dir, String prefix) throws IOException {
+        try (var files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (!file.getFileName().toString().startsWith(prefix)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
 }
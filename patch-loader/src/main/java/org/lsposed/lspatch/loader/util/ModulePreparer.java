@@ -0,0 +1,202 @@
+package org.lsposed.lspatch.loader.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Extracts the embedded modules to the cache and preloads them on a small pool, waiting for them up to a deadline.
+ * Modules already extracted, as recorded in the {@link StartupStamp}, are preloaded without touching the patched
+ * apk.
+ *
+ * @param <T> the preloaded form of a module
+ */
+public class ModulePreparer<T> {
+
+    /**
+     * Preloads an extracted module apk.
+     */
+    public interface Loader<T> {
+        /**
+         * @param executor the pool modules are prepared on, which the loader may share for parts of one module as
+         *                 long as it does not wait for tasks that have not started
+         */
+        T load(String apkPath, Executor executor) throws Exception;
+    }
+
+    public static class Prepared<T> {
+        public final String packageName;
+        public final String apkPath;
+        public final T module;
+
+        Prepared(String packageName, String apkPath, T module) {
+            this.packageName = packageName;
+            this.apkPath = apkPath;
+            this.module = module;
+        }
+    }
+
+    private static class Task<T> {
+        final String name;
+        final String stampedPath;
+        Future<Prepared<T>> future;
+        long crc = -1;
+
+        Task(String name, String stampedPath) {
+            this.name = name;
+            this.stampedPath = stampedPath;
+        }
+    }
+
+    private final ModuleSource source;
+    private final Path cacheDir;
+    private final StartupStamp stamp;
+    private final Loader<T> loader;
+    private final int parallelism;
+    private final long timeoutMillis;
+
+    /**
+     * Held for reading while a task uses the source, and for writing to release the source once
+     * {@link #prepare(BiConsumer)} returns.
+     */
+    private final ReadWriteLock sourceLock = new ReentrantReadWriteLock();
+    private boolean sourceReleased;
+
+    /**
+     * @param cacheDir      directory the modules are extracted to, one subdirectory per package
+     * @param stamp         extracted modules recorded on earlier starts, or {@code null}
+     * @param parallelism   maximum number of modules prepared at once
+     * @param timeoutMillis maximum time {@link #prepare(BiConsumer)} waits for all modules together
+     */
+    public ModulePreparer(ModuleSource source, Path cacheDir, StartupStamp stamp, Loader<T> loader, int parallelism,
+                          long timeoutMillis) {
+        this.source = source;
+        this.cacheDir = cacheDir;
+        this.stamp = stamp;
+        this.loader = loader;
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Prepares all modules and returns those that were extracted and loaded within the timeout, in the order the
+     * source lists them. Modules that fail or miss the timeout are reported to {@code onError} and left out; newly
+     * extracted modules are recorded in the stamp. Modules missing the timeout are interrupted and may still finish
+     * loading in the background, but no module uses the source any more once this returns, so it may be closed.
+     */
+    public List<Prepared<T>> prepare(BiConsumer<String, Throwable> onError) throws IOException {
+        var tasks = new ArrayList<Task<T>>();
+        for (var name : source.list()) {
+            if (!name.endsWith(".apk")) continue;
+            tasks.add(new Task<>(name, stamp != null ? stamp.getExtractedPath(ModuleSource.entryName(name)) : null));
+        }
+        var prepared = new ArrayList<Prepared<T>>(tasks.size());
+        if (tasks.isEmpty()) {
+            return prepared;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()), runnable -> {
+            var thread = new Thread(runnable, "LSPatch-modules");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (var task : tasks) {
+                task.future = executor.submit(() -> prepare(task, executor));
+            }
+            for (var task : tasks) {
+                try {
+                    var result = task.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    if (result == null) {
+                        onError.accept(task.name, null);
+                        continue;
+                    }
+                    prepared.add(result);
+                    if (stamp != null && task.stampedPath == null) {
+                        stamp.putExtracted(ModuleSource.entryName(task.name), task.crc, result.apkPath);
+                    }
+                } catch (ExecutionException e) {
+                    onError.accept(task.name, e.getCause());
+                } catch (TimeoutException e) {
+                    task.future.cancel(true);
+                    onError.accept(task.name, new TimeoutException("Not prepared within " + timeoutMillis + " ms"));
+                } catch (InterruptedException e) {
+                    // give up on the modules not prepared yet
+                    Thread.currentThread().interrupt();
+                    for (var pending : tasks.subList(tasks.indexOf(task), tasks.size())) {
+                        pending.future.cancel(true);
+                        onError.accept(pending.name, e);
+                    }
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            releaseSource();
+        }
+        return prepared;
+    }
+
+    /**
+     * Waits for the tasks still copying a module out of the source, which takes no longer than one copy, and keeps
+     * every task from using the source afterwards.
+     */
+    private void releaseSource() {
+        sourceLock.writeLock().lock();
+        try {
+            sourceReleased = true;
+        } finally {
+            sourceLock.writeLock().unlock();
+        }
+    }
+
+    private Prepared<T> prepare(Task<T> task, Executor executor) throws Exception {
+        String packageName = task.name.substring(0, task.name.length() - ".apk".length());
+        String apkPath = task.stampedPath;
+        if (apkPath == null) {
+            sourceLock.readLock().lock();
+            try {
+                if (sourceReleased) {
+                    throw new IOException("Module source already released");
+                }
+                task.crc = source.getCrc(task.name);
+                apkPath = extract(task.name, packageName, task.crc).toString();
+            } finally {
+                sourceLock.readLock().unlock();
+            }
+        }
+        T module = loader.load(apkPath, executor);
+        return module != null ? new Prepared<>(packageName, apkPath, module) : null;
+    }
+
+    private Path extract(String name, String packageName, long crc) throws IOException {
+        Path modulePath = cacheDir.resolve(packageName);
+        Path apkPath = modulePath.resolve(crc + ".apk");
+        if (Files.exists(apkPath)) {
+            return apkPath;
+        }
+        Files.createDirectories(modulePath);
+        FileUtils.writeAtomically(apkPath, tmpPath -> {
+            try (var is = source.open(name)) {
+                Files.copy(is, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        });
+        // copies of other versions of the module
+        FileUtils.deleteOtherFiles(modulePath, apkPath.getFileName().toString());
+        return apkPath;
+    }
+}
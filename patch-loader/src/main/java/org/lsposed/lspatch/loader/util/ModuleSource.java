@@ -0,0 +1,30 @@
+package org.lsposed.lspatch.loader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Module apks embedded in the patched apk. Implementations must allow {@link #getCrc(String)} and
+ * {@link #open(String)} to be called from several threads.
+ */
+public interface ModuleSource {
+
+    /**
+     * Returns the file names of the embedded modules, {@code <packageName>.apk}.
+     */
+    String[] list() throws IOException;
+
+    /**
+     * Returns the CRC of the module apk, which identifies its version.
+     */
+    long getCrc(String name) throws IOException;
+
+    InputStream open(String name) throws IOException;
+
+    /**
+     * Returns the name of the entry holding the module in the patched apk.
+     */
+    static String entryName(String name) {
+        return "assets/lspatch/modules/" + name;
+    }
+}
@@ -0,0 +1,131 @@
+package org.lsposed.lspatch.loader.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which entries of the patched apk have been extracted and where, so warm starts need neither parse the
+ * central directory of the apk nor extract anything. The stamp is keyed by the path, size and modification time of
+ * the apk; it is discarded as soon as the apk changes.
+ */
+public class StartupStamp {
+
+    private static final int VERSION = 1;
+
+    private static class Extracted {
+        final long crc;
+        final String path;
+
+        Extracted(long crc, String path) {
+            this.crc = crc;
+            this.path = path;
+        }
+    }
+
+    private final Path stampPath;
+    private final String sourceDir;
+    private final long sourceSize;
+    private final long sourceModified;
+    private final Map<String, Extracted> entries = new HashMap<>();
+    private boolean dirty;
+
+    private StartupStamp(Path stampPath, String sourceDir, long sourceSize, long sourceModified) {
+        this.stampPath = stampPath;
+        this.sourceDir = sourceDir;
+        this.sourceSize = sourceSize;
+        this.sourceModified = sourceModified;
+    }
+
+    /**
+     * Loads the stamp of {@code sourceDir}, or returns an empty one if there is none or it belongs to another version
+     * of the apk.
+     */
+    public static StartupStamp load(Path stampPath, String sourceDir) throws IOException {
+        var attributes = Files.readAttributes(Paths.get(sourceDir), BasicFileAttributes.class);
+        var stamp = new StartupStamp(stampPath, sourceDir, attributes.size(), attributes.lastModifiedTime().toMillis());
+        if (!Files.exists(stampPath)) {
+            stamp.dirty = true;
+            return stamp;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stampPath)))) {
+            if (in.readInt() != VERSION || !sourceDir.equals(in.readUTF())
+                    || in.readLong() != stamp.sourceSize || in.readLong() != stamp.sourceModified) {
+                stamp.dirty = true;
+                return stamp;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long crc = in.readLong();
+                stamp.entries.put(name, new Extracted(crc, in.readUTF()));
+            }
+        } catch (IOException e) {
+            // unreadable stamps are rewritten
+            stamp.entries.clear();
+            stamp.dirty = true;
+        }
+        return stamp;
+    }
+
+    /**
+     * Returns the path {@code entryName} was extracted to, or {@code null} if it was not recorded or the extracted
+     * file is gone.
+     */
+    public String getExtractedPath(String entryName) {
+        var extracted = entries.get(entryName);
+        if (extracted == null) {
+            return null;
+        }
+        if (!Files.exists(Paths.get(extracted.path))) {
+            entries.remove(entryName);
+            dirty = true;
+            return null;
+        }
+        return extracted.path;
+    }
+
+    public void putExtracted(String entryName, long crc, String path) {
+        entries.put(entryName, new Extracted(crc, path));
+        dirty = true;
+    }
+
+    /**
+     * Writes the stamp if it changed since it was loaded.
+     */
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(stampPath.getParent());
+        // processes of the app may save at the same time, so each writes its own temporary file
+        Path tmpPath = Files.createTempFile(stampPath.getParent(), stampPath.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(sourceDir);
+                out.writeLong(sourceSize);
+                out.writeLong(sourceModified);
+                out.writeInt(entries.size());
+                for (var entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().crc);
+                    out.writeUTF(entry.getValue().path);
+                }
+            }
+            Files.move(tmpPath, stampPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+        dirty = false;
+    }
+}
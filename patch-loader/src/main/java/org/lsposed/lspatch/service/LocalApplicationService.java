@@ -7,14 +7,17 @@ import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
-import org.lsposed.lspatch.loader.util.FileUtils;
+import org.lsposed.lspatch.loader.util.ModulePreparer;
+import org.lsposed.lspatch.loader.util.ModuleSource;
+import org.lsposed.lspatch.loader.util.StartupStamp;
 import org.lsposed.lspatch.util.ModuleLoader;
+import org.lsposed.lspatch.util.ModuleMetadataCache;
 import org.lsposed.lspd.models.Module;
 import org.lsposed.lspd.service.ILSPApplicationService;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
@@ -26,29 +29,72 @@ public class LocalApplicationService extends ILSPApplicationService.Stub {
 
     private final List<Module> modules = new ArrayList<>();
 
-    public LocalApplicationService(Context context) {
-        try {
-            for (var name : context.getAssets().list("lspatch/modules")) {
-                String packageName = name.substring(0, name.length() - 4);
-                String modulePath = context.getCacheDir() + "/lspatch/" + packageName + "/";
-                String cacheApkPath;
-                try (ZipFile sourceFile = new ZipFile(context.getPackageResourcePath())) {
-                    cacheApkPath = modulePath + sourceFile.getEntry("assets/lspatch/modules/" + name).getCrc() + ".apk";
-                }
-
-                if (!Files.exists(Paths.get(cacheApkPath))) {
-                    Log.i(TAG, "Extract module apk: " + packageName);
-                    FileUtils.deleteFolderIfExists(Paths.get(modulePath));
-                    Files.createDirectories(Paths.get(modulePath));
-                    try (var is = context.getAssets().open("lspatch/modules/" + name)) {
-                        Files.copy(is, Paths.get(cacheApkPath));
-                    }
-                }
+    private static final int PREPARE_THREADS = 4;
+    private static final long PREPARE_TIMEOUT_MILLIS = 30_000;
 
+    /**
+     * Modules listed from the assets; the patched apk is opened on first use, at most once.
+     */
+    private static class AssetModuleSource implements ModuleSource, AutoCloseable {
+        private final Context context;
+        private ZipFile sourceFile;
+
+        AssetModuleSource(Context context) {
+            this.context = context;
+        }
+
+        private synchronized ZipFile sourceFile() throws IOException {
+            if (sourceFile == null) {
+                sourceFile = new ZipFile(context.getPackageResourcePath());
+            }
+            return sourceFile;
+        }
+
+        @Override
+        public String[] list() throws IOException {
+            return context.getAssets().list("lspatch/modules");
+        }
+
+        @Override
+        public long getCrc(String name) throws IOException {
+            return sourceFile().getEntry(ModuleSource.entryName(name)).getCrc();
+        }
+
+        @Override
+        public InputStream open(String name) throws IOException {
+            var sourceFile = sourceFile();
+            return sourceFile.getInputStream(sourceFile.getEntry(ModuleSource.entryName(name)));
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (sourceFile != null) {
+                sourceFile.close();
+            }
+        }
+    }
+
+    /**
+     * @param stamp extracted modules recorded on earlier starts, or {@code null} to always check the patched apk
+     */
+    public LocalApplicationService(Context context, StartupStamp stamp) {
+        var cacheDir = Paths.get(context.getCacheDir().getPath(), "lspatch");
+        var metadataCache = new ModuleMetadataCache(cacheDir.resolve("module_metadata"));
+        ModuleLoader.setMetadataCache(metadataCache);
+        try (var source = new AssetModuleSource(context)) {
+            var preparer = new ModulePreparer<>(source, cacheDir, stamp,
+                    ModuleLoader::loadModule, PREPARE_THREADS, PREPARE_TIMEOUT_MILLIS);
+            var prepared = preparer.prepare((name, e) -> Log.e(TAG, "Failed to prepare module " + name, e));
+            try {
+                metadataCache.save();
+            } catch (IOException e) {
+                Log.w(TAG, "Can not save module metadata", e);
+            }
+            for (var p : prepared) {
                 var module = new Module();
-                module.apkPath = cacheApkPath;
-                module.packageName = packageName;
-                module.file = ModuleLoader.loadModule(cacheApkPath);
+                module.apkPath = p.apkPath;
+                module.packageName = p.packageName;
+                module.file = p.module;
                 modules.add(module);
             }
         } catch (IOException e) {
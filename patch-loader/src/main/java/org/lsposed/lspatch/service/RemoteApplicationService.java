@@ -9,6 +9,7 @@ import android.os.Environment;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.util.Log;
 import android.widget.Toast;
 
 import org.lsposed.lspd.models.Module;
@@ -20,6 +21,7 @@ import java.util.List;
 
 public class RemoteApplicationService implements ILSPApplicationService {
 
+    private static final String TAG = "LSPatch";
     private static final Uri PROVIDER = Uri.parse("content://" + MANAGER_PACKAGE_NAME + ".provider");
 
     private final ILSPApplicationService service;
@@ -36,6 +38,20 @@ public class RemoteApplicationService implements ILSPApplicationService {
         }
     }
 
+    /**
+     * Hands the startup trace of a process of this app to the manager, if it is there.
+     */
+    public static void reportStartupTrace(Context context, String process, byte[] trace) {
+        var extras = new Bundle();
+        extras.putString("process", process);
+        extras.putByteArray("trace", trace);
+        try {
+            context.getContentResolver().call(PROVIDER, "reportStartupTrace", null, extras);
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.w(TAG, "Failed to report startup trace", e);
+        }
+    }
+
     @Override
     public IBinder requestModuleBinder(String name) {
         return service == null ? null : service.asBinder();
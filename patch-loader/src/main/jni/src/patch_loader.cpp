@@ -96,10 +96,11 @@ namespace lspd {
         };
 
         auto stub = JNI_FindClass(env, "org/lsposed/lspatch/metaloader/LSPAppComponentFactoryStub");
-        auto dex_field = JNI_GetStaticFieldID(env, stub, "dex", "[B");
+        auto dex_field = JNI_GetStaticFieldID(env, stub, "dexBuffer", "Ljava/nio/ByteBuffer;");
 
-        ScopedLocalRef<jbyteArray> array = JNI_GetStaticObjectField(env, stub, dex_field);
-        auto dex = PreloadedDex {env->GetByteArrayElements(array.get(), nullptr), static_cast<size_t>(JNI_GetArrayLength(env, array))};
+        // mapped from the apk or from shared memory, so the dex is never copied onto the java heap
+        ScopedLocalRef<jobject> buffer = JNI_GetStaticObjectField(env, stub, dex_field);
+        auto dex = PreloadedDex {env->GetDirectBufferAddress(buffer.get()), static_cast<size_t>(env->GetDirectBufferCapacity(buffer.get()))};
 
         InitArtHooker(env, initInfo);
         LoadDex(env, std::move(dex));
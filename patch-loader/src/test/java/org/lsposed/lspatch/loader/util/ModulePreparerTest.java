@@ -0,0 +1,274 @@
+package org.lsposed.lspatch.loader.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModulePreparerTest {
+
+    private static final long TIMEOUT = 10_000;
+
+    private Path dir;
+    private Path cacheDir;
+    private Path patchedApk;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("modules");
+        cacheDir = dir.resolve("cache");
+        patchedApk = dir.resolve("base.apk");
+        Files.write(patchedApk, new byte[] {1, 2, 3});
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    public void extractsAndLoadsModulesInSourceOrder() throws IOException {
+        var source = new FakeSource()
+                .add("com.example.a.apk", "a")
+                .add("com.example.b.apk", "b")
+                .add("readme.txt", "not a module")
+                .add("com.example.c.apk", "c");
+        var stamp = StartupStamp.load(dir.resolve("stamp"), patchedApk.toString());
+        var errors = new ArrayList<String>();
+
+        var prepared = new ModulePreparer<>(source, cacheDir, stamp, this::readModule, 2, TIMEOUT)
+                .prepare((name, e) -> errors.add(name));
+
+        assertEquals(List.of(), errors);
+        assertEquals(3, prepared.size());
+        for (int i = 0; i != 3; ++i) {
+            String name = "abc".substring(i, i + 1);
+            assertEquals("com.example." + name, prepared.get(i).packageName);
+            assertEquals(name, prepared.get(i).module);
+            assertEquals(prepared.get(i).apkPath,
+                    stamp.getExtractedPath(ModuleSource.entryName("com.example." + name + ".apk")));
+        }
+        assertEquals(1, source.opened("com.example.a.apk"));
+        assertEquals(0, source.opened("readme.txt"));
+    }
+
+    @Test
+    public void stampedModulesAreNotExtractedAgain() throws IOException {
+        var source = new FakeSource().add("com.example.a.apk", "a");
+        var stampPath = dir.resolve("stamp");
+        var stamp = StartupStamp.load(stampPath, patchedApk.toString());
+        new ModulePreparer<>(source, cacheDir, stamp, this::readModule, 4, TIMEOUT).prepare((name, e) -> {});
+        stamp.save();
+
+        var warmSource = new FakeSource().add("com.example.a.apk", "changed");
+        var prepared = new ModulePreparer<>(warmSource, cacheDir,
+                StartupStamp.load(stampPath, patchedApk.toString()), this::readModule, 4, TIMEOUT)
+                .prepare((name, e) -> {});
+
+        assertEquals(1, prepared.size());
+        assertEquals("a", prepared.get(0).module);
+        assertEquals(0, warmSource.opened("com.example.a.apk"));
+    }
+
+    @Test
+    public void slowModulesAreWaitedFor() throws IOException {
+        var source = new FakeSource()
+                .add("com.example.slow.apk", "slow")
+                .add("com.example.fast.apk", "fast");
+
+        var prepared = new ModulePreparer<>(source, cacheDir, null, (apkPath, executor) -> {
+            String module = readModule(apkPath, executor);
+            if (module.equals("slow")) {
+                Thread.sleep(500);
+            }
+            return module;
+        }, 2, TIMEOUT).prepare((name, e) -> {});
+
+        assertEquals(2, prepared.size());
+        assertEquals("slow", prepared.get(0).module);
+        assertEquals("fast", prepared.get(1).module);
+    }
+
+    @Test
+    public void modulesMissingTheTimeoutAreReportedAndLeftOut() throws IOException {
+        var source = new FakeSource()
+                .add("com.example.stuck.apk", "stuck")
+                .add("com.example.fast.apk", "fast");
+        Map<String, Throwable> errors = new ConcurrentHashMap<>();
+        var release = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        var prepared = new ModulePreparer<>(source, cacheDir, null, (apkPath, executor) -> {
+            String module = readModule(apkPath, executor);
+            if (module.equals("stuck")) {
+                // ignores interrupts, like a module stuck in native code
+                while (release.getCount() != 0) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+            return module;
+        }, 2, 200).prepare(errors::put);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        release.countDown();
+
+        assertTrue(elapsedMillis < 5_000);
+        assertEquals(1, prepared.size());
+        assertEquals("fast", prepared.get(0).module);
+        assertEquals(List.of("com.example.stuck.apk"), new ArrayList<>(errors.keySet()));
+        assertTrue(errors.get("com.example.stuck.apk") instanceof TimeoutException);
+    }
+
+    @Test
+    public void noModuleUsesTheSourceAfterReturning() throws Exception {
+        var source = new FakeSource();
+        for (int i = 0; i != 8; ++i) {
+            source.add("com.example.m" + i + ".apk", "m" + i);
+        }
+        source.openDelayMillis = 100;
+
+        // one thread, so most modules are still waiting to be extracted at the timeout
+        new ModulePreparer<>(source, cacheDir, null, this::readModule, 1, 150).prepare((name, e) -> {});
+        source.closed = true;
+        Thread.sleep(500);
+
+        assertEquals(0, source.usedAfterClose.get());
+    }
+
+    @Test
+    public void noModuleIsPreparedAfterReturning() throws IOException {
+        var source = new FakeSource();
+        for (int i = 0; i != 8; ++i) {
+            source.add("com.example.m" + i + ".apk", "m" + i);
+        }
+        var running = new AtomicInteger();
+
+        new ModulePreparer<>(source, cacheDir, null, (apkPath, executor) -> {
+            running.incrementAndGet();
+            try {
+                Thread.sleep(20);
+                return readModule(apkPath, executor);
+            } finally {
+                running.decrementAndGet();
+            }
+        }, 4, TIMEOUT).prepare((name, e) -> {});
+
+        assertEquals(0, running.get());
+    }
+
+    @Test
+    public void failedModulesAreReportedAndLeftOut() throws IOException {
+        var source = new FakeSource()
+                .add("com.example.broken.apk", "broken")
+                .add("com.example.empty.apk", "empty")
+                .add("com.example.good.apk", "good");
+        var failure = new IllegalStateException("broken");
+        Map<String, Throwable> errors = new LinkedHashMap<>();
+
+        var prepared = new ModulePreparer<>(source, cacheDir, null, (apkPath, executor) -> {
+            String module = readModule(apkPath, executor);
+            if (module.equals("broken")) {
+                throw failure;
+            }
+            return module.equals("empty") ? null : module;
+        }, 4, TIMEOUT).prepare(errors::put);
+
+        assertEquals(1, prepared.size());
+        assertEquals("good", prepared.get(0).module);
+        assertEquals(List.of("com.example.broken.apk", "com.example.empty.apk"), new ArrayList<>(errors.keySet()));
+        assertSame(failure, errors.get("com.example.broken.apk"));
+        assertNull(errors.get("com.example.empty.apk"));
+    }
+
+    @Test
+    public void noModules() throws IOException {
+        var prepared = new ModulePreparer<>(new FakeSource(), cacheDir, null, this::readModule, 4, TIMEOUT)
+                .prepare((name, e) -> {});
+
+        assertTrue(prepared.isEmpty());
+    }
+
+    private String readModule(String apkPath, Executor executor) throws IOException {
+        assertTrue(apkPath.startsWith(cacheDir.toString()));
+        return new String(Files.readAllBytes(Path.of(apkPath)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Module apks held in memory, counting how often each is opened.
+     */
+    private static class FakeSource implements ModuleSource {
+        private final Map<String, byte[]> modules = new LinkedHashMap<>();
+        private final Map<String, AtomicInteger> opened = new ConcurrentHashMap<>();
+        private final AtomicInteger usedAfterClose = new AtomicInteger();
+        volatile long openDelayMillis;
+        volatile boolean closed;
+
+        FakeSource add(String name, String contents) {
+            modules.put(name, contents.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        int opened(String name) {
+            var count = opened.get(name);
+            return count == null ? 0 : count.get();
+        }
+
+        @Override
+        public String[] list() {
+            return modules.keySet().toArray(new String[0]);
+        }
+
+        @Override
+        public long getCrc(String name) {
+            checkNotClosed();
+            return Arrays.hashCode(modules.get(name)) & 0xffffffffL;
+        }
+
+        @Override
+        public InputStream open(String name) {
+            checkNotClosed();
+            opened.computeIfAbsent(name, n -> new AtomicInteger()).incrementAndGet();
+            long end = System.nanoTime() + openDelayMillis * 1_000_000;
+            // a read that is not interruptible, like one from the patched apk
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+            checkNotClosed();
+            return new ByteArrayInputStream(modules.get(name));
+        }
+
+        private void checkNotClosed() {
+            if (closed) {
+                usedAfterClose.incrementAndGet();
+            }
+        }
+    }
+}
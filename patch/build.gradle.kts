@@ -8,12 +8,6 @@ plugins {
 java {
     sourceCompatibility = androidSourceCompatibility
     targetCompatibility = androidTargetCompatibility
-    sourceSets {
-        main {
-            java.srcDirs("libs/manifest-editor/lib/src/main/java")
-            resources.srcDirs("libs/manifest-editor/lib/src/main")
-        }
-    }
 }
 
 dependencies {
@@ -22,6 +16,7 @@ dependencies {
     implementation(projects.share.java)
 
     implementation("commons-io:commons-io:2.11.0")
+    implementation("org.bouncycastle:bcpkix-jdk15on:1.70")
     implementation("com.beust:jcommander:1.82")
     implementation("com.google.code.gson:gson:2.9.1")
 }
@@ -1,13 +1,26 @@
 package org.lsposed.patch;
 
+import static org.lsposed.lspatch.share.Constants.BINARY_CONFIG_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.CONFIG_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.LOADER_DEX_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.ORIGINAL_APK_ASSET_PATH;
 import static org.lsposed.lspatch.share.Constants.PROXY_APP_COMPONENT_FACTORY;
 
+import com.android.tools.build.apkzlib.bytestorage.ByteStorage;
+import com.android.tools.build.apkzlib.bytestorage.ByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorage;
+import com.android.tools.build.apkzlib.bytestorage.ChunkBasedByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.MappedFileByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.OverflowToDiskByteStorage;
+import com.android.tools.build.apkzlib.bytestorage.OverflowToDiskByteStorageFactory;
+import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectory;
+import com.android.tools.build.apkzlib.bytestorage.TemporaryDirectoryFactory;
+import com.android.tools.build.apkzlib.sign.ParallelRunnablesExecutor;
 import com.android.tools.build.apkzlib.sign.SigningExtension;
 import com.android.tools.build.apkzlib.sign.SigningOptions;
+import com.android.tools.build.apkzlib.zip.AlignmentRule;
 import com.android.tools.build.apkzlib.zip.AlignmentRules;
+import com.android.tools.build.apkzlib.zip.JsonSummaryMetricsListener;
 import com.android.tools.build.apkzlib.zip.StoredEntry;
 import com.android.tools.build.apkzlib.zip.ZFile;
 import com.android.tools.build.apkzlib.zip.ZFileOptions;
@@ -15,12 +28,9 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.google.gson.Gson;
-import com.wind.meditor.core.ManifestEditor;
-import com.wind.meditor.property.AttributeItem;
-import com.wind.meditor.property.ModificationProperty;
-import com.wind.meditor.utils.NodeValue;
 
 import org.apache.commons.io.FilenameUtils;
+import org.lsposed.lspatch.share.BinaryPatchConfig;
 import org.lsposed.lspatch.share.Constants;
 import org.lsposed.lspatch.share.LSPConfig;
 import org.lsposed.lspatch.share.PatchConfig;
@@ -30,23 +40,29 @@ import org.lsposed.patch.util.Logger;
 import org.lsposed.patch.util.ManifestParser;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
+import wind.android.content.res.AXmlEditor;
+import wind.android.content.res.AXmlEditor.Attribute;
+import wind.android.content.res.AXmlEditor.Value;
+
 public class LSPatch {
 
     static class PatchError extends Error {
@@ -92,6 +108,36 @@ public class LSPatch {
     @Parameter(names = {"-m", "--embed"}, description = "Embed provided modules to apk")
     private List<String> modules = new ArrayList<>();
 
+    @Parameter(names = {"--direct-origin"}, description = "Load the original apk from inside the patched apk instead of extracting it to the app cache on first launch. Saves the disk space of the copy; the apk is mapped into memory instead")
+    private boolean directOriginalApk = false;
+
+    @Parameter(names = {"--storage-memory"}, description = "Memory budget in MiB for temporary patch data before it spills to disk. default 50")
+    private Long storageMemoryMiB = null;
+
+    @Parameter(names = {"--storage-chunk"}, description = "Chunk size in MiB for temporary patch data. default 10")
+    private Long storageChunkMiB = null;
+
+    @Parameter(names = {"--storage-dir"}, description = "Directory where temporary patch data spills to. default system temporary directory")
+    private String storageDir = null;
+
+    @Parameter(names = {"--v3-signing"}, description = "Also sign with APK Signature Scheme v3")
+    private boolean v3Signing = false;
+
+    @Parameter(names = {"--v4-signing"}, description = "Also write an APK Signature Scheme v4 signature next to the output apk (.idsig), for adb install --incremental")
+    private boolean v4Signing = false;
+
+    @Parameter(names = {"--sign-threads"}, description = "Number of threads computing signature digests. default number of processors")
+    private Integer signThreads = null;
+
+    @Parameter(names = {"--verify-jar-signature"}, description = "Verify every entry of apks signed with JAR signing only before taking their original signature. Reads the whole apk")
+    private boolean verifyJarSignature = false;
+
+    @Parameter(names = {"--metrics"}, description = "Write a JSON summary of patch I/O, compression and timing metrics to this file")
+    private String metricsPath = null;
+
+    @Parameter(names = {"--app-info"}, description = "Write the package, version, label and icon of each apk to a JSON file next to its output apk (.json)")
+    private boolean appInfo = false;
+
     private static final String ANDROID_MANIFEST_XML = "AndroidManifest.xml";
     private static final HashSet<String> ARCHES = new HashSet<>(Arrays.asList(
             "armeabi-v7a",
@@ -100,10 +146,18 @@ public class LSPatch {
             "x86_64"
     ));
 
-    private static final ZFileOptions Z_FILE_OPTIONS = new ZFileOptions().setAlignmentRule(AlignmentRules.compose(
+    private static final AlignmentRule ALIGNMENT_RULE = AlignmentRules.compose(
             AlignmentRules.constantForSuffix(".so", 4096),
             AlignmentRules.constantForSuffix(ORIGINAL_APK_ASSET_PATH, 4096)
-    ));
+    );
+
+    private static final long MIB = 1024 * 1024;
+
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+    private static final int ATTR_VALUE = 0x01010024;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_APP_COMPONENT_FACTORY = 0x0101057a;
 
     private final JCommander jCommander;
 
@@ -125,6 +179,14 @@ public class LSPatch {
             logger.e("Should not use --embed and --manager at the same time\n");
             help = true;
         }
+        if ((storageMemoryMiB != null && storageMemoryMiB < 0) || (storageChunkMiB != null && storageChunkMiB <= 0)) {
+            logger.e("Invalid storage size\n");
+            help = true;
+        }
+        if (signThreads != null && signThreads <= 0) {
+            logger.e("Invalid number of signing threads\n");
+            help = true;
+        }
 
         this.logger = logger;
         logger.verbose = verbose;
@@ -171,13 +233,36 @@ public class LSPatch {
             throw new PatchError("The source apk file does not exit. Please provide a correct path.");
 
         outputFile.delete();
+        var v4SignatureFile = new File(outputFile.getPath() + ".idsig");
+        v4SignatureFile.delete();
+        var appInfoFile = new File(outputFile.getPath() + ".json");
+        appInfoFile.delete();
 
         logger.d("apk path: " + srcApkFile);
 
         logger.i("Parsing original apk...");
 
-        try (var dstZFile = ZFile.openReadWrite(outputFile, Z_FILE_OPTIONS);
-             var srcZFile = dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false)) {
+        var storageFactory = createStorageFactory(
+                storageMemoryMiB == null ? null : storageMemoryMiB * MIB,
+                storageChunkMiB == null ? null : storageChunkMiB * MIB,
+                storageDir == null ? null : new File(storageDir));
+        // the output and the nested original apk report to separate listeners so their metrics are not summed
+        var metrics = metricsPath == null ? null : new JsonSummaryMetricsListener();
+        var srcMetrics = metricsPath == null ? null : new JsonSummaryMetricsListener();
+        var zFileOptions = new ZFileOptions()
+                .setAlignmentRule(ALIGNMENT_RULE)
+                .setStorageFactory(storageFactory);
+        var srcZFileOptions = new ZFileOptions()
+                .setAlignmentRule(ALIGNMENT_RULE)
+                .setStorageFactory(storageFactory);
+        if (metrics != null) {
+            zFileOptions.setMetricsListener(metrics);
+            srcZFileOptions.setMetricsListener(srcMetrics);
+        }
+        ByteStorage storage;
+        try (var dstZFile = ZFile.openReadWrite(outputFile, zFileOptions);
+             var srcZFile = dstZFile.addNestedZip((ignore) -> ORIGINAL_APK_ASSET_PATH, srcApkFile, false, srcZFileOptions)) {
+            storage = dstZFile.getStorage();
 
             // sign apk
             try {
@@ -197,18 +282,26 @@ public class LSPatch {
                 new SigningExtension(SigningOptions.builder()
                         .setMinSdkVersion(28)
                         .setV2SigningEnabled(true)
+                        .setV3SigningEnabled(v3Signing)
+                        .setV4SignatureFile(v4Signing ? v4SignatureFile : null)
                         .setCertificates((X509Certificate[]) entry.getCertificateChain())
                         .setKey(entry.getPrivateKey())
+                        .setExecutor(signThreads == null
+                                ? ParallelRunnablesExecutor.forAvailableProcessors()
+                                : new ParallelRunnablesExecutor(signThreads))
                         .build()).register(dstZFile);
             } catch (Exception e) {
                 throw new PatchError("Failed to register signer", e);
             }
 
-            final String originalSignature = ApkSignatureHelper.getApkSignInfo(srcApkFile.getAbsolutePath());
-            if (originalSignature == null || originalSignature.isEmpty()) {
+            final var signInfo = ApkSignatureHelper.getApkSignInfo(srcZFile, verifyJarSignature);
+            if (signInfo == null || signInfo.signature.isEmpty()) {
                 throw new PatchError("get original signature failed");
             }
+            final String originalSignature = signInfo.signature;
             logger.d("Original signature\n" + originalSignature);
+            if (signInfo.lineage != null)
+                logger.d("Original signature lineage has " + signInfo.lineage.length + " certificates");
 
             // copy out manifest file from zlib
             var manifestEntry = srcZFile.get(ANDROID_MANIFEST_XML);
@@ -216,21 +309,22 @@ public class LSPatch {
                 throw new PatchError("Provided file is not a valid apk");
 
             // parse the app appComponentFactory full name from the manifest file
-            final String appComponentFactory;
-            try (var is = manifestEntry.open()) {
-                var pair = ManifestParser.parseManifestFile(is);
-                if (pair == null)
-                    throw new PatchError("Failed to parse AndroidManifest.xml");
-                appComponentFactory = pair.appComponentFactory;
-                logger.d("original appComponentFactory class: " + appComponentFactory);
+            final var manifest = ManifestParser.parseManifest(manifestEntry);
+            if (manifest == null)
+                throw new PatchError("Failed to parse AndroidManifest.xml");
+            final String appComponentFactory = manifest.appComponentFactory;
+            logger.d("package: " + manifest.packageName + ", versionCode: " + manifest.versionCode + ", minSdk: " + manifest.minSdkVersion);
+            if (verbose || appInfo) {
+                writeAppInfo(srcZFile, manifest, appInfoFile);
             }
+            logger.d("original appComponentFactory class: " + appComponentFactory);
 
             logger.i("Patching apk...");
             // modify manifest
-            final var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, originalSignature, appComponentFactory);
+            final var config = new PatchConfig(useManager, debuggableFlag, overrideVersionCode, sigbypassLevel, originalSignature, signInfo.lineage, appComponentFactory, directOriginalApk);
             final var configBytes = new Gson().toJson(config).getBytes(StandardCharsets.UTF_8);
             final var metadata = Base64.getEncoder().encodeToString(configBytes);
-            try (var is = new ByteArrayInputStream(modifyManifestFile(manifestEntry.open(), metadata))) {
+            try (var is = new ByteArrayInputStream(modifyManifestFile(manifestEntry.open(), metadata, manifest))) {
                 dstZFile.add(ANDROID_MANIFEST_XML, is);
             } catch (Throwable e) {
                 throw new PatchError("Error when modifying manifest", e);
@@ -243,6 +337,12 @@ public class LSPatch {
             } catch (Throwable e) {
                 throw new PatchError("Error when saving config");
             }
+            // the loaders read this form, the json one stays for tools
+            try (var is = new ByteArrayInputStream(BinaryPatchConfig.encode(config))) {
+                dstZFile.add(BINARY_CONFIG_ASSET_PATH, is);
+            } catch (Throwable e) {
+                throw new PatchError("Error when saving binary config", e);
+            }
 
             logger.i("Adding metaloader dex...");
             try (var is = getClass().getClassLoader().getResourceAsStream(Constants.META_LOADER_DEX_ASSET_PATH)) {
@@ -269,7 +369,7 @@ public class LSPatch {
             if (!useManager) {
                 logger.i("Adding loader dex...");
                 try (var is = getClass().getClassLoader().getResourceAsStream(LOADER_DEX_ASSET_PATH)) {
-                    dstZFile.add(LOADER_DEX_ASSET_PATH, is);
+                    dstZFile.add(LOADER_DEX_ASSET_PATH, is, false); // stored so the metaloader can map it
                 } catch (Throwable e) {
                     throw new PatchError("Error when adding assets", e);
                 }
@@ -309,17 +409,90 @@ public class LSPatch {
 
             logger.i("Writing apk...");
         }
+        logStorageUsage(storage);
+        if (metrics != null) {
+            var summaries = new LinkedHashMap<String, JsonSummaryMetricsListener>();
+            summaries.put("output", metrics);
+            summaries.put("original", srcMetrics);
+            var json = JsonSummaryMetricsListener.toJson(summaries);
+            logger.d(json);
+            Files.write(new File(metricsPath).toPath(), json.getBytes(StandardCharsets.UTF_8));
+            logger.i("Metrics written to " + metricsPath);
+        }
         logger.i("Done. Output APK: " + outputFile.getAbsolutePath());
+        if (v4Signing)
+            logger.i("v4 signature: " + v4SignatureFile.getAbsolutePath());
+        if (appInfo)
+            logger.i("App info: " + appInfoFile.getAbsolutePath());
+    }
+
+    /**
+     * Logs the metadata of the original app and, with {@code --app-info}, writes it to {@code file}. The label and
+     * icon references are resolved together in one read of resources.arsc.
+     */
+    private void writeAppInfo(ZFile srcZFile, ManifestParser.ManifestFacts manifest, File file) throws IOException {
+        Map<Integer, String> resources;
+        try {
+            resources = ManifestParser.resolveResourceStrings(srcZFile,
+                    List.of(manifest.labelResourceId, manifest.iconResourceId));
+        } catch (IOException e) {
+            logger.d("failed to resolve label and icon: " + e);
+            resources = Map.of();
+        }
+        var label = manifest.label != null ? manifest.label : resources.get(manifest.labelResourceId);
+        var icon = resources.get(manifest.iconResourceId);
+        logger.d("label: " + label + ", icon: " + icon);
+        if (!appInfo)
+            return;
+
+        var info = new LinkedHashMap<String, Object>();
+        info.put("package", manifest.packageName);
+        info.put("versionCode", manifest.versionCode);
+        info.put("minSdkVersion", manifest.minSdkVersion);
+        info.put("label", label);
+        info.put("labelResourceId", manifest.labelResourceId);
+        info.put("icon", icon);
+        info.put("iconResourceId", manifest.iconResourceId);
+        info.put("usesPermissions", manifest.usesPermissions);
+        Files.write(file.toPath(), new Gson().toJson(info).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates the storage factory for temporary patch data. Data is split into chunks of
+     * {@code chunkBytes} and kept in memory up to {@code memoryBytes}; the rest spills to a
+     * memory-mapped scratch file in {@code spillDir}. A {@code null} argument uses the default.
+     */
+    public static ByteStorageFactory createStorageFactory(Long memoryBytes, Long chunkBytes, File spillDir) {
+        TemporaryDirectoryFactory temporaryDirectoryFactory = spillDir == null
+                ? TemporaryDirectory::newSystemTemporaryDirectory
+                : () -> {
+                    if (!spillDir.isDirectory() && !spillDir.mkdirs())
+                        throw new IOException("Failed to create storage directory " + spillDir);
+                    return TemporaryDirectory.fixed(spillDir);
+                };
+        return new ChunkBasedByteStorageFactory(new OverflowToDiskByteStorageFactory(
+                memoryBytes, new MappedFileByteStorageFactory(temporaryDirectoryFactory)), chunkBytes);
+    }
+
+    private void logStorageUsage(ByteStorage storage) {
+        if (storage instanceof ChunkBasedByteStorage)
+            storage = ((ChunkBasedByteStorage) storage).getDelegate();
+        if (storage instanceof OverflowToDiskByteStorage) {
+            var overflow = (OverflowToDiskByteStorage) storage;
+            logger.i(String.format(Locale.ROOT, "Peak storage: %.1f MiB in memory, %.1f MiB on disk",
+                    (double) overflow.getMaxMemoryBytesUsed() / MIB, (double) overflow.getMaxDiskBytesUsed() / MIB));
+        } else {
+            logger.i(String.format(Locale.ROOT, "Peak storage: %.1f MiB", (double) storage.getMaxBytesUsed() / MIB));
+        }
     }
 
     private void embedModules(ZFile zFile) {
         for (var module : modules) {
             File file = new File(module);
             try (var apk = ZFile.openReadOnly(new File(module));
-                 var fileIs = new FileInputStream(file);
-                 var xmlIs = Objects.requireNonNull(apk.get(ANDROID_MANIFEST_XML)).open()
+                 var fileIs = new FileInputStream(file)
             ) {
-                var manifest = Objects.requireNonNull(ManifestParser.parseManifestFile(xmlIs));
+                var manifest = Objects.requireNonNull(ManifestParser.parseManifest(Objects.requireNonNull(apk.get(ANDROID_MANIFEST_XML))));
                 var packageName = manifest.packageName;
                 logger.i("  - " + packageName);
                 zFile.add("assets/lspatch/modules/" + packageName + ".apk", fileIs);
@@ -329,22 +502,22 @@ public class LSPatch {
         }
     }
 
-    private byte[] modifyManifestFile(InputStream is, String metadata) throws IOException {
-        ModificationProperty property = new ModificationProperty();
+    private byte[] modifyManifestFile(InputStream is, String metadata, ManifestParser.ManifestFacts manifest) throws IOException {
+        var editor = new AXmlEditor(is.readAllBytes());
+        is.close();
 
         if (overrideVersionCode)
-            property.addManifestAttribute(new AttributeItem(NodeValue.Manifest.VERSION_CODE, 1));
-        property.addApplicationAttribute(new AttributeItem(NodeValue.Application.DEBUGGABLE, debuggableFlag));
-        property.addApplicationAttribute(new AttributeItem("appComponentFactory", PROXY_APP_COMPONENT_FACTORY));
-        property.addMetaData(new ModificationProperty.MetaData("lspatch", metadata));
+            editor.setAttribute("manifest", Attribute.android("versionCode", ATTR_VERSION_CODE, Value.integer(1)));
+        editor.setAttribute("application", Attribute.android("debuggable", ATTR_DEBUGGABLE, Value.bool(debuggableFlag)));
+        editor.setAttribute("application", Attribute.android("appComponentFactory", ATTR_APP_COMPONENT_FACTORY, Value.string(PROXY_APP_COMPONENT_FACTORY)));
+        editor.addElement("application", "meta-data",
+                Attribute.android("name", ATTR_NAME, Value.string("lspatch")),
+                Attribute.android("value", ATTR_VALUE, Value.string(metadata)));
         // TODO: replace query_all with queries -> manager
-        property.addUsesPermission("android.permission.QUERY_ALL_PACKAGES");
+        if (!manifest.usesPermissions.contains("android.permission.QUERY_ALL_PACKAGES"))
+            editor.addElement("manifest", "uses-permission",
+                    Attribute.android("name", ATTR_NAME, Value.string("android.permission.QUERY_ALL_PACKAGES")));
 
-        var os = new ByteArrayOutputStream();
-        (new ManifestEditor(is, os, property)).processManifest();
-        is.close();
-        os.flush();
-        os.close();
-        return os.toByteArray();
+        return editor.toByteArray();
     }
 }
@@ -1,15 +1,28 @@
 package org.lsposed.patch.util;
 
-import java.io.InputStream;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.security.CodeSigner;
 import java.security.cert.Certificate;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.jar.JarFile;
 
 /**
@@ -19,6 +32,38 @@ public class ApkSignatureHelper {
     private static final byte[] APK_V2_MAGIC = {'A', 'P', 'K', ' ', 'S', 'i', 'g', ' ',
             'B', 'l', 'o', 'c', 'k', ' ', '4', '2'};
 
+    private static final int APK_SIGNATURE_SCHEME_V2_BLOCK_ID = 0x7109871a;
+    private static final int APK_SIGNATURE_SCHEME_V3_BLOCK_ID = 0xf05368c0;
+    private static final int APK_SIGNATURE_SCHEME_V31_BLOCK_ID = 0x1b93ad61;
+    private static final int PROOF_OF_ROTATION_ATTR_ID = 0x3ba06f8c;
+
+    /**
+     * Signing certificate of an APK and, if its signing key was rotated, the lineage of signing certificates.
+     */
+    public static class SignInfo {
+        /**
+         * Hex encoded certificate of the signer.
+         */
+        public final String signature;
+        /**
+         * Hex encoded certificates the APK was signed with over time, oldest first and ending with {@link #signature},
+         * or {@code null} if the signing key was never rotated.
+         */
+        public final String[] lineage;
+
+        SignInfo(byte[] certificate, List<byte[]> lineage) {
+            this.signature = new String(toChars(certificate));
+            if (lineage == null) {
+                this.lineage = null;
+            } else {
+                this.lineage = new String[lineage.size()];
+                for (int i = 0; i < lineage.size(); i++) {
+                    this.lineage[i] = new String(toChars(lineage.get(i)));
+                }
+            }
+        }
+    }
+
     private static char[] toChars(byte[] mSignature) {
         byte[] sig = mSignature;
         final int N = sig.length;
@@ -34,121 +79,288 @@ public class ApkSignatureHelper {
         return text;
     }
 
-    private static Certificate[] loadCertificates(JarFile jarFile, JarEntry je, byte[] readBuffer) {
+    public static SignInfo getApkSignInfo(String apkFilePath) {
+        try (var apk = ZFile.openReadOnly(new File(apkFilePath))) {
+            return getApkSignInfo(apk);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the signer of {@code apk}, or {@code null} if it is not signed. Same as {@link #getApkSignInfo(ZFile,
+     * boolean)} without verifying JAR signatures.
+     */
+    public static SignInfo getApkSignInfo(ZFile apk) {
+        return getApkSignInfo(apk, false);
+    }
+
+    /**
+     * Returns the signer of {@code apk}, or {@code null} if it is not signed. The signer is taken from the newest
+     * signature scheme present: v3.1, v3, v2 and then JAR signing. For the signature schemes, only the signer block
+     * of the APK Signing Block is read; for JAR signing, only the PKCS#7 signature block in META-INF is read, unless
+     * {@code verifyJarSignature} is set, in which case every entry is read and verified.
+     */
+    public static SignInfo getApkSignInfo(ZFile apk, boolean verifyJarSignature) {
         try {
-            InputStream is = jarFile.getInputStream(je);
-            while (is.read(readBuffer, 0, readBuffer.length) != -1) {
+            var pairs = findSigningBlockPairs(apk);
+            var v31 = pairs.get(APK_SIGNATURE_SCHEME_V31_BLOCK_ID);
+            var v3 = pairs.get(APK_SIGNATURE_SCHEME_V3_BLOCK_ID);
+            var v2 = pairs.get(APK_SIGNATURE_SCHEME_V2_BLOCK_ID);
+            if (v31 != null) {
+                return getApkSignV3(v31);
+            } else if (v3 != null) {
+                return getApkSignV3(v3);
+            } else if (v2 != null) {
+                return new SignInfo(getApkSignV2(v2), null);
             }
-            is.close();
-            return (Certificate[]) (je != null ? je.getCertificates() : null);
-        } catch (Exception e) {
+            byte[] certificate = verifyJarSignature ? getVerifiedApkSignV1(apk) : getApkSignV1(apk);
+            return certificate != null ? new SignInfo(certificate, null) : null;
+        } catch (IOException | CertificateException ignored) {
         }
         return null;
     }
 
-    public static String getApkSignInfo(String apkFilePath) {
+    /**
+     * Returns the certificate of the JAR signer, or {@code null} if there is no signature block. The certificate is
+     * taken from the first PKCS#7 signature block (META-INF/*.RSA, *.DSA or *.EC) by name: the one matching the
+     * issuer and serial number of its first SignerInfo, which is not necessarily the first certificate of the block.
+     * Only that entry is read; the signature is not verified.
+     */
+    private static byte[] getApkSignV1(ZFile apk) throws IOException {
+        StoredEntry signatureBlock = apk.entries().stream()
+                .filter(entry -> isSignatureBlock(entry.getCentralDirectoryHeader().getName()))
+                .min(Comparator.comparing(entry -> entry.getCentralDirectoryHeader().getName()))
+                .orElse(null);
+        if (signatureBlock == null) {
+            return null;
+        }
+
+        String name = signatureBlock.getCentralDirectoryHeader().getName();
         try {
-            return getApkSignV2(apkFilePath);
-        } catch (Exception e) {
-            return getApkSignV1(apkFilePath);
+            var signedData = new CMSSignedData(signatureBlock.read());
+            var signers = signedData.getSignerInfos().getSigners();
+            if (signers.isEmpty()) {
+                throw new IOException("No signers in " + name);
+            }
+            SignerInformation signer = signers.iterator().next();
+            @SuppressWarnings("unchecked")
+            var matches = (Collection<X509CertificateHolder>) signedData.getCertificates().getMatches(signer.getSID());
+            if (matches.isEmpty()) {
+                throw new IOException("No certificate of the signer in " + name);
+            }
+            return matches.iterator().next().getEncoded();
+        } catch (CMSException e) {
+            throw new IOException("Malformed signature block " + name, e);
+        }
+    }
+
+    private static boolean isSignatureBlock(String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
         }
+        String upperName = name.toUpperCase(Locale.ROOT);
+        return upperName.endsWith(".RSA") || upperName.endsWith(".DSA") || upperName.endsWith(".EC");
     }
 
-    public static String getApkSignV1(String apkFilePath) {
+    /**
+     * Returns the certificate of the first JAR signer, or {@code null} if the APK is not consistently signed. Like
+     * the platform, every entry outside META-INF must verify and be signed by the same signers; the JAR verifier
+     * checks each signature block against its signature file, the manifest and the entry digests, and builds each
+     * signer's certificate path from the certificate matching the issuer and serial number of its SignerInfo. This
+     * reads and inflates every entry.
+     */
+    private static byte[] getVerifiedApkSignV1(ZFile apk) throws IOException, CertificateException {
         byte[] readBuffer = new byte[8192];
-        Certificate[] certs = null;
-        try {
-            JarFile jarFile = new JarFile(apkFilePath);
-            Enumeration<?> entries = jarFile.entries();
+        List<Certificate> signers = null;
+        try (var jarFile = new JarFile(apk.getFile(), true)) {
+            var entries = jarFile.entries();
             while (entries.hasMoreElements()) {
-                JarEntry je = (JarEntry) entries.nextElement();
-                if (je.isDirectory()) {
-                    continue;
-                }
-                if (je.getName().startsWith("META-INF/")) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
                     continue;
                 }
-                Certificate[] localCerts = loadCertificates(jarFile, je, readBuffer);
-                if (certs == null) {
-                    certs = localCerts;
-                } else {
-                    for (int i = 0; i < certs.length; i++) {
-                        boolean found = false;
-                        for (int j = 0; j < localCerts.length; j++) {
-                            if (certs[i] != null && certs[i].equals(localCerts[j])) {
-                                found = true;
-                                break;
-                            }
-                        }
-                        if (!found || certs.length != localCerts.length) {
-                            jarFile.close();
-                            return null;
-                        }
+                // the entry is verified while read, its signers are only known afterwards
+                try (var is = jarFile.getInputStream(entry)) {
+                    while (is.read(readBuffer, 0, readBuffer.length) != -1) {
                     }
                 }
+                CodeSigner[] codeSigners = entry.getCodeSigners();
+                if (codeSigners == null || codeSigners.length == 0) {
+                    return null;
+                }
+                List<Certificate> entrySigners = new ArrayList<>(codeSigners.length);
+                for (var codeSigner : codeSigners) {
+                    entrySigners.add(codeSigner.getSignerCertPath().getCertificates().get(0));
+                }
+                if (signers == null) {
+                    signers = entrySigners;
+                } else if (signers.size() != entrySigners.size() || !signers.containsAll(entrySigners)) {
+                    return null;
+                }
             }
-            jarFile.close();
-            return certs != null ? new String(toChars(certs[0].getEncoded())) : null;
-        } catch (Throwable ignored) {
+        } catch (SecurityException e) {
+            // an entry does not match its digest or signature
+            return null;
         }
-        return null;
+        return signers == null ? null : signers.get(0).getEncoded();
     }
 
-    private static String getApkSignV2(String apkFilePath) throws IOException {
-        try (RandomAccessFile apk = new RandomAccessFile(apkFilePath, "r")) {
-            ByteBuffer buffer = ByteBuffer.allocate(0x10);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
+    private static byte[] getApkSignV2(SigningBlockReader signerBlock) throws IOException {
+        var signer = signerBlock.next().next(); // first signer of the signer sequence
+        var signedData = signer.next();
+        signedData.skipLengthPrefixed(); // digests
+        return signedData.next().readLengthPrefixed(); // first certificate
+    }
 
-            apk.seek(apk.length() - 0x6);
-            apk.readFully(buffer.array(), 0x0, 0x6);
-            int offset = buffer.getInt();
-            if (buffer.getShort() != 0) {
-                throw new UnsupportedEncodingException("no zip");
+    /**
+     * Reads a v3 or v3.1 signer block. Each signer covers a range of platform versions; the signer for the newest
+     * platforms is returned, together with its proof-of-rotation lineage if present.
+     */
+    private static SignInfo getApkSignV3(SigningBlockReader signerBlock) throws IOException {
+        var signers = signerBlock.next();
+        byte[] certificate = null;
+        List<byte[]> lineage = null;
+        int certificateMaxSdk = 0;
+        while (signers.hasRemaining()) {
+            var signedData = signers.next().next();
+            signedData.skipLengthPrefixed(); // digests
+            byte[] signerCertificate = signedData.next().readLengthPrefixed(); // first certificate
+            signedData.readInt(); // min sdk
+            int maxSdk = signedData.readInt();
+            if (certificate != null && Integer.compareUnsigned(maxSdk, certificateMaxSdk) <= 0) {
+                continue;
             }
 
-            apk.seek(offset - 0x10);
-            apk.readFully(buffer.array(), 0x0, 0x10);
-
-            if (!Arrays.equals(buffer.array(), APK_V2_MAGIC)) {
-                throw new UnsupportedEncodingException("no apk v2");
+            certificate = signerCertificate;
+            certificateMaxSdk = maxSdk;
+            lineage = null;
+            var attributes = signedData.next();
+            while (attributes.hasRemaining()) {
+                var attribute = attributes.next();
+                if (attribute.readInt() == PROOF_OF_ROTATION_ATTR_ID) {
+                    lineage = readLineage(attribute);
+                }
             }
+        }
+        if (certificate == null) {
+            throw new IOException("No signers in v3 signing block");
+        }
+        return new SignInfo(certificate, lineage);
+    }
 
-            // Read and compare size fields
-            apk.seek(offset - 0x18);
-            apk.readFully(buffer.array(), 0x0, 0x8);
-            buffer.rewind();
-            int size = (int) buffer.getLong();
+    /**
+     * Reads the certificates of a proof-of-rotation attribute value: a version followed by length-prefixed nodes,
+     * each starting with length-prefixed signed data that starts with the length-prefixed certificate.
+     */
+    private static List<byte[]> readLineage(SigningBlockReader attribute) throws IOException {
+        attribute.readInt(); // version
+        List<byte[]> lineage = new ArrayList<>();
+        while (attribute.hasRemaining()) {
+            var signedData = attribute.next().next();
+            lineage.add(signedData.readLengthPrefixed());
+        }
+        return lineage;
+    }
 
-            ByteBuffer block = ByteBuffer.allocate(size + 0x8);
-            block.order(ByteOrder.LITTLE_ENDIAN);
-            apk.seek(offset - block.capacity());
-            apk.readFully(block.array(), 0x0, block.capacity());
+    /**
+     * Finds the ID-value pairs of the APK Signing Block right before the central directory and returns readers over
+     * their values by ID, or no readers if there is no such block. Only the pair headers are read.
+     */
+    private static Map<Integer, SigningBlockReader> findSigningBlockPairs(ZFile apk) throws IOException {
+        Map<Integer, SigningBlockReader> pairs = new HashMap<>();
+        long centralDirectoryOffset = apk.getCentralDirectoryOffset();
+        if (centralDirectoryOffset < 0x20) {
+            return pairs;
+        }
 
-            if (size != block.getLong()) {
-                throw new UnsupportedEncodingException("no apk v2");
+        // size of block (excluding this field) followed by the magic
+        ByteBuffer footer = read(apk, centralDirectoryOffset - 0x18, 0x18);
+        long blockSize = footer.getLong();
+        byte[] magic = new byte[0x10];
+        footer.get(magic);
+        if (!Arrays.equals(magic, APK_V2_MAGIC)) {
+            return pairs;
+        }
+        long blockStart = centralDirectoryOffset - blockSize - 0x8;
+        if (blockSize < 0x18 || blockStart < 0 || read(apk, blockStart, 0x8).getLong() != blockSize) {
+            throw new IOException("Malformed APK Signing Block");
+        }
+
+        long position = blockStart + 0x8;
+        long pairsEnd = centralDirectoryOffset - 0x18;
+        while (pairsEnd - position >= 0xc) {
+            ByteBuffer header = read(apk, position, 0xc);
+            long pairSize = header.getLong();
+            if (pairSize < 0x4 || pairSize > pairsEnd - position - 0x8) {
+                throw new IOException("Malformed APK Signing Block pair");
             }
+            pairs.putIfAbsent(header.getInt(), new SigningBlockReader(apk, position + 0xc, position + 0x8 + pairSize));
+            position += 0x8 + pairSize;
+        }
+        return pairs;
+    }
 
-            while (block.remaining() > 24) {
-                size = (int) block.getLong();
-                if (block.getInt() == 0x7109871a) {
-                    // signer-sequence length, signer length, signed data length
-                    block.position(block.position() + 12);
-                    size = block.getInt(); // digests-sequence length
+    private static ByteBuffer read(ZFile apk, long offset, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        apk.directFullyRead(offset, buffer.array());
+        return buffer;
+    }
 
-                    // digests, certificates length
-                    block.position(block.position() + size + 0x4);
+    /**
+     * Reads length-prefixed values of a signing block directly from the APK, never holding more than the value
+     * being returned in memory.
+     */
+    private static class SigningBlockReader {
+        private final ZFile apk;
+        private long position;
+        private final long end;
 
-                    size = block.getInt(); // certificate length
-                    break;
-                } else {
-                    block.position(block.position() + size - 0x4);
-                }
+        SigningBlockReader(ZFile apk, long position, long end) {
+            this.apk = apk;
+            this.position = position;
+            this.end = end;
+        }
+
+        private int readLength() throws IOException {
+            int length = readInt();
+            if (length < 0 || length > end - position) {
+                throw new IOException("Malformed signing block value length " + length);
+            }
+            return length;
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+
+        int readInt() throws IOException {
+            if (end - position < 0x4) {
+                throw new IOException("Truncated signing block value");
             }
+            int value = read(apk, position, 0x4).getInt();
+            position += 0x4;
+            return value;
+        }
 
-            byte[] certificate = new byte[size];
-            block.get(certificate);
+        /** Returns a reader over the next length-prefixed value and moves past it. */
+        SigningBlockReader next() throws IOException {
+            int length = readLength();
+            var value = new SigningBlockReader(apk, position, position + length);
+            position += length;
+            return value;
+        }
+
+        void skipLengthPrefixed() throws IOException {
+            int length = readLength();
+            position += length;
+        }
 
-            return new String(toChars(certificate));
+        byte[] readLengthPrefixed() throws IOException {
+            int length = readLength();
+            byte[] value = read(apk, position, length).array();
+            position += length;
+            return value;
         }
     }
 }
@@ -1,82 +1,262 @@
 package org.lsposed.patch.util;
 
+import com.android.tools.build.apkzlib.zip.CentralDirectoryHeader;
+import com.android.tools.build.apkzlib.zip.StoredEntry;
+import com.android.tools.build.apkzlib.zip.ZFile;
+
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import wind.android.content.res.AXmlResourceParser;
-import wind.v1.XmlPullParser;
-import wind.v1.XmlPullParserException;
+import wind.android.content.res.AXmlQuery;
+import wind.android.content.res.ResourceTableReader;
+import wind.android.util.TypedValue;
 
 /**
  * Created by Wind
  */
 public class ManifestParser {
 
-    public static Pair parseManifestFile(InputStream is) throws IOException {
-        AXmlResourceParser parser = new AXmlResourceParser();
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_ICON = 0x01010002;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_EXTRACT_NATIVE_LIBS = 0x010104ea;
+    private static final int ATTR_APP_COMPONENT_FACTORY = 0x0101057a;
+
+    private static final int TARGET_PACKAGE = 0;
+    private static final int TARGET_VERSION_CODE = 1;
+    private static final int TARGET_MIN_SDK_VERSION = 2;
+    private static final int TARGET_USES_PERMISSION = 3;
+    private static final int TARGET_APP_COMPONENT_FACTORY = 4;
+    private static final int TARGET_DEBUGGABLE = 5;
+    private static final int TARGET_EXTRACT_NATIVE_LIBS = 6;
+    private static final int TARGET_LABEL = 7;
+    private static final int TARGET_ICON = 8;
+
+    private static final String RESOURCES_ARSC = "resources.arsc";
+    private static final int MAX_REFERENCE_DEPTH = 4;
+
+    /**
+     * Queried attributes, indexed by the {@code TARGET_} constants.
+     */
+    private static final AXmlQuery.Target[] TARGETS = {
+            new AXmlQuery.Target("manifest", 0, "package"),
+            new AXmlQuery.Target("manifest", ATTR_VERSION_CODE, "versionCode"),
+            new AXmlQuery.Target("uses-sdk", ATTR_MIN_SDK_VERSION, "minSdkVersion"),
+            new AXmlQuery.Target("uses-permission", ATTR_NAME, "name"),
+            new AXmlQuery.Target("application", ATTR_APP_COMPONENT_FACTORY, "appComponentFactory"),
+            new AXmlQuery.Target("application", ATTR_DEBUGGABLE, "debuggable"),
+            new AXmlQuery.Target("application", ATTR_EXTRACT_NATIVE_LIBS, "extractNativeLibs"),
+            new AXmlQuery.Target("application", ATTR_LABEL, "label"),
+            new AXmlQuery.Target("application", ATTR_ICON, "icon"),
+    };
+
+    private static final int CACHE_SIZE = 16;
+
+    /**
+     * Facts of recently parsed manifests, keyed by the CRC32 and size of the manifest entry.
+     */
+    private static final Map<String, ManifestFacts> cache = Collections.synchronizedMap(
+            new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ManifestFacts> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Everything the patcher needs from a manifest, collected in a single pass over its element chunks that stops at
+     * the end of the {@code application} element.
+     */
+    public static class ManifestFacts {
+        public final String packageName;
+        public final String appComponentFactory;
+        public final int versionCode;
+        /**
+         * The {@code minSdkVersion}, or {@code 1} if not declared or declared as a codename.
+         */
+        public final int minSdkVersion;
+        /**
+         * The declared {@code extractNativeLibs}, or {@code null} if not declared.
+         */
+        public final Boolean extractNativeLibs;
+        public final boolean debuggable;
+        public final List<String> usesPermissions;
+        /**
+         * The application label if declared as a literal, otherwise {@code null}.
+         */
+        public final String label;
+        /**
+         * The resource id the application label refers to, or {@code 0}.
+         */
+        public final int labelResourceId;
+        /**
+         * The resource id the application icon refers to, or {@code 0}.
+         */
+        public final int iconResourceId;
+
+        ManifestFacts(String packageName, String appComponentFactory, int versionCode, int minSdkVersion,
+                      Boolean extractNativeLibs, boolean debuggable, List<String> usesPermissions,
+                      String label, int labelResourceId, int iconResourceId) {
+            this.packageName = packageName;
+            this.appComponentFactory = appComponentFactory;
+            this.versionCode = versionCode;
+            this.minSdkVersion = minSdkVersion;
+            this.extractNativeLibs = extractNativeLibs;
+            this.debuggable = debuggable;
+            this.usesPermissions = Collections.unmodifiableList(usesPermissions);
+            this.label = label;
+            this.labelResourceId = labelResourceId;
+            this.iconResourceId = iconResourceId;
+        }
+    }
+
+    /**
+     * Parses the manifest stored in {@code entry}, reusing the facts of an identical manifest parsed before.
+     */
+    public static ManifestFacts parseManifest(StoredEntry entry) throws IOException {
+        CentralDirectoryHeader header = entry.getCentralDirectoryHeader();
+        String key = header.getCrc32() + ":" + header.getUncompressedSize();
+        var facts = cache.get(key);
+        if (facts == null) {
+            facts = parseManifestFile(entry.read());
+            if (facts != null) {
+                cache.put(key, facts);
+            }
+        }
+        return facts;
+    }
+
+    public static ManifestFacts parseManifestFile(InputStream is) throws IOException {
+        return parseManifestFile(is.readAllBytes());
+    }
+
+    /**
+     * Parses a manifest held in memory, comparing string pool indices of the element chunks rather than iterating
+     * parser events.
+     */
+    public static ManifestFacts parseManifestFile(byte[] data) {
         String packageName = null;
         String appComponentFactory = null;
+        int versionCode = 0;
+        int minSdkVersion = 1;
+        Boolean extractNativeLibs = null;
+        boolean debuggable = false;
+        List<String> usesPermissions = new ArrayList<>();
+        String label = null;
+        int labelResourceId = 0;
+        int iconResourceId = 0;
         try {
-            parser.open(is);
-
-            while (true) {
-                int type = parser.next();
-                if (type == XmlPullParser.END_DOCUMENT) {
-                    break;
-                }
-                if (type == XmlPullParser.START_TAG) {
-                    int attrCount = parser.getAttributeCount();
-                    for (int i = 0; i < attrCount; i++) {
-                        String attrName = parser.getAttributeName(i);
-                        int attrNameRes = parser.getAttributeNameResource(i);
-
-                        String name = parser.getName();
-
-                        if ("manifest".equals(name)) {
-                            if ("package".equals(attrName)) {
-                                packageName = parser.getAttributeValue(i);
-                            }
+            var query = new AXmlQuery(data);
+            // everything needed is declared before or on the application element
+            for (var match : query.selectUntilEnd("application", TARGETS)) {
+                switch (match.getTarget()) {
+                    case TARGET_PACKAGE:
+                        packageName = match.getRawValue();
+                        break;
+                    case TARGET_VERSION_CODE:
+                        versionCode = match.getIntValue(versionCode);
+                        break;
+                    case TARGET_MIN_SDK_VERSION:
+                        minSdkVersion = match.getIntValue(minSdkVersion);
+                        break;
+                    case TARGET_USES_PERMISSION:
+                        if (match.getValueType() == TypedValue.TYPE_STRING) {
+                            usesPermissions.add(match.getRawValue());
                         }
-
-                        if ("appComponentFactory".equals(attrName) || attrNameRes == 0x0101057a) {
-                            appComponentFactory = parser.getAttributeValue(i);
+                        break;
+                    case TARGET_APP_COMPONENT_FACTORY:
+                        appComponentFactory = match.getRawValue();
+                        break;
+                    case TARGET_DEBUGGABLE:
+                        debuggable = match.getBooleanValue(false);
+                        break;
+                    case TARGET_EXTRACT_NATIVE_LIBS:
+                        extractNativeLibs = match.getBooleanValue(true);
+                        break;
+                    case TARGET_LABEL:
+                        if (match.getValueType() == TypedValue.TYPE_REFERENCE) {
+                            labelResourceId = match.getValueData();
+                        } else if (match.getValueType() == TypedValue.TYPE_STRING) {
+                            label = match.getRawValue();
                         }
-
-                        if (packageName != null && packageName.length() > 0 &&
-                                appComponentFactory != null && appComponentFactory.length() > 0) {
-                            return new Pair(packageName, appComponentFactory);
+                        break;
+                    case TARGET_ICON:
+                        if (match.getValueType() == TypedValue.TYPE_REFERENCE) {
+                            iconResourceId = match.getValueData();
                         }
-                    }
-                } else if (type == XmlPullParser.END_TAG) {
-                    // ignored
+                        break;
                 }
             }
-        } catch (XmlPullParserException | IOException e) {
+        } catch (IOException | RuntimeException e) {
             return null;
         }
-        return new Pair(packageName, appComponentFactory);
+        return new ManifestFacts(packageName, appComponentFactory, versionCode, minSdkVersion,
+                extractNativeLibs, debuggable, usesPermissions, label, labelResourceId, iconResourceId);
     }
 
     /**
-     * Get the package name and the main application name from the manifest file
+     * Resolves resources referenced from the manifest to strings, such as the label or the path of an icon, using
+     * the default configuration of the resources.arsc in {@code apk}. All ids are resolved in the same pass, which
+     * streams the table once and keeps only the global string pool; a further pass is only made for the ids whose
+     * value is a reference to another resource.
+     *
+     * @return the strings by requested id, leaving out the ids that are not strings or cannot be found
      */
-    public static Pair parseManifestFile(String filePath) throws IOException {
-        File file = new File(filePath);
-        try (var is = new FileInputStream(file)) {
-            return parseManifestFile(is);
+    public static Map<Integer, String> resolveResourceStrings(ZFile apk, Collection<Integer> resourceIds)
+            throws IOException {
+        Map<Integer, String> strings = new HashMap<>();
+        var entry = apk.get(RESOURCES_ARSC);
+        // the resource each requested id currently points to
+        Map<Integer, Integer> pending = new HashMap<>();
+        for (int resourceId : resourceIds) {
+            if (resourceId != 0) {
+                pending.put(resourceId, resourceId);
+            }
+        }
+        for (int depth = 0; entry != null && !pending.isEmpty() && depth < MAX_REFERENCE_DEPTH; depth++) {
+            Map<Integer, ResourceTableReader.Value> values;
+            try (var is = new BufferedInputStream(entry.open())) {
+                values = ResourceTableReader.read(is, new HashSet<>(pending.values()));
+            }
+            for (var it = pending.entrySet().iterator(); it.hasNext(); ) {
+                var resource = it.next();
+                var value = values.get(resource.getValue());
+                if (value == null) {
+                    it.remove();
+                } else if (value.getType() != TypedValue.TYPE_REFERENCE) {
+                    if (value.getString() != null) {
+                        strings.put(resource.getKey(), value.getString());
+                    }
+                    it.remove();
+                } else {
+                    resource.setValue(value.getData());
+                }
+            }
         }
+        return strings;
     }
 
-    public static class Pair {
-        public String packageName;
-        public String appComponentFactory;
-
-        public Pair(String packageName, String appComponentFactory) {
-            this.packageName = packageName;
-            this.appComponentFactory = appComponentFactory;
+    /**
+     * Get the facts of the manifest file
+     */
+    public static ManifestFacts parseManifestFile(String filePath) throws IOException {
+        File file = new File(filePath);
+        try (var is = new FileInputStream(file)) {
+            return parseManifestFile(is);
         }
     }
-
 }
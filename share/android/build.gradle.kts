@@ -20,4 +20,7 @@ android {
 
 dependencies {
     implementation(projects.services.daemonService)
+    implementation(projects.share.java)
+
+    testImplementation("junit:junit:4.13.2")
 }
@@ -0,0 +1,299 @@
+package org.lsposed.lspatch.util;
+
+import org.lsposed.lspatch.share.StoredEntryRegion;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the dexes of an apk into buffers of their exact size. Sizes come from the central directory. Stored dexes are
+ * read straight from their region of the apk; compressed ones are inflated. Several dexes are read in parallel on an
+ * executor of the caller.
+ * <p>
+ * Nothing here depends on Android, so the reader works on the JVM with any {@link Sink}.
+ */
+public class DexReader {
+
+    /**
+     * Allocates the memory a dex is read into.
+     */
+    public interface Sink<T> {
+        Target<T> allocate(String name, int size) throws IOException;
+    }
+
+    /**
+     * Memory allocated for one dex.
+     */
+    public interface Target<T> {
+        /**
+         * Returns the writable buffer of exactly the size of the dex.
+         */
+        ByteBuffer buffer();
+
+        /**
+         * Finishes the dex after the buffer was filled.
+         */
+        T seal() throws IOException;
+
+        /**
+         * Releases the memory, sealed or not.
+         */
+        void discard();
+    }
+
+    /**
+     * Dex of an apk as listed in its central directory.
+     */
+    public static class DexEntry {
+        public final String name;
+        public final int size;
+        /**
+         * Offset of the data of a stored dex in the apk, or {@code -1} if the dex is compressed.
+         */
+        public final long offset;
+
+        public DexEntry(String name, int size, long offset) {
+            this.name = name;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Maximum number of helper tasks reading dexes along with the calling thread.
+     */
+    private static final int MAX_HELPERS = 3;
+
+    /**
+     * Lists {@code classes.dex}, {@code classes2.dex} and so on in the apk.
+     */
+    public static List<DexEntry> listDexes(String apkPath) throws IOException {
+        try (var apkFile = new ZipFile(apkPath);
+             var channel = FileChannel.open(Paths.get(apkPath), StandardOpenOption.READ)) {
+            return listDexes(apkFile, channel);
+        }
+    }
+
+    /**
+     * Lists the dexes of the apk open both as {@code apkFile} and in {@code channel}. The regions of the stored
+     * dexes are found in a single scan of the central directory.
+     */
+    public static List<DexEntry> listDexes(ZipFile apkFile, FileChannel channel) throws IOException {
+        var dexFiles = new ArrayList<ZipEntry>();
+        var stored = new ArrayList<String>();
+        int secondary = 2;
+        for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
+             dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
+            long size = dexFile.getSize();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Bad size " + size + " of " + dexFile.getName());
+            }
+            dexFiles.add(dexFile);
+            if (dexFile.getMethod() == ZipEntry.STORED) {
+                stored.add(dexFile.getName());
+            }
+        }
+        var regions = StoredEntryRegion.findAll(channel, stored);
+        var dexes = new ArrayList<DexEntry>(dexFiles.size());
+        for (var dexFile : dexFiles) {
+            var region = regions.get(dexFile.getName());
+            long offset = region != null && region.size == dexFile.getSize() ? region.offset : -1;
+            dexes.add(new DexEntry(dexFile.getName(), (int) dexFile.getSize(), offset));
+        }
+        return dexes;
+    }
+
+    /**
+     * Reads {@code classes.dex}, {@code classes2.dex} and so on from the apk on the calling thread.
+     *
+     * @return the sealed dexes in order; empty if the apk has no dex
+     * @throws IOException if any dex cannot be read, after releasing all of them
+     */
+    public static <T> List<T> readDexes(String apkPath, Sink<T> sink) throws IOException {
+        return readDexes(apkPath, listDexes(apkPath), sink, null);
+    }
+
+    /**
+     * Reads the listed dexes from the apk, which must not have changed since they were listed. The apk is only
+     * opened as a zip if a dex is compressed.
+     * <p>
+     * The calling thread reads dexes itself and, if {@code helpers} is not {@code null}, a few tasks submitted to it
+     * read the others in parallel. {@code helpers} may be the pool the caller runs on: the calling thread reads every
+     * dex no task has started on, so it only waits for reads already in progress, never for a queued task.
+     *
+     * @return the sealed dexes in order
+     * @throws IOException if any dex cannot be read, after releasing all of them
+     */
+    public static <T> List<T> readDexes(String apkPath, List<DexEntry> dexFiles, Sink<T> sink, Executor helpers)
+            throws IOException {
+        try (var channel = FileChannel.open(Paths.get(apkPath), StandardOpenOption.READ);
+             var apkFile = new LazyZipFile(apkPath)) {
+            var targets = new ArrayList<Target<T>>(dexFiles.size());
+            try {
+                for (var dexFile : dexFiles) {
+                    targets.add(sink.allocate(dexFile.name, dexFile.size));
+                }
+                var reads = new Reads<>(apkFile, channel, dexFiles, targets);
+                if (helpers != null) {
+                    for (int i = 0; i < Math.min(MAX_HELPERS, dexFiles.size() - 1); i++) {
+                        try {
+                            helpers.execute(reads::run);
+                        } catch (RejectedExecutionException e) {
+                            break;
+                        }
+                    }
+                }
+                reads.run();
+                return reads.await();
+            } catch (IOException | RuntimeException e) {
+                for (var target : targets) {
+                    target.discard();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Dexes being read by the calling thread and its helpers. Each dex is read by whichever thread takes it first.
+     */
+    private static class Reads<T> implements Runnable {
+        private final LazyZipFile apkFile;
+        private final FileChannel channel;
+        private final List<DexEntry> dexFiles;
+        private final List<Target<T>> targets;
+        private final Object[] dexes;
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Reads(LazyZipFile apkFile, FileChannel channel, List<DexEntry> dexFiles, List<Target<T>> targets) {
+            this.apkFile = apkFile;
+            this.channel = channel;
+            this.dexFiles = dexFiles;
+            this.targets = targets;
+            this.dexes = new Object[dexFiles.size()];
+            this.done = new CountDownLatch(dexFiles.size());
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < dexes.length) {
+                try {
+                    // once a dex failed, the others are only taken so that they are not waited for
+                    if (failure.get() == null) {
+                        dexes[i] = read(apkFile, channel, dexFiles.get(i), targets.get(i));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Waits until every dex was read, even if interrupted, as the helpers write into the targets.
+         */
+        @SuppressWarnings("unchecked")
+        List<T> await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            var t = failure.get();
+            if (t instanceof IOException) throw (IOException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            var result = new ArrayList<T>(dexes.length);
+            for (var dex : dexes) {
+                result.add((T) dex);
+            }
+            return result;
+        }
+    }
+
+    private static <T> T read(LazyZipFile apkFile, FileChannel channel, DexEntry dexFile, Target<T> target) throws IOException {
+        var buffer = target.buffer();
+        if (dexFile.offset >= 0) {
+            readFully(channel, buffer, dexFile.offset, dexFile.name);
+        } else {
+            var zipFile = apkFile.get();
+            var entry = zipFile.getEntry(dexFile.name);
+            if (entry == null) {
+                throw new IOException("No " + dexFile.name + " in " + apkFile.path);
+            }
+            try (var in = Channels.newChannel(zipFile.getInputStream(entry))) {
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer) < 0) {
+                        throw new EOFException("Truncated " + dexFile.name);
+                    }
+                }
+            }
+        }
+        return target.seal();
+    }
+
+    /**
+     * Fills {@code buffer} from {@code channel} at {@code position}, which may take several reads.
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position, String name) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Truncated " + name);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Zip file opened on first use and shared by the reading threads.
+     */
+    private static class LazyZipFile implements AutoCloseable {
+        final String path;
+        private ZipFile zipFile;
+
+        LazyZipFile(String path) {
+            this.path = path;
+        }
+
+        synchronized ZipFile get() throws IOException {
+            if (zipFile == null) {
+                zipFile = new ZipFile(path);
+            }
+            return zipFile;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+    }
+}
@@ -10,31 +10,63 @@ import org.lsposed.lspd.models.PreLoadedApk;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.channels.Channels;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipFile;
 
 public class ModuleLoader {
 
     private static final String TAG = "LSPatch";
 
-    private static void readDexes(ZipFile apkFile, List<SharedMemory> preLoadedDexes) {
-        int secondary = 2;
-        for (var dexFile = apkFile.getEntry("classes.dex"); dexFile != null;
-             dexFile = apkFile.getEntry("classes" + secondary + ".dex"), secondary++) {
-            try (var in = apkFile.getInputStream(dexFile)) {
-                var memory = SharedMemory.create(null, in.available());
-                var byteBuffer = memory.mapReadWrite();
-                Channels.newChannel(in).read(byteBuffer);
-                SharedMemory.unmap(byteBuffer);
-                memory.setProtect(OsConstants.PROT_READ);
-                preLoadedDexes.add(memory);
-            } catch (IOException | ErrnoException e) {
-                Log.w(TAG, "Can not load " + dexFile + " in " + apkFile, e);
-            }
+    private static volatile ModuleMetadataCache metadataCache;
+
+    /**
+     * Allocates each dex in its own {@link SharedMemory}, made read-only once filled.
+     */
+    private static final DexReader.Sink<SharedMemory> SHARED_MEMORY_SINK = (name, size) -> {
+        SharedMemory memory;
+        ByteBuffer buffer;
+        try {
+            memory = SharedMemory.create(name, size);
+            buffer = memory.mapReadWrite();
+        } catch (ErrnoException e) {
+            throw new IOException("Can not allocate " + size + " bytes for " + name, e);
         }
-    }
+        return new DexReader.Target<>() {
+            private boolean mapped = true;
+
+            @Override
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+
+            @Override
+            public SharedMemory seal() throws IOException {
+                SharedMemory.unmap(buffer);
+                mapped = false;
+                try {
+                    memory.setProtect(OsConstants.PROT_READ);
+                } catch (ErrnoException e) {
+                    throw new IOException("Can not protect " + name, e);
+                }
+                return memory;
+            }
+
+            @Override
+            public void discard() {
+                if (mapped) {
+                    SharedMemory.unmap(buffer);
+                    mapped = false;
+                }
+                memory.close();
+            }
+        };
+    };
 
     private static void readName(ZipFile apkFile, String initName, List<String> names) {
         var initEntry = apkFile.getEntry(initName);
@@ -52,25 +84,67 @@ public class ModuleLoader {
         }
     }
 
-    public static PreLoadedApk loadModule(String path) {
-        if (path == null) return null;
-        var file = new PreLoadedApk();
-        var preLoadedDexes = new ArrayList<SharedMemory>();
+    /**
+     * Uses {@code cache} to skip scanning module apks that were loaded before. Without one, every load scans.
+     */
+    public static void setMetadataCache(ModuleMetadataCache cache) {
+        metadataCache = cache;
+    }
+
+    private static ModuleMetadataCache.ModuleMetadata readMetadata(String path) throws IOException {
+        var cache = metadataCache;
+        if (cache != null) {
+            try {
+                var metadata = cache.get(path);
+                if (metadata != null) return metadata;
+            } catch (IOException e) {
+                Log.w(TAG, "Can not read cached metadata of " + path, e);
+            }
+        }
         var moduleClassNames = new ArrayList<String>(1);
         var moduleLibraryNames = new ArrayList<String>(1);
-        try (var apkFile = new ZipFile(path)) {
-            readDexes(apkFile, preLoadedDexes);
+        List<DexReader.DexEntry> dexes;
+        try (var apkFile = new ZipFile(path);
+             var channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            dexes = DexReader.listDexes(apkFile, channel);
             readName(apkFile, "assets/xposed_init", moduleClassNames);
             readName(apkFile, "assets/native_init", moduleLibraryNames);
+        }
+        var metadata = new ModuleMetadataCache.ModuleMetadata(moduleClassNames, moduleLibraryNames, dexes);
+        if (cache != null) {
+            try {
+                cache.put(path, metadata);
+            } catch (IOException e) {
+                Log.w(TAG, "Can not cache metadata of " + path, e);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * @param dexReaders executor also reading the dexes of the module, or {@code null} to read them on the calling
+     *                   thread only. It may be the pool the caller runs on.
+     */
+    public static PreLoadedApk loadModule(String path, Executor dexReaders) {
+        if (path == null) return null;
+        ModuleMetadataCache.ModuleMetadata metadata;
+        try {
+            metadata = readMetadata(path);
         } catch (IOException e) {
             Log.e(TAG, "Can not open " + path, e);
             return null;
         }
-        if (preLoadedDexes.isEmpty()) return null;
-        if (moduleClassNames.isEmpty()) return null;
-        file.preLoadedDexes = preLoadedDexes;
-        file.moduleClassNames = moduleClassNames;
-        file.moduleLibraryNames = moduleLibraryNames;
+        if (metadata.dexes.isEmpty()) return null;
+        if (metadata.moduleClassNames.isEmpty()) return null;
+        var file = new PreLoadedApk();
+        try {
+            file.preLoadedDexes = DexReader.readDexes(path, metadata.dexes, SHARED_MEMORY_SINK, dexReaders);
+        } catch (IOException e) {
+            Log.e(TAG, "Can not load dexes of " + path, e);
+            return null;
+        }
+        file.moduleClassNames = new ArrayList<>(metadata.moduleClassNames);
+        file.moduleLibraryNames = new ArrayList<>(metadata.moduleLibraryNames);
         return file;
     }
 }
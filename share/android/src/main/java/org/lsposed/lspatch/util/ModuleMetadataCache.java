@@ -0,0 +1,187 @@
+package org.lsposed.lspatch.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers what {@link ModuleLoader} learned from each module apk: its entry classes, native libraries and where its
+ * dexes are. Entries are keyed by the path, size and modification time of the apk, so an updated module is scanned
+ * again. All entries are kept in one file, which is read on first use. Changes are only kept in memory until
+ * {@link #save()}, so preparing several modules rewrites the file once.
+ */
+public class ModuleMetadataCache {
+
+    private static final int VERSION = 1;
+
+    public static class ModuleMetadata {
+        public final List<String> moduleClassNames;
+        public final List<String> moduleLibraryNames;
+        public final List<DexReader.DexEntry> dexes;
+
+        public ModuleMetadata(List<String> moduleClassNames, List<String> moduleLibraryNames, List<DexReader.DexEntry> dexes) {
+            this.moduleClassNames = Collections.unmodifiableList(moduleClassNames);
+            this.moduleLibraryNames = Collections.unmodifiableList(moduleLibraryNames);
+            this.dexes = Collections.unmodifiableList(dexes);
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final ModuleMetadata metadata;
+
+        Entry(long size, long modified, ModuleMetadata metadata) {
+            this.size = size;
+            this.modified = modified;
+            this.metadata = metadata;
+        }
+    }
+
+    private final Path cachePath;
+    private Map<String, Entry> entries;
+    private boolean dirty;
+
+    public ModuleMetadataCache(Path cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    /**
+     * Returns the metadata of the apk at {@code path}, or {@code null} if it was not cached or the apk changed since.
+     */
+    public synchronized ModuleMetadata get(String path) throws IOException {
+        var entry = load().get(path);
+        if (entry == null) {
+            return null;
+        }
+        var attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        if (entry.size != attributes.size() || entry.modified != attributes.lastModifiedTime().toMillis()) {
+            entries.remove(path);
+            dirty = true;
+            return null;
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * Caches the metadata of the apk at {@code path}, which must have been read from the apk as it is now. The entry
+     * is written by the next {@link #save()}.
+     */
+    public synchronized void put(String path, ModuleMetadata metadata) throws IOException {
+        var attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes.class);
+        load().put(path, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), metadata));
+        dirty = true;
+    }
+
+    /**
+     * Writes the cache if it changed since it was loaded.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Files.createDirectories(cachePath.getParent());
+        // processes of the app may save at the same time, so each writes its own temporary file
+        Path tmpPath = Files.createTempFile(cachePath.getParent(), cachePath.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (var entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().size);
+                    out.writeLong(entry.getValue().modified);
+                    var metadata = entry.getValue().metadata;
+                    writeNames(out, metadata.moduleClassNames);
+                    writeNames(out, metadata.moduleLibraryNames);
+                    out.writeInt(metadata.dexes.size());
+                    for (var dex : metadata.dexes) {
+                        out.writeUTF(dex.name);
+                        out.writeInt(dex.size);
+                        out.writeLong(dex.offset);
+                    }
+                }
+            }
+            Files.move(tmpPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+        dirty = false;
+    }
+
+    private Map<String, Entry> load() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new HashMap<>();
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cachePath)))) {
+            if (in.readInt() != VERSION) {
+                return entries;
+            }
+            // every counted item takes at least one byte, so no count of a valid file exceeds its size
+            long limit = Files.size(cachePath);
+            int count = readCount(in, limit);
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                var moduleClassNames = readNames(in, limit);
+                var moduleLibraryNames = readNames(in, limit);
+                int dexCount = readCount(in, limit);
+                var dexes = new ArrayList<DexReader.DexEntry>(dexCount);
+                for (int j = 0; j < dexCount; j++) {
+                    String name = in.readUTF();
+                    int dexSize = in.readInt();
+                    if (dexSize < 0) {
+                        throw new IOException("Bad size " + dexSize + " of " + name);
+                    }
+                    dexes.add(new DexReader.DexEntry(name, dexSize, in.readLong()));
+                }
+                entries.put(path, new Entry(size, modified, new ModuleMetadata(moduleClassNames, moduleLibraryNames, dexes)));
+            }
+        } catch (NoSuchFileException ignored) {
+        } catch (IOException | RuntimeException e) {
+            // unreadable caches are rewritten on the next save
+            entries.clear();
+            dirty = true;
+        }
+        return entries;
+    }
+
+    private static int readCount(DataInputStream in, long limit) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > limit) {
+            throw new IOException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static List<String> readNames(DataInputStream in, long limit) throws IOException {
+        int count = readCount(in, limit);
+        var names = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private static void writeNames(DataOutputStream out, List<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (var name : names) {
+            out.writeUTF(name);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package org.lsposed.lspatch.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DexReaderTest {
+
+    private final Random random = new Random(0);
+    private File apk;
+
+    @Before
+    public void setUp() throws IOException {
+        apk = File.createTempFile("dexes", ".apk");
+    }
+
+    @After
+    public void tearDown() {
+        apk.delete();
+    }
+
+    @Test
+    public void readsStoredAndDeflatedDexesAtTheirExactSize() throws IOException {
+        byte[][] dexes = {dex(1000), dex(300_000), dex(17), dex(2_000_000)};
+        writeApk(dexes, true, false, true, false);
+
+        var entries = DexReader.listDexes(apk.getPath());
+        assertEquals(4, entries.size());
+        for (int i = 0; i != dexes.length; ++i) {
+            assertEquals(dexName(i), entries.get(i).name);
+            assertEquals(dexes[i].length, entries.get(i).size);
+        }
+        assertTrue(entries.get(0).offset >= 0);
+        assertEquals(-1, entries.get(1).offset);
+        assertTrue(entries.get(2).offset >= 0);
+        assertEquals(-1, entries.get(3).offset);
+
+        var sink = new FakeSharedMemorySink();
+        var sealed = DexReader.readDexes(apk.getPath(), entries, sink, null);
+
+        assertEquals(List.of(1000, 300_000, 17, 2_000_000), sink.allocated);
+        assertEquals(4, sealed.size());
+        for (int i = 0; i != dexes.length; ++i) {
+            assertEquals(dexName(i), sealed.get(i).name);
+            assertArrayEquals(dexes[i], sealed.get(i).bytes());
+        }
+        assertEquals(0, sink.discarded);
+    }
+
+    @Test
+    public void readsSingleDexOnCallingThread() throws IOException {
+        byte[] dex = dex(5000);
+        writeApk(new byte[][] {dex}, true);
+
+        var sealed = DexReader.readDexes(apk.getPath(), new FakeSharedMemorySink());
+
+        assertEquals(1, sealed.size());
+        assertArrayEquals(dex, sealed.get(0).bytes());
+    }
+
+    @Test
+    public void readsOnThePoolTheCallerRunsOn() throws Exception {
+        byte[][] dexes = {dex(1000), dex(300_000), dex(17), dex(2_000_000), dex(5000)};
+        writeApk(dexes, true, false, true, false, true);
+        var entries = DexReader.listDexes(apk.getPath());
+
+        for (int threads : new int[] {1, 4}) {
+            var executor = Executors.newFixedThreadPool(threads);
+            try {
+                // with one thread, the helper tasks only start after the caller returned
+                var sealed = executor.submit(() -> DexReader.readDexes(apk.getPath(), entries,
+                        new FakeSharedMemorySink(), executor)).get(10, TimeUnit.SECONDS);
+
+                assertEquals(dexes.length, sealed.size());
+                for (int i = 0; i != dexes.length; ++i) {
+                    assertArrayEquals(dexes[i], sealed.get(i).bytes());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void readsOnCallingThreadWhenHelpersAreRejected() throws IOException {
+        byte[][] dexes = {dex(1000), dex(1000), dex(1000)};
+        writeApk(dexes, true, false);
+        var executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+
+        var sealed = DexReader.readDexes(apk.getPath(), DexReader.listDexes(apk.getPath()),
+                new FakeSharedMemorySink(), executor);
+
+        assertEquals(3, sealed.size());
+        for (int i = 0; i != dexes.length; ++i) {
+            assertArrayEquals(dexes[i], sealed.get(i).bytes());
+        }
+    }
+
+    @Test
+    public void apkWithoutDexHasNone() throws IOException {
+        writeApk(new byte[0][]);
+
+        assertEquals(List.of(), DexReader.readDexes(apk.getPath(), new FakeSharedMemorySink()));
+    }
+
+    @Test
+    public void centralDirectoryIsScannedOnceForAllDexes() throws IOException {
+        writeApk(new byte[][] {dex(100), dex(100), dex(100), dex(100)}, true, true, true, false);
+
+        try (var zipFile = new ZipFile(apk);
+             var channel = new ShortReadChannel(FileChannel.open(apk.toPath(), StandardOpenOption.READ),
+                     Integer.MAX_VALUE)) {
+            var entries = DexReader.listDexes(zipFile, channel);
+
+            assertEquals(4, entries.size());
+            // the end of central directory and the central directory, then a local header per stored dex
+            assertEquals(2 + 3, channel.reads);
+        }
+    }
+
+    @Test
+    public void readFullyLoopsUntilTheBufferIsFull() throws IOException {
+        byte[] dex = dex(10_000);
+        writeApk(new byte[][] {dex}, true);
+        long offset = DexReader.listDexes(apk.getPath()).get(0).offset;
+
+        try (var channel = new ShortReadChannel(FileChannel.open(apk.toPath(), StandardOpenOption.READ), 999)) {
+            var buffer = ByteBuffer.allocate(dex.length);
+            DexReader.readFully(channel, buffer, offset, "classes.dex");
+
+            assertArrayEquals(dex, buffer.array());
+            assertEquals((dex.length + 998) / 999, channel.reads);
+
+            var beyondEnd = ByteBuffer.allocate(dex.length);
+            assertThrows(IOException.class,
+                    () -> DexReader.readFully(channel, beyondEnd, apk.length() - 10, "classes.dex"));
+        }
+    }
+
+    @Test
+    public void allDexesAreDiscardedWhenOneFails() throws IOException {
+        byte[][] dexes = {dex(1000), dex(1000), dex(1000)};
+        writeApk(dexes, true, false, true);
+        var entries = new ArrayList<>(DexReader.listDexes(apk.getPath()));
+        // a stored dex running past the end of the apk and a deflated one shorter than listed
+        entries.set(2, new DexReader.DexEntry(entries.get(2).name, (int) apk.length(), entries.get(2).offset));
+        var sink = new FakeSharedMemorySink();
+
+        assertThrows(IOException.class, () -> DexReader.readDexes(apk.getPath(), entries, sink, null));
+        assertEquals(3, sink.discarded);
+
+        entries.set(2, DexReader.listDexes(apk.getPath()).get(2));
+        entries.set(1, new DexReader.DexEntry(entries.get(1).name, 1001, -1));
+        var deflatedSink = new FakeSharedMemorySink();
+
+        assertThrows(IOException.class, () -> DexReader.readDexes(apk.getPath(), entries, deflatedSink, null));
+        assertEquals(3, deflatedSink.discarded);
+    }
+
+    @Test
+    public void allocatedDexesAreDiscardedWhenAllocationFails() throws IOException {
+        writeApk(new byte[][] {dex(1000), dex(1000), dex(1000)}, true);
+        var sink = new FakeSharedMemorySink();
+        sink.failAt = 2;
+
+        assertThrows(IOException.class, () -> DexReader.readDexes(apk.getPath(), sink));
+        assertEquals(List.of(1000, 1000), sink.allocated);
+        assertEquals(2, sink.discarded);
+    }
+
+    private byte[] dex(int size) {
+        byte[] dex = new byte[size];
+        // half random so that deflating shrinks it, as it does real dexes
+        for (int i = 0; i < size; i += 2) {
+            dex[i] = (byte) random.nextInt();
+        }
+        return dex;
+    }
+
+    private static String dexName(int index) {
+        return index == 0 ? "classes.dex" : "classes" + (index + 1) + ".dex";
+    }
+
+    private void writeApk(byte[][] dexes, boolean... stored) throws IOException {
+        try (var out = new ZipOutputStream(new FileOutputStream(apk))) {
+            out.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            out.write(new byte[100]);
+            for (int i = 0; i != dexes.length; ++i) {
+                var entry = new ZipEntry(dexName(i));
+                if (i < stored.length && stored[i]) {
+                    var crc32 = new CRC32();
+                    crc32.update(dexes[i]);
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(dexes[i].length);
+                    entry.setCrc(crc32.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(dexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Stands in for the {@code SharedMemory} sink of the loader: one direct buffer per dex, made read-only when
+     * sealed, and counting what is allocated and released.
+     */
+    private static class FakeSharedMemorySink implements DexReader.Sink<FakeSharedMemorySink.Sealed> {
+        final List<Integer> allocated = new ArrayList<>();
+        int discarded;
+        int failAt = -1;
+
+        static class Sealed {
+            final String name;
+            final ByteBuffer buffer;
+
+            Sealed(String name, ByteBuffer buffer) {
+                this.name = name;
+                this.buffer = buffer;
+            }
+
+            byte[] bytes() {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                return bytes;
+            }
+        }
+
+        @Override
+        public synchronized DexReader.Target<Sealed> allocate(String name, int size) throws IOException {
+            if (allocated.size() == failAt) {
+                throw new IOException("Out of shared memory");
+            }
+            allocated.add(size);
+            var buffer = ByteBuffer.allocateDirect(size);
+            return new DexReader.Target<>() {
+                @Override
+                public ByteBuffer buffer() {
+                    return buffer;
+                }
+
+                @Override
+                public Sealed seal() {
+                    assertEquals(0, buffer.remaining());
+                    return new Sealed(name, buffer.flip().asReadOnlyBuffer());
+                }
+
+                @Override
+                public void discard() {
+                    synchronized (FakeSharedMemorySink.this) {
+                        discarded++;
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Returns at most {@code maxRead} bytes per positional read and counts the reads.
+     */
+    private static class ShortReadChannel extends FileChannel {
+        private final FileChannel channel;
+        private final int maxRead;
+        int reads;
+
+        ShortReadChannel(FileChannel channel, int maxRead) {
+            this.channel = channel;
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            reads++;
+            var limited = dst.duplicate();
+            limited.limit(limited.position() + Math.min(dst.remaining(), maxRead));
+            int read = channel.read(limited, position);
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileChannel truncate(long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void force(boolean metaData) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
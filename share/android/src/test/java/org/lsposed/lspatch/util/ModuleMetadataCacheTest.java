@@ -0,0 +1,189 @@
+package org.lsposed.lspatch.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ModuleMetadataCacheTest {
+
+    private Path dir;
+    private Path cachePath;
+    private Path apk;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("metadata");
+        cachePath = dir.resolve("cache/module_metadata");
+        apk = dir.resolve("module.apk");
+        Files.write(apk, new byte[] {1, 2, 3});
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static ModuleMetadataCache.ModuleMetadata metadata(String className) {
+        return new ModuleMetadataCache.ModuleMetadata(List.of(className), List.of("libnative.so"),
+                List.of(new DexReader.DexEntry("classes.dex", 1000, 64), new DexReader.DexEntry("classes2.dex", 20, -1)));
+    }
+
+    @Test
+    public void entriesAreOnlyWrittenOnSave() throws IOException {
+        var cache = new ModuleMetadataCache(cachePath);
+        cache.put(apk.toString(), metadata("org.example.Init"));
+        assertFalse(Files.exists(cachePath));
+
+        cache.save();
+        var metadata = new ModuleMetadataCache(cachePath).get(apk.toString());
+
+        assertNotNull(metadata);
+        assertEquals(List.of("org.example.Init"), metadata.moduleClassNames);
+        assertEquals(List.of("libnative.so"), metadata.moduleLibraryNames);
+        assertEquals(2, metadata.dexes.size());
+        assertEquals("classes2.dex", metadata.dexes.get(1).name);
+        assertEquals(20, metadata.dexes.get(1).size);
+        assertEquals(-1, metadata.dexes.get(1).offset);
+    }
+
+    @Test
+    public void unchangedCacheIsNotRewritten() throws IOException {
+        var cache = new ModuleMetadataCache(cachePath);
+        cache.put(apk.toString(), metadata("org.example.Init"));
+        cache.save();
+        var written = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(cachePath, written);
+
+        var reloaded = new ModuleMetadataCache(cachePath);
+        assertNotNull(reloaded.get(apk.toString()));
+        reloaded.save();
+
+        assertEquals(written, Files.getLastModifiedTime(cachePath));
+    }
+
+    @Test
+    public void changedApkIsScannedAgain() throws IOException {
+        var cache = new ModuleMetadataCache(cachePath);
+        cache.put(apk.toString(), metadata("org.example.Init"));
+        cache.save();
+
+        Files.write(apk, new byte[] {1, 2, 3, 4});
+
+        assertNull(new ModuleMetadataCache(cachePath).get(apk.toString()));
+    }
+
+    @Test
+    public void corruptCountsAreRejectedWithoutAllocating() throws IOException {
+        var cache = new ModuleMetadataCache(cachePath);
+        cache.put(apk.toString(), metadata("org.example.Init"));
+        cache.save();
+        byte[] valid = Files.readAllBytes(cachePath);
+
+        // the entry count, and the class name count of the first entry
+        int classNamesCount = 4 + 4 + 2 + apk.toString().length() + 8 + 8;
+        for (int position : new int[] {4, classNamesCount}) {
+            for (int count : new int[] {Integer.MAX_VALUE, -1, valid.length + 1}) {
+                byte[] corrupt = valid.clone();
+                putInt(corrupt, position, count);
+                Files.write(cachePath, corrupt);
+
+                assertNull(new ModuleMetadataCache(cachePath).get(apk.toString()));
+            }
+        }
+    }
+
+    @Test
+    public void truncatedOrGarbledCacheIsRewritten() throws IOException {
+        var cache = new ModuleMetadataCache(cachePath);
+        cache.put(apk.toString(), metadata("org.example.Init"));
+        cache.save();
+        byte[] valid = Files.readAllBytes(cachePath);
+
+        var garbled = new ByteArrayOutputStream();
+        var out = new DataOutputStream(garbled);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeUTF(apk.toString());
+        out.writeLong(3);
+        out.writeLong(0);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.writeUTF("classes.dex");
+        out.writeInt(-5);
+        out.writeLong(0);
+
+        for (byte[] corrupt : new byte[][] {Arrays.copyOf(valid, valid.length - 3), garbled.toByteArray()}) {
+            Files.write(cachePath, corrupt);
+            var reloaded = new ModuleMetadataCache(cachePath);
+
+            assertNull(reloaded.get(apk.toString()));
+            reloaded.save();
+            assertFalse(Arrays.equals(corrupt, Files.readAllBytes(cachePath)));
+        }
+    }
+
+    @Test
+    public void concurrentSavesDoNotShareATemporaryFile() throws Exception {
+        var failures = new ArrayList<Throwable>();
+        var threads = new ArrayList<Thread>();
+        for (int t = 0; t != 4; ++t) {
+            String className = "org.example.Init" + t;
+            var thread = new Thread(() -> {
+                try {
+                    for (int i = 0; i != 50; ++i) {
+                        // one cache per thread, like one per process of the app
+                        var cache = new ModuleMetadataCache(cachePath);
+                        cache.put(apk.toString(), metadata(className));
+                        cache.save();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(List.of(), failures);
+        try (Stream<Path> files = Files.list(cachePath.getParent())) {
+            assertArrayEquals(new Object[] {cachePath}, files.toArray());
+        }
+        assertTrue(new ModuleMetadataCache(cachePath).get(apk.toString()).moduleClassNames.get(0)
+                .startsWith("org.example.Init"));
+    }
+
+    private static void putInt(byte[] bytes, int position, int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+}
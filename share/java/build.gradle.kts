@@ -29,5 +29,9 @@ val generateTask = task<Copy>("generateJava") {
     expand(template)
 }
 
+dependencies {
+    testImplementation("junit:junit:4.13.2")
+}
+
 sourceSets["main"].java.srcDir("$buildDir/generated/java")
 tasks["compileJava"].dependsOn(generateTask)
@@ -0,0 +1,139 @@
+package org.lsposed.lspatch.share;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Fixed layout form of {@link PatchConfig} for the loaders, readable without reflection or a json parser.
+ * <p>
+ * All fields are little endian: the magic {@code "LSPC"}, a version, the boolean fields as flag bits, the signature
+ * bypass level, the original signature, the original signature lineage and the app component factory. A string is
+ * its UTF-8 length followed by its bytes, {@code -1} standing for {@code null}; the lineage is its length followed by
+ * its strings, likewise. {@link PatchConfig#lspConfig} is not stored, decoded configs carry the reader's.
+ */
+public class BinaryPatchConfig {
+
+    private static final int MAGIC = 0x4350534c; // "LSPC" read as little endian
+    private static final int VERSION = 1;
+
+    private static final int FLAG_USE_MANAGER = 1;
+    private static final int FLAG_DEBUGGABLE = 1 << 1;
+    private static final int FLAG_OVERRIDE_VERSION_CODE = 1 << 2;
+    private static final int FLAG_DIRECT_ORIGINAL_APK = 1 << 3;
+
+    public static byte[] encode(PatchConfig config) {
+        byte[] originalSignature = encodeString(config.originalSignature);
+        byte[][] lineage = null;
+        int size = 4 * 4 + sizeOf(originalSignature) + 4;
+        if (config.originalSignatureLineage != null) {
+            lineage = new byte[config.originalSignatureLineage.length][];
+            for (int i = 0; i < lineage.length; i++) {
+                lineage[i] = encodeString(config.originalSignatureLineage[i]);
+                size += sizeOf(lineage[i]);
+            }
+        }
+        byte[] appComponentFactory = encodeString(config.appComponentFactory);
+        size += sizeOf(appComponentFactory);
+
+        int flags = 0;
+        if (config.useManager) flags |= FLAG_USE_MANAGER;
+        if (config.debuggable) flags |= FLAG_DEBUGGABLE;
+        if (config.overrideVersionCode) flags |= FLAG_OVERRIDE_VERSION_CODE;
+        if (config.directOriginalApk) flags |= FLAG_DIRECT_ORIGINAL_APK;
+
+        var buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(config.sigBypassLevel);
+        putString(buffer, originalSignature);
+        buffer.putInt(lineage == null ? -1 : lineage.length);
+        if (lineage != null) {
+            for (var signature : lineage) {
+                putString(buffer, signature);
+            }
+        }
+        putString(buffer, appComponentFactory);
+        return buffer.array();
+    }
+
+    public static PatchConfig decode(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a binary patch config");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary patch config version " + version);
+            }
+            int flags = buffer.getInt();
+            int sigBypassLevel = buffer.getInt();
+            String originalSignature = getString(buffer);
+            int lineageLength = buffer.getInt();
+            String[] lineage = null;
+            if (lineageLength >= 0) {
+                if (lineageLength > buffer.remaining() / 4) {
+                    throw new IOException("Bad lineage length " + lineageLength);
+                }
+                lineage = new String[lineageLength];
+                for (int i = 0; i < lineage.length; i++) {
+                    lineage[i] = getString(buffer);
+                }
+            }
+            String appComponentFactory = getString(buffer);
+            return new PatchConfig(
+                    (flags & FLAG_USE_MANAGER) != 0,
+                    (flags & FLAG_DEBUGGABLE) != 0,
+                    (flags & FLAG_OVERRIDE_VERSION_CODE) != 0,
+                    sigBypassLevel,
+                    originalSignature,
+                    lineage,
+                    appComponentFactory,
+                    (flags & FLAG_DIRECT_ORIGINAL_APK) != 0);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated binary patch config", e);
+        }
+    }
+
+    public static PatchConfig read(InputStream in) throws IOException {
+        var out = new ByteArrayOutputStream(256);
+        byte[] buffer = new byte[256];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return decode(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static byte[] encodeString(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int sizeOf(byte[] string) {
+        return 4 + (string == null ? 0 : string.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
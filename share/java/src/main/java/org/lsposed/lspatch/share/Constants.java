@@ -3,6 +3,7 @@ package org.lsposed.lspatch.share;
 public class Constants {
 
     final static public String CONFIG_ASSET_PATH = "assets/lspatch/config.json";
+    final static public String BINARY_CONFIG_ASSET_PATH = "assets/lspatch/config.bin";
     final static public String LOADER_DEX_ASSET_PATH = "assets/lspatch/loader.dex";
     final static public String META_LOADER_DEX_ASSET_PATH = "assets/lspatch/metaloader.dex";
     final static public String ORIGINAL_APK_ASSET_PATH = "assets/lspatch/origin.apk";
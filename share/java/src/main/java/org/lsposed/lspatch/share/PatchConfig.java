@@ -7,7 +7,12 @@ public class PatchConfig {
     public final boolean overrideVersionCode;
     public final int sigBypassLevel;
     public final String originalSignature;
+    public final String[] originalSignatureLineage;
     public final String appComponentFactory;
+    /**
+     * Load the original apk from its stored entry inside the patched apk instead of a copy in the cache.
+     */
+    public final boolean directOriginalApk;
     public final LSPConfig lspConfig;
 
     public PatchConfig(
@@ -17,13 +22,40 @@ public class PatchConfig {
             int sigBypassLevel,
             String originalSignature,
             String appComponentFactory
+    ) {
+        this(useManager, debuggable, overrideVersionCode, sigBypassLevel, originalSignature, null, appComponentFactory);
+    }
+
+    public PatchConfig(
+            boolean useManager,
+            boolean debuggable,
+            boolean overrideVersionCode,
+            int sigBypassLevel,
+            String originalSignature,
+            String[] originalSignatureLineage,
+            String appComponentFactory
+    ) {
+        this(useManager, debuggable, overrideVersionCode, sigBypassLevel, originalSignature, originalSignatureLineage, appComponentFactory, false);
+    }
+
+    public PatchConfig(
+            boolean useManager,
+            boolean debuggable,
+            boolean overrideVersionCode,
+            int sigBypassLevel,
+            String originalSignature,
+            String[] originalSignatureLineage,
+            String appComponentFactory,
+            boolean directOriginalApk
     ) {
         this.useManager = useManager;
         this.debuggable = debuggable;
         this.overrideVersionCode = overrideVersionCode;
         this.sigBypassLevel = sigBypassLevel;
         this.originalSignature = originalSignature;
+        this.originalSignatureLineage = originalSignatureLineage;
         this.appComponentFactory = appComponentFactory;
+        this.directOriginalApk = directOriginalApk;
         this.lspConfig = LSPConfig.instance;
     }
 }
@@ -0,0 +1,203 @@
+package org.lsposed.lspatch.share;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Durations of the phases of the last cold starts of a patched app, kept in a ring of {@link #CAPACITY} records so
+ * the oldest starts are dropped first. Times are taken from the monotonic clock; each start is also stamped with the
+ * wall clock time it began, so the records of several starts, and of several processes, can be told apart.
+ */
+public class StartupTrace {
+
+    public static final int CAPACITY = 256;
+
+    /**
+     * Maximum size of a serialized trace, enough for a full ring of records with process names of a few hundred
+     * characters. Larger data is rejected by {@link #read(byte[])}.
+     */
+    public static final int MAX_SIZE = 128 * 1024;
+
+    private static final int VERSION = 1;
+
+    private final long[] startMillis = new long[CAPACITY];
+    private final String[] processes = new String[CAPACITY];
+    private final String[] phases = new String[CAPACITY];
+    private final long[] offsetNanos = new long[CAPACITY];
+    private final long[] durationNanos = new long[CAPACITY];
+    private int next;
+    private int count;
+
+    private long currentStartMillis;
+    private long currentOriginNanos;
+    private String currentProcess;
+
+    /**
+     * Begins recording a start of {@code process} whose first phase began at {@code originNanos} of
+     * {@link System#nanoTime()}.
+     */
+    public synchronized void begin(String process, long originNanos) {
+        currentProcess = process;
+        currentOriginNanos = originNanos;
+        currentStartMillis = System.currentTimeMillis() - (System.nanoTime() - originNanos) / 1_000_000;
+    }
+
+    /**
+     * Records that {@code phase} of the current start ran from {@code startNanos} to {@code endNanos}.
+     */
+    public synchronized void record(String phase, long startNanos, long endNanos) {
+        startMillis[next] = currentStartMillis;
+        processes[next] = currentProcess;
+        phases[next] = phase;
+        offsetNanos[next] = startNanos - currentOriginNanos;
+        durationNanos[next] = endNanos - startNanos;
+        next = (next + 1) % CAPACITY;
+        count = Math.min(count + 1, CAPACITY);
+    }
+
+    public synchronized byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream(count * 48);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                int index = (next - count + i + CAPACITY) % CAPACITY;
+                out.writeLong(startMillis[index]);
+                out.writeUTF(processes[index] == null ? "" : processes[index]);
+                out.writeUTF(phases[index]);
+                out.writeLong(offsetNanos[index]);
+                out.writeLong(durationNanos[index]);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads the records written by {@link #toByteArray()}, oldest first.
+     *
+     * @throws IOException if the data is larger than {@link #MAX_SIZE}, holds more than {@link #CAPACITY} records or
+     *                     is not a trace
+     */
+    public static StartupTrace read(byte[] data) throws IOException {
+        if (data.length > MAX_SIZE) {
+            throw new IOException("Startup trace of " + data.length + " bytes is too large");
+        }
+        var trace = new StartupTrace();
+        try (var in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported startup trace version " + version);
+            }
+            int count = in.readInt();
+            if (count < 0 || count > CAPACITY) {
+                throw new IOException("Bad startup trace record count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                trace.currentStartMillis = in.readLong();
+                trace.currentProcess = in.readUTF();
+                String phase = in.readUTF();
+                long offset = in.readLong();
+                trace.record(phase, offset, offset + in.readLong());
+            }
+        }
+        trace.currentProcess = null;
+        trace.currentStartMillis = 0;
+        return trace;
+    }
+
+    /**
+     * Returns whether {@code process} is a process of {@code packageName}: its main process, named after the package,
+     * or one of its other processes, named {@code <packageName>:<name>}.
+     */
+    public static boolean isProcessOf(String process, String packageName) {
+        return process.equals(packageName) || process.startsWith(packageName + ":");
+    }
+
+    /**
+     * Returns whether every record is of a process of {@code packageName}, or of an unknown process as written by
+     * apps patched before traces were kept per process.
+     */
+    public synchronized boolean hasOnlyProcessesOf(String packageName) {
+        for (int i = 0; i < count; i++) {
+            String process = processes[(next - count + i + CAPACITY) % CAPACITY];
+            if (process != null && !process.isEmpty() && !isProcessOf(process, packageName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the records as Chrome trace events, which Perfetto and chrome://tracing open. Each process gets its own
+     * track, and phases are placed at their wall clock time.
+     */
+    public void writeTraceEvents(Writer writer) throws IOException {
+        writeTraceEvents(writer, List.of(this));
+    }
+
+    /**
+     * Writes the records of several traces, such as those of the processes of an app, as one set of Chrome trace
+     * events.
+     */
+    public static void writeTraceEvents(Writer writer, List<StartupTrace> traces) throws IOException {
+        var tracks = new LinkedHashMap<String, Integer>();
+        writer.write("{\"traceEvents\":[");
+        for (var trace : traces) {
+            trace.writeRecords(writer, tracks);
+        }
+        for (var track : tracks.entrySet()) {
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":");
+            writer.write(Integer.toString(track.getValue()));
+            writer.write(",\"args\":{\"name\":");
+            writeString(writer, track.getKey());
+            writer.write("}},");
+        }
+        writer.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":0,\"args\":{\"name\":\"LSPatch startup\"}}]}");
+    }
+
+    private synchronized void writeRecords(Writer writer, Map<String, Integer> tracks) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int index = (next - count + i + CAPACITY) % CAPACITY;
+            String process = processes[index] == null ? "" : processes[index];
+            Integer track = tracks.get(process);
+            if (track == null) {
+                track = tracks.size();
+                tracks.put(process, track);
+            }
+            writer.write("{\"name\":");
+            writeString(writer, phases[index]);
+            writer.write(",\"cat\":\"startup\",\"ph\":\"X\",\"ts\":");
+            writer.write(Long.toString(startMillis[index] * 1000 + offsetNanos[index] / 1000));
+            writer.write(",\"dur\":");
+            writer.write(Long.toString(durationNanos[index] / 1000));
+            writer.write(",\"pid\":0,\"tid\":");
+            writer.write(Integer.toString(track));
+            writer.write("},");
+        }
+    }
+
+    private static void writeString(Writer writer, String string) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format("\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,154 @@
+package org.lsposed.lspatch.share;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Location of the data of an uncompressed zip entry within the zip file, found through the central directory
+ * without reading any entry data.
+ */
+public class StoredEntryRegion {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_EOCD_COMMENT_SIZE = 0xffff;
+    private static final int CD_SIGNATURE = 0x02014b50;
+    private static final int CD_HEADER_SIZE = 46;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int METHOD_STORED = 0;
+
+    public final long offset;
+    public final long size;
+    public final long crc32;
+
+    private StoredEntryRegion(long offset, long size, long crc32) {
+        this.offset = offset;
+        this.size = size;
+        this.crc32 = crc32;
+    }
+
+    /**
+     * Finds the data of entry {@code name} in the zip open in {@code channel}.
+     *
+     * @return the region, or {@code null} if there is no such entry, it is compressed, or the zip needs Zip64
+     */
+    public static StoredEntryRegion find(FileChannel channel, String name) throws IOException {
+        return findAll(channel, List.of(name)).get(name);
+    }
+
+    /**
+     * Finds the data of the entries {@code names} in the zip open in {@code channel}, reading the end of central
+     * directory and the central directory once for all of them.
+     *
+     * @return the regions by name, leaving out the entries that do not exist, are compressed, or need Zip64
+     */
+    public static Map<String, StoredEntryRegion> findAll(FileChannel channel, Collection<String> names)
+            throws IOException {
+        var regions = new HashMap<String, StoredEntryRegion>();
+        if (names.isEmpty()) {
+            return regions;
+        }
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_EOCD_COMMENT_SIZE);
+        ByteBuffer tail = read(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && (tail.getShort(i + 20) & 0xffff) == tailSize - EOCD_SIZE - i) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("End of central directory not found");
+        }
+        long cdSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (cdOffset == 0xffffffffL || cdSize == 0xffffffffL || cdOffset + cdSize > fileSize) {
+            return regions;
+        }
+
+        var wanted = new ArrayList<byte[]>(names.size());
+        for (var name : names) {
+            wanted.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        ByteBuffer cd = read(channel, cdOffset, (int) cdSize);
+        int position = 0;
+        while (position + CD_HEADER_SIZE <= cdSize && cd.getInt(position) == CD_SIGNATURE && !wanted.isEmpty()) {
+            int method = cd.getShort(position + 10) & 0xffff;
+            long crc32 = cd.getInt(position + 16) & 0xffffffffL;
+            long compressedSize = cd.getInt(position + 20) & 0xffffffffL;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localOffset = cd.getInt(position + 42) & 0xffffffffL;
+            for (var it = wanted.iterator(); it.hasNext(); ) {
+                byte[] name = it.next();
+                if (nameLength != name.length || !regionEquals(cd, position + CD_HEADER_SIZE, name)) {
+                    continue;
+                }
+                it.remove();
+                if (method != METHOD_STORED || compressedSize == 0xffffffffL || localOffset == 0xffffffffL) {
+                    break;
+                }
+                String entryName = new String(name, StandardCharsets.UTF_8);
+                // the local header's name and extra field may differ from the central directory's
+                ByteBuffer local = read(channel, localOffset, LOCAL_HEADER_SIZE);
+                if (local.getInt(0) != LOCAL_SIGNATURE) {
+                    throw new IOException("Bad local header of " + entryName);
+                }
+                long dataOffset = localOffset + LOCAL_HEADER_SIZE
+                        + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff);
+                if (dataOffset + compressedSize > cdOffset) {
+                    throw new IOException("Data of " + entryName + " overlaps the central directory");
+                }
+                regions.put(entryName, new StoredEntryRegion(dataOffset, compressedSize, crc32));
+                break;
+            }
+            position += CD_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return regions;
+    }
+
+    /**
+     * Copies the region from {@code source} to {@code target} without decoding it.
+     */
+    public void transferTo(FileChannel source, FileChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < size) {
+            long count = source.transferTo(offset + transferred, size - transferred, target);
+            if (count <= 0) {
+                throw new EOFException("Zip truncated at " + (offset + transferred));
+            }
+            transferred += count;
+        }
+    }
+
+    private static boolean regionEquals(ByteBuffer buffer, int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(position + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Zip truncated at " + (position + buffer.position()));
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,125 @@
+package org.lsposed.lspatch.share;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StartupTraceTest {
+
+    private static final String PACKAGE = "org.example";
+
+    @Test
+    public void recordsSurviveSerialization() throws IOException {
+        var trace = new StartupTrace();
+        trace.begin(PACKAGE, 1_000);
+        trace.record("loadConfig", 1_000, 3_000);
+        trace.record("loadModules", 3_000, 10_000);
+
+        var read = StartupTrace.read(trace.toByteArray());
+
+        assertEquals(Arrays.toString(trace.toByteArray()), Arrays.toString(read.toByteArray()));
+        var events = new StringWriter();
+        read.writeTraceEvents(events);
+        assertTrue(events.toString().contains("{\"name\":\"loadConfig\",\"cat\":\"startup\",\"ph\":\"X\""));
+        assertTrue(events.toString().contains("\"dur\":7,"));
+    }
+
+    @Test
+    public void ringKeepsTheLatestRecords() throws IOException {
+        var trace = new StartupTrace();
+        trace.begin(PACKAGE, 0);
+        for (int i = 0; i != StartupTrace.CAPACITY + 10; ++i) {
+            trace.record("phase" + i, i, i + 1);
+        }
+
+        var events = new StringWriter();
+        StartupTrace.read(trace.toByteArray()).writeTraceEvents(events);
+
+        assertFalse(events.toString().contains("\"phase9\""));
+        assertTrue(events.toString().contains("\"phase10\""));
+        assertTrue(events.toString().contains("\"phase" + (StartupTrace.CAPACITY + 9) + "\""));
+    }
+
+    @Test
+    public void fullRingOfLongProcessNamesFitsMaxSize() {
+        var trace = new StartupTrace();
+        char[] name = new char[200];
+        Arrays.fill(name, 'p');
+        trace.begin(PACKAGE + ":" + new String(name), 0);
+        for (int i = 0; i != StartupTrace.CAPACITY; ++i) {
+            trace.record("ContextImpl.createAppContext", i, i + 1);
+        }
+
+        assertTrue(trace.toByteArray().length <= StartupTrace.MAX_SIZE);
+    }
+
+    @Test
+    public void malformedDataIsRejected() throws IOException {
+        assertThrows(IOException.class, () -> StartupTrace.read(new byte[StartupTrace.MAX_SIZE + 1]));
+        assertThrows(IOException.class, () -> StartupTrace.read(header(2, 0)));
+        assertThrows(IOException.class, () -> StartupTrace.read(header(1, -1)));
+        assertThrows(IOException.class, () -> StartupTrace.read(header(1, StartupTrace.CAPACITY + 1)));
+        // announces a record that is not there
+        assertThrows(IOException.class, () -> StartupTrace.read(header(1, 1)));
+    }
+
+    @Test
+    public void processesOfThePackageAreTold() throws IOException {
+        assertTrue(StartupTrace.isProcessOf(PACKAGE, PACKAGE));
+        assertTrue(StartupTrace.isProcessOf(PACKAGE + ":remote", PACKAGE));
+        assertFalse(StartupTrace.isProcessOf(PACKAGE + ".other", PACKAGE));
+        assertFalse(StartupTrace.isProcessOf("org.other:" + PACKAGE, PACKAGE));
+
+        var own = new StartupTrace();
+        own.begin(PACKAGE, 0);
+        own.record("phase", 0, 1);
+        own.begin(PACKAGE + ":remote", 0);
+        own.record("phase", 0, 1);
+        // apps patched before traces were kept per process do not name it
+        own.begin(null, 0);
+        own.record("phase", 0, 1);
+        assertTrue(StartupTrace.read(own.toByteArray()).hasOnlyProcessesOf(PACKAGE));
+
+        var other = new StartupTrace();
+        other.begin(PACKAGE, 0);
+        other.record("phase", 0, 1);
+        other.begin("org.other", 0);
+        other.record("phase", 0, 1);
+        assertFalse(StartupTrace.read(other.toByteArray()).hasOnlyProcessesOf(PACKAGE));
+    }
+
+    @Test
+    public void processesGetTheirOwnTracks() throws IOException {
+        var main = new StartupTrace();
+        main.begin(PACKAGE, 0);
+        main.record("phase", 0, 1);
+        var remote = new StartupTrace();
+        remote.begin(PACKAGE + ":\"remote\"", 0);
+        remote.record("phase", 0, 1);
+
+        var events = new StringWriter();
+        StartupTrace.writeTraceEvents(events, List.of(main, remote));
+
+        assertTrue(events.toString().contains("\"tid\":0,\"args\":{\"name\":\"" + PACKAGE + "\"}"));
+        assertTrue(events.toString().contains("\"tid\":1,\"args\":{\"name\":\"" + PACKAGE + ":\\\"remote\\\"\"}"));
+    }
+
+    private static byte[] header(int version, int count) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(version);
+            out.writeInt(count);
+        }
+        return bytes.toByteArray();
+    }
+}
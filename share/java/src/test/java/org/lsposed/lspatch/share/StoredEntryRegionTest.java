@@ -0,0 +1,214 @@
+package org.lsposed.lspatch.share;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoredEntryRegionTest {
+
+    private static final byte[] DATA = "stored entry data".getBytes(StandardCharsets.UTF_8);
+
+    private File zip;
+
+    @Before
+    public void setUp() throws IOException {
+        zip = File.createTempFile("region", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        zip.delete();
+    }
+
+    @Test
+    public void findsStoredEntry() throws IOException {
+        write(new ZipBuilder().add("first", "first data".getBytes(StandardCharsets.UTF_8), false)
+                .add("assets/stored", DATA, false).build());
+
+        var region = find("assets/stored");
+        assertNotNull(region);
+        assertEquals(DATA.length, region.size);
+        assertEquals(crc32(DATA), region.crc32);
+        assertArrayEquals(DATA, transfer(region));
+        assertNull(find("assets/missing"));
+    }
+
+    @Test
+    public void findsEntryOfZipWithComment() throws IOException {
+        // the comment holds an EOCD signature, which must not be taken for the record
+        var comment = new ByteArrayOutputStream();
+        comment.write(new byte[] {0x50, 0x4b, 0x05, 0x06});
+        comment.write(new byte[300]);
+        write(new ZipBuilder().add("assets/stored", DATA, false).comment(comment.toByteArray()).build());
+
+        var region = find("assets/stored");
+        assertNotNull(region);
+        assertArrayEquals(DATA, transfer(region));
+    }
+
+    @Test
+    public void compressedEntryIsNotFound() throws IOException {
+        write(new ZipBuilder().add("assets/deflated", DATA, true).build());
+
+        assertNull(find("assets/deflated"));
+    }
+
+    @Test
+    public void zip64SentinelsAreNotFollowed() throws IOException {
+        byte[] data = new ZipBuilder().add("assets/stored", DATA, false).build();
+        var buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = data.length - 22;
+        int cd = buffer.getInt(eocd + 16);
+
+        // sizes of the entry in the Zip64 extra field
+        buffer.putInt(cd + 20, 0xffffffff);
+        write(data);
+        assertNull(find("assets/stored"));
+
+        // central directory located through the Zip64 end of central directory
+        buffer.putInt(cd + 20, DATA.length);
+        buffer.putInt(eocd + 16, 0xffffffff);
+        write(data);
+        assertNull(find("assets/stored"));
+    }
+
+    @Test
+    public void localExtraFieldIsSkipped() throws IOException {
+        // alignment padding is usually only in the local header
+        write(new ZipBuilder().add("lib/libfoo.so", DATA, false, new byte[13], new byte[0])
+                .add("assets/stored", DATA, false, new byte[0], new byte[8]).build());
+
+        assertArrayEquals(DATA, transfer(find("lib/libfoo.so")));
+        assertArrayEquals(DATA, transfer(find("assets/stored")));
+    }
+
+    @Test
+    public void missingEndOfCentralDirectoryIsRejected() throws IOException {
+        write(new byte[100]);
+
+        assertThrows(IOException.class, () -> find("assets/stored"));
+    }
+
+    private void write(byte[] data) throws IOException {
+        Files.write(zip.toPath(), data);
+    }
+
+    private StoredEntryRegion find(String name) throws IOException {
+        try (var channel = FileChannel.open(zip.toPath(), StandardOpenOption.READ)) {
+            return StoredEntryRegion.find(channel, name);
+        }
+    }
+
+    private byte[] transfer(StoredEntryRegion region) throws IOException {
+        var target = File.createTempFile("region", ".bin");
+        try {
+            try (var source = FileChannel.open(zip.toPath(), StandardOpenOption.READ);
+                 var channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                region.transferTo(source, channel);
+            }
+            return Files.readAllBytes(target.toPath());
+        } finally {
+            target.delete();
+        }
+    }
+
+    private static long crc32(byte[] data) {
+        var crc32 = new CRC32();
+        crc32.update(data);
+        return crc32.getValue();
+    }
+
+    /**
+     * Writes zips byte by byte, so that the local and the central directory headers can differ.
+     */
+    private static class ZipBuilder {
+        private final ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        private final List<byte[]> headers = new ArrayList<>();
+        private byte[] comment = new byte[0];
+
+        ZipBuilder add(String name, byte[] data, boolean deflate) {
+            return add(name, data, deflate, new byte[0], new byte[0]);
+        }
+
+        ZipBuilder add(String name, byte[] data, boolean deflate, byte[] localExtra, byte[] cdExtra) {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] stored = deflate ? deflate(data) : data;
+            int method = deflate ? 8 : 0;
+            int localOffset = entries.size();
+
+            var local = header(30 + nameBytes.length + localExtra.length);
+            local.putInt(0x04034b50).putShort((short) 20).putShort((short) 0).putShort((short) method);
+            local.putInt(0).putInt((int) crc32(data)).putInt(stored.length).putInt(data.length);
+            local.putShort((short) nameBytes.length).putShort((short) localExtra.length);
+            local.put(nameBytes).put(localExtra);
+            entries.writeBytes(local.array());
+            entries.writeBytes(stored);
+
+            var cd = header(46 + nameBytes.length + cdExtra.length);
+            cd.putInt(0x02014b50).putShort((short) 20).putShort((short) 20).putShort((short) 0);
+            cd.putShort((short) method).putInt(0).putInt((int) crc32(data)).putInt(stored.length);
+            cd.putInt(data.length).putShort((short) nameBytes.length).putShort((short) cdExtra.length);
+            cd.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0).putInt(localOffset);
+            cd.put(nameBytes).put(cdExtra);
+            headers.add(cd.array());
+            return this;
+        }
+
+        ZipBuilder comment(byte[] comment) {
+            this.comment = comment;
+            return this;
+        }
+
+        byte[] build() {
+            var out = new ByteArrayOutputStream();
+            out.writeBytes(entries.toByteArray());
+            int cdOffset = out.size();
+            for (byte[] header : headers) {
+                out.writeBytes(header);
+            }
+            var eocd = header(22 + comment.length);
+            eocd.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+            eocd.putShort((short) headers.size()).putShort((short) headers.size());
+            eocd.putInt(out.size() - cdOffset).putInt(cdOffset).putShort((short) comment.length).put(comment);
+            out.writeBytes(eocd.array());
+            return out.toByteArray();
+        }
+
+        private static ByteBuffer header(int size) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static byte[] deflate(byte[] data) {
+            var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(data);
+            deflater.finish();
+            var out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            return out.toByteArray();
+        }
+    }
+}